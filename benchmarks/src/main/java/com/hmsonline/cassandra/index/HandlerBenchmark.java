@@ -0,0 +1,135 @@
+package com.hmsonline.cassandra.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.KSMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.IMutation;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.locator.SimpleStrategy;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hmsonline.cassandra.index.benchmark.Orders;
+import com.hmsonline.cassandra.index.dao.ConfigurationDao;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.dao.IndexDao;
+import com.hmsonline.cassandra.index.dao.RowReader;
+
+/**
+ * Runs a handler over a batch of order updates end to end, from merging the
+ * mutations to the finished index batch. The configuration, the current rows
+ * and the index writes are in memory, so only the library's own work is
+ * measured. Each update changes the status of an order, which moves its
+ * entries in three of the four indexes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandlerBenchmark {
+    @Param({ "1", "100" })
+    private int rows;
+
+    @Param({ "1", "10" })
+    private int lines;
+
+    private List<IMutation> mutations;
+    private InMemoryRowReader rowReader;
+    private NullIndexDao indexDao;
+    private StaticConfigurationDao configurationDao;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Mutations need their column family in the schema, once per JVM
+        if (Schema.instance.getCFMetaData(Orders.KEYSPACE, Orders.COLUMN_FAMILY) == null) {
+            CFMetaData metadata = new CFMetaData(Orders.KEYSPACE, Orders.COLUMN_FAMILY, ColumnFamilyType.Standard,
+                    UTF8Type.instance, null);
+            Schema.instance.load(KSMetaData.testMetadata(Orders.KEYSPACE, SimpleStrategy.class,
+                    KSMetaData.optsWithRF(1), metadata));
+        }
+        rowReader = new InMemoryRowReader();
+        indexDao = new NullIndexDao();
+        configurationDao = new StaticConfigurationDao(Orders.configuration());
+        mutations = new ArrayList<IMutation>();
+        long timestamp = System.currentTimeMillis() * 1000;
+        for (int i = 0; i < rows; i++) {
+            String rowKey = "order-" + i;
+            Map<String, String> current = Orders.row(i, lines, "open");
+            rowReader.rows.put(rowKey, current);
+            RowMutation mutation = new RowMutation(Orders.KEYSPACE, ByteBufferUtil.bytes(rowKey));
+            mutation.add(new QueryPath(Orders.COLUMN_FAMILY, null, ByteBufferUtil.bytes("status")),
+                    ByteBufferUtil.bytes("shipped"), timestamp);
+            mutation.add(new QueryPath(Orders.COLUMN_FAMILY, null, ByteBufferUtil.bytes("order")),
+                    ByteBufferUtil.bytes(current.get("order")), timestamp);
+            mutations.add(mutation);
+        }
+    }
+
+    @Benchmark
+    public long run() {
+        new CassandraIndexAspect.Handler(rowReader, null, indexDao, indexDao, configurationDao, mutations, null).run();
+        return indexDao.entries;
+    }
+
+    static class InMemoryRowReader implements RowReader {
+        private final Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
+
+        public Map<String, Map<String, String>> fetchRows(String keyspace, String columnFamily,
+                Collection<String> keys, Collection<String> indexColumns) {
+            Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+            for (String key : keys) {
+                result.put(key, new HashMap<String, String>(rows.get(key)));
+            }
+            return result;
+        }
+    }
+
+    static class NullIndexDao extends IndexDao {
+        private long entries;
+
+        NullIndexDao() {
+            super(null);
+        }
+
+        @Override
+        public void execute(IndexBatch batch) {
+            entries += batch.size();
+        }
+    }
+
+    static class StaticConfigurationDao extends ConfigurationDao {
+        private final Configuration conf;
+
+        StaticConfigurationDao(Configuration conf) {
+            super(null);
+            this.conf = conf;
+        }
+
+        @Override
+        public Configuration getConfiguration() {
+            return conf;
+        }
+    }
+}
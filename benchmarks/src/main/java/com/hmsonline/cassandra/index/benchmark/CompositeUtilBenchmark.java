@@ -0,0 +1,63 @@
+package com.hmsonline.cassandra.index.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hmsonline.cassandra.index.util.CompositeUtil;
+
+/**
+ * Encodes and decodes an index entry of three values and a row key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompositeUtilBenchmark {
+    @Param({ "DELIMITED", "COMPOSITE" })
+    private CompositeUtil.Format format;
+
+    private List<String> parts;
+    private ByteBuffer name;
+
+    @Setup
+    public void setUp() {
+        parts = Arrays.asList("Pittsburgh", "sku-4217", "3", "order-000123");
+        name = CompositeUtil.compose(parts, format);
+    }
+
+    @Benchmark
+    public ByteBuffer compose() {
+        return CompositeUtil.compose(parts, format);
+    }
+
+    @Benchmark
+    public List<String> decompose() throws Exception {
+        return CompositeUtil.decompose(name.duplicate(), format);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> split() {
+        return CompositeUtil.split(name.duplicate(), format);
+    }
+
+    @Benchmark
+    public String composeString() throws Exception {
+        return CompositeUtil.compose(parts);
+    }
+}
@@ -0,0 +1,91 @@
+package com.hmsonline.cassandra.index.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hmsonline.cassandra.index.Configuration;
+import com.hmsonline.cassandra.index.IndexPlan;
+
+/**
+ * Looks up the indexes of column families in a configuration of hundreds of
+ * indexes, four per column family over five keyspaces, and builds such a
+ * configuration as a refresh does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConfigurationBenchmark {
+    private static final int INDEXES_PER_COLUMN_FAMILY = 4;
+    private static final int KEYSPACES = 5;
+
+    @Param({ "100", "500" })
+    private int indexes;
+
+    private Configuration conf;
+    private String[] keyspaces;
+    private String[] columnFamilies;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        int count = indexes / INDEXES_PER_COLUMN_FAMILY;
+        keyspaces = new String[count];
+        columnFamilies = new String[count];
+        for (int i = 0; i < count; i++) {
+            keyspaces[i] = "Keyspace" + (i % KEYSPACES);
+            columnFamilies[i] = "ColumnFamily" + i;
+        }
+        conf = build();
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getIndexes() {
+        int i = next();
+        return conf.getIndexes(keyspaces[i], columnFamilies[i]);
+    }
+
+    @Benchmark
+    public IndexPlan getPlan() {
+        int i = next();
+        return conf.getPlan(keyspaces[i], columnFamilies[i]);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getIndexesUnindexed() {
+        return conf.getIndexes(keyspaces[next()], "Unindexed");
+    }
+
+    @Benchmark
+    public Configuration build() {
+        Configuration.Builder builder = new Configuration.Builder();
+        for (int i = 0; i < indexes; i++) {
+            int cf = i / INDEXES_PER_COLUMN_FAMILY;
+            builder.addIndex("index" + i,
+                    Orders.index(keyspaces[cf], columnFamilies[cf], "status, customer, order:lines:sku"));
+        }
+        return builder.build();
+    }
+
+    private int next() {
+        if (++next == keyspaces.length) {
+            next = 0;
+        }
+        return next;
+    }
+}
@@ -0,0 +1,82 @@
+package com.hmsonline.cassandra.index.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hmsonline.cassandra.index.util.CompositeUtil;
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Builds the entries of a row with a plain column and multiValueColumns
+ * columns of cardinality values each, cardinality^multiValueColumns entries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexUtilBenchmark {
+    @Param({ "1", "10", "100" })
+    private int cardinality;
+
+    @Param({ "1", "2" })
+    private int multiValueColumns;
+
+    private List<String> indexColumns;
+    private Map<String, List<String>> values;
+
+    @Setup
+    public void setUp() {
+        indexColumns = new ArrayList<String>();
+        values = new HashMap<String, List<String>>();
+        indexColumns.add("status");
+        values.put("status", list("open"));
+        for (int i = 0; i < multiValueColumns; i++) {
+            String column = "order:lines:field" + i;
+            List<String> columnValues = new ArrayList<String>();
+            for (int j = 0; j < cardinality; j++) {
+                columnValues.add("value-" + i + "-" + j);
+            }
+            indexColumns.add(column);
+            values.put(column, columnValues);
+        }
+    }
+
+    @Benchmark
+    public List<String> buildIndexes() throws Exception {
+        return IndexUtil.buildIndexes(indexColumns, "order-000123", values);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> buildIndexNamesDelimited() {
+        return IndexUtil.buildIndexNames(indexColumns, "order-000123", values, CompositeUtil.Format.DELIMITED);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> buildIndexNamesComposite() {
+        return IndexUtil.buildIndexNames(indexColumns, "order-000123", values, CompositeUtil.Format.COMPOSITE);
+    }
+
+    private static List<String> list(String value) {
+        List<String> result = new ArrayList<String>();
+        result.add(value);
+        return result;
+    }
+}
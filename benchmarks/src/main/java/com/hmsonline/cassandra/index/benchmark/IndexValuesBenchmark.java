@@ -0,0 +1,57 @@
+package com.hmsonline.cassandra.index.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hmsonline.cassandra.index.IndexPlan;
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Extracts the values of all index columns of an order row, which parses its
+ * json document of lines order lines.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexValuesBenchmark {
+    @Param({ "1", "10", "100" })
+    private int lines;
+
+    private IndexPlan plan;
+    private Map<String, String> row;
+
+    @Setup
+    public void setUp() {
+        plan = Orders.configuration().getPlan(Orders.KEYSPACE, Orders.COLUMN_FAMILY);
+        row = Orders.row(123, lines, "open");
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getIndexValues() {
+        return IndexUtil.getIndexValues(row, plan);
+    }
+
+    /**
+     * Without a plan the json paths are compiled on every call.
+     */
+    @Benchmark
+    public Map<String, List<String>> getIndexValuesUncompiled() {
+        return IndexUtil.getIndexValues(row, plan.getIndexColumns());
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmsonline.cassandra.index.benchmark;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hmsonline.cassandra.index.Configuration;
+import com.hmsonline.cassandra.index.IndexOptions;
+
+/**
+ * Order rows with a json document of order lines, and a configuration of the
+ * kind of indexes applications put on them.
+ */
+public class Orders {
+    public static final String KEYSPACE = "Bench";
+    public static final String COLUMN_FAMILY = "Orders";
+
+    public static Map<String, String> row(int id, int lines, String status) {
+        Map<String, String> row = new LinkedHashMap<String, String>();
+        row.put("status", status);
+        row.put("customer", "customer-" + (id % 1000));
+        row.put("order", document(id, lines));
+        return row;
+    }
+
+    public static String document(int id, int lines) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"id\":\"order-").append(id).append("\",\"placed\":\"2013-06-0").append(1 + id % 9)
+                .append("T12:30:00Z\",\"customer\":{\"id\":\"customer-").append(id % 1000)
+                .append("\",\"name\":\"Jane Doe\",\"address\":{\"street\":\"100 Main St\",\"city\":\"Pittsburgh\",")
+                .append("\"zip\":\"15222\"}},\"lines\":[");
+        for (int i = 0; i < lines; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"sku\":\"sku-").append(1000 + (id * 31 + i) % 9000).append("\",\"qty\":").append(1 + i % 5)
+                    .append(",\"price\":").append(4 + i % 50).append(".99,\"description\":\"Item ").append(i)
+                    .append(" of the order\",\"tags\":[\"new\",\"sale\"]}");
+        }
+        json.append("],\"notes\":\"Leave at the front door.\"}");
+        return json.toString();
+    }
+
+    /**
+     * Indexes on a plain column, a json path, the product of a json path and
+     * plain columns, and correlated json paths.
+     */
+    public static Configuration configuration() {
+        Configuration.Builder builder = new Configuration.Builder();
+        builder.addIndex("orders_by_status", index(KEYSPACE, COLUMN_FAMILY, "status, customer"));
+        builder.addIndex("orders_by_city", index(KEYSPACE, COLUMN_FAMILY, "order:customer:address:city, status"));
+        builder.addIndex("orders_by_sku", index(KEYSPACE, COLUMN_FAMILY, "order:lines:sku, status"));
+        Map<String, String> lines = index(KEYSPACE, COLUMN_FAMILY, "order:lines:sku, order:lines:qty");
+        lines.put(IndexOptions.MODE, "correlated");
+        builder.addIndex("order_lines", lines);
+        return builder.build();
+    }
+
+    public static Map<String, String> index(String keyspace, String columnFamily, String columns) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, keyspace);
+        properties.put(Configuration.COLUMN_FAMILY, columnFamily);
+        properties.put(Configuration.COLUMNS, columns);
+        return properties;
+    }
+}
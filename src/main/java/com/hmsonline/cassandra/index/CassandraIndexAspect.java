@@ -1,41 +1,63 @@
 package com.hmsonline.cassandra.index;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
-import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.factory.HFactory;
-import me.prettyprint.hector.api.mutation.Mutator;
 
+import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.IMutation;
 import org.apache.cassandra.db.RowMutation;
-import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.exceptions.InvalidRequestException;
+import org.apache.cassandra.thrift.UnavailableException;
 import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.HeapAllocator;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.mortbay.log.Log;
 
+import com.hmsonline.cassandra.index.dao.CachingRowReader;
 import com.hmsonline.cassandra.index.dao.ConfigurationDao;
+import com.hmsonline.cassandra.index.dao.CountBatch;
 import com.hmsonline.cassandra.index.dao.DaoFactory;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
 import com.hmsonline.cassandra.index.dao.IndexDao;
+import com.hmsonline.cassandra.index.dao.LocalRowReader;
+import com.hmsonline.cassandra.index.dao.RowReader;
+import com.hmsonline.cassandra.index.dao.ThriftRowReader;
+import com.hmsonline.cassandra.index.journal.IndexJournal;
+import com.hmsonline.cassandra.index.rebuild.IndexRebuilder;
 import com.hmsonline.cassandra.index.util.IndexUtil;
 
 @Aspect
 public class CassandraIndexAspect {
     protected static final String CLUSTER_NAME = "Indexing";
     private IndexDao indexDao;
+    private IndexDao asyncIndexDao;
     private ConfigurationDao configurationDao;
-    private ExecutorService executors = Executors.newCachedThreadPool();
+    private IndexExecutors executors;
     private Cluster cluster;
+    private IndexJournal journal;
+    private RowReader rowReader;
+    private CachingRowReader rowCache;
 
     public CassandraIndexAspect(){
         String cassandraHost = System.getProperty("cassandra.host");
@@ -44,100 +66,419 @@ public class CassandraIndexAspect {
             cassandraHost = "localhost:9160";
         }
         cluster = HFactory.getOrCreateCluster(CLUSTER_NAME, cassandraHost);
-        indexDao = DaoFactory.getIndexDAO(cluster);
+
+        // In local mode rows are read and index entries written through the
+        // storage layer of the Cassandra process hosting the aspect.
+        if ("local".equals(System.getProperty("cassandra.index.storage", "thrift"))) {
+            org.apache.cassandra.db.ConsistencyLevel storageConsistency = org.apache.cassandra.db.ConsistencyLevel
+                    .valueOf(System.getProperty("cassandra.index.storage.consistency", "QUORUM"));
+            rowReader = new LocalRowReader(storageConsistency);
+            indexDao = DaoFactory.getLocalIndexDAO(cluster, storageConsistency);
+        } else {
+            rowReader = new ThriftRowReader(cluster);
+            indexDao = DaoFactory.getIndexDAO(cluster);
+        }
+        // Coalesce the index writes of concurrent requests into shared batches
+        long groupCommitWindow = Long.getLong("cassandra.index.group_commit.window", 0);
+        if (groupCommitWindow > 0) {
+            indexDao = DaoFactory.getGroupCommitIndexDAO(cluster, indexDao, groupCommitWindow, Integer.getInteger(
+                    "cassandra.index.group_commit.max_entries", 5000), Integer.getInteger(
+                    "cassandra.index.group_commit.writers", 4));
+        }
+        // Writes of indexes with an async write mode aren't waited for
+        asyncIndexDao = DaoFactory.getAsyncIndexDAO(cluster, indexDao, Integer.getInteger(
+                "cassandra.index.async_writer.threads", 4), Integer.getInteger(
+                "cassandra.index.async_writer.queue_size", 1024), Integer.getInteger(
+                "cassandra.index.async_writer.max_attempts", 3));
         configurationDao = DaoFactory.getConfigurationDAO(cluster);
+
+        int rowCacheEntries = Integer.getInteger("cassandra.index.row_cache.entries", 0);
+        if (rowCacheEntries > 0) {
+            rowCache = new CachingRowReader(rowReader, rowCacheEntries, Long.getLong(
+                    "cassandra.index.row_cache.bytes", 64 * 1024 * 1024), Long.getLong(
+                    "cassandra.index.row_cache.expiry", 60 * 1000));
+            rowReader = rowCache;
+        }
+        executors = IndexExecutors.fromSystemProperties();
+
+        if (Boolean.getBoolean("cassandra.index.async")) {
+            journal = createJournal();
+        }
+        registerRebuilder();
+    }
+
+    private void registerRebuilder() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(IndexRebuilder.MBEAN_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(IndexRebuilder.fromSystemProperties(cluster, configurationDao, indexDao), name);
+            }
+        } catch (Exception ex) {
+            Log.warn("Could not register the index rebuilder: " + ex.getMessage());
+        }
+    }
+
+    private IndexJournal createJournal() {
+        String directory = System.getProperty("cassandra.index.journal.directory");
+        if (directory == null) {
+            directory = new File(DatabaseDescriptor.getCommitLogLocation()).getParent() + File.separator + "index_journal";
+        }
+        IndexJournal journal = new IndexJournal(new File(directory), indexDao,
+                Integer.getInteger("cassandra.index.journal.workers", 4),
+                Long.getLong("cassandra.index.journal.segment_size", 32 * 1024 * 1024),
+                Long.getLong("cassandra.index.journal.sync_period", 10),
+                "batch".equals(System.getProperty("cassandra.index.journal.sync", "periodic")),
+                Integer.getInteger("cassandra.index.journal.max_pending", 100000),
+                Long.getLong("cassandra.index.journal.append_timeout", DatabaseDescriptor.getWriteRpcTimeout()),
+                Integer.getInteger("cassandra.index.journal.max_attempts", 10),
+                Long.getLong("cassandra.index.journal.retry_delay", 1000));
+        try {
+            journal.start();
+        } catch (Exception ex) {
+            throw new RuntimeException("Could not start the index journal in " + directory, ex);
+        }
+        final IndexJournal stopped = journal;
+        Runtime.getRuntime().addShutdownHook(new Thread("IndexJournalShutdown") {
+            public void run() {
+                try {
+                    stopped.stop();
+                } catch (Exception ex) {
+                    Log.warn("Could not stop the index journal: " + ex.getMessage());
+                }
+            }
+        });
+        return journal;
     }
     
     @Around("execution(* org.apache.cassandra.thrift.CassandraServer.doInsert(..))")
     public void process(ProceedingJoinPoint joinPoint) throws Throwable {
-        ConsistencyLevel consistency = (ConsistencyLevel) joinPoint.getArgs()[0];
         @SuppressWarnings("unchecked")
         List<IMutation> mutations = (List<IMutation>) joinPoint.getArgs()[1];
-        Handler handler = new Handler(cluster, indexDao, configurationDao, mutations, consistency);
-        Future<?> future = executors.submit(handler);
-        future.get();
-        joinPoint.proceed(joinPoint.getArgs());
+
+        // One handler per source keyspace, each runs in its keyspace's bulkhead
+        Map<String, List<IMutation>> mutationsByKeyspace = new LinkedHashMap<String, List<IMutation>>();
+        for (IMutation mutation : mutations) {
+            if (IndexUtil.INDEXING_KEYSPACE.equals(mutation.getTable())) {
+                continue;
+            }
+            List<IMutation> keyspaceMutations = mutationsByKeyspace.get(mutation.getTable());
+            if (keyspaceMutations == null) {
+                keyspaceMutations = new ArrayList<IMutation>();
+                mutationsByKeyspace.put(mutation.getTable(), keyspaceMutations);
+            }
+            keyspaceMutations.add(mutation);
+        }
+
+        // Either every bulkhead takes its handler or the write is refused
+        // before any index entry is written
+        Map<String, Runnable> handlers = new LinkedHashMap<String, Runnable>();
+        for (Map.Entry<String, List<IMutation>> entry : mutationsByKeyspace.entrySet()) {
+            handlers.put(entry.getKey(), new Handler(rowReader, rowCache, indexDao, asyncIndexDao, configurationDao,
+                    entry.getValue(), journal));
+        }
+        List<Future<?>> futures = executors.submitAll(handlers);
+        try {
+            // Wait for every handler, even after one failed, so none of them
+            // updates the row cache after it has been invalidated
+            ExecutionException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+            if (failure != null) {
+                if (failure.getCause() instanceof IndexLimitExceededException) {
+                    throw new InvalidRequestException(failure.getCause().getMessage());
+                }
+                if (failure.getCause() instanceof RejectedExecutionException) {
+                    Log.warn("Index journal is overloaded: " + failure.getCause().getMessage());
+                    throw new UnavailableException();
+                }
+                throw failure;
+            }
+            joinPoint.proceed(joinPoint.getArgs());
+        } catch (Throwable t) {
+            // The cached rows assumed this write would succeed
+            invalidateCachedRows(mutations);
+            throw t;
+        }
     }
 
-    class Handler implements Runnable {
+    private void invalidateCachedRows(List<IMutation> mutations) throws Exception {
+        if (rowCache == null) {
+            return;
+        }
+        for (IMutation mutation : mutations) {
+            String rowKey = ByteBufferUtil.string(mutation.key());
+            for (ColumnFamily cf : ((RowMutation) mutation).getColumnFamilies()) {
+                rowCache.invalidate(mutation.getTable(), cf.metadata().cfName, rowKey);
+            }
+        }
+    }
+
+    static class Handler implements Runnable {
         private final IndexDao indexDao;
+        private final IndexDao asyncIndexDao;
         private final ConfigurationDao configurationDao;
         private final List<IMutation> mutations;
-        private final ConsistencyLevel consistency;
+        private final IndexJournal journal;
+        private final RowReader rowReader;
+        private final CachingRowReader rowCache;
+        private final long created = System.nanoTime();
+        // The rows to cache once the index writes have succeeded, those
+        // without values are dropped from the cache
+        private final List<CachedRow> cachedRows = new ArrayList<CachedRow>();
 
-        Handler(Cluster cluster, IndexDao indexDao, ConfigurationDao configurationDao, List<IMutation> mutations,
-                ConsistencyLevel consistency) {
+        Handler(RowReader rowReader, CachingRowReader rowCache, IndexDao indexDao, IndexDao asyncIndexDao,
+                ConfigurationDao configurationDao, List<IMutation> mutations, IndexJournal journal) {
             this.indexDao = indexDao;
+            this.asyncIndexDao = asyncIndexDao;
             this.configurationDao = configurationDao;
             this.mutations = mutations;
-            this.consistency = consistency;
+            this.journal = journal;
+            this.rowReader = rowReader;
+            this.rowCache = rowCache;
         }
 
         public void run() {
+            long started = System.nanoTime();
+            IndexMetrics.queueWait.update(started - created, TimeUnit.NANOSECONDS);
             Configuration conf = configurationDao.getConfiguration();
+            IndexMetrics.configurationLookup.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
             try {
-                for (IMutation mutation : mutations) {
-                    String keyspace = mutation.getTable();
-                    String rowKey = ByteBufferUtil.string(mutation.key());
-                    Collection<ColumnFamily> cfs = ((RowMutation) mutation).getColumnFamilies();
-                    if (IndexUtil.INDEXING_KEYSPACE.equals(keyspace)) {
-                        continue;
+                Writes sync = new Writes();
+                Writes async = new Writes();
+                long timestamp = System.currentTimeMillis() * 1000;
+
+                for (Map.Entry<String, Map<String, Map<String, ColumnFamily>>> keyspace : mergeMutations().entrySet()) {
+                    for (Map.Entry<String, Map<String, ColumnFamily>> columnFamily : keyspace.getValue().entrySet()) {
+                        indexColumnFamily(conf, keyspace.getKey(), columnFamily.getKey(), columnFamily.getValue(),
+                                timestamp, sync, async);
                     }
-                    
-                    Mutator<String> indexMutator = null;
-
-                    // Iterate over mutated column families and create indexes
-                    // for
-                    // each
-                    for (ColumnFamily cf : cfs) {
-                        String cfName = cf.metadata().cfName;
-                        Map<String, List<String>> configuredIndexes = conf.getIndexes(keyspace, cfName);
-                        if (configuredIndexes.isEmpty()) {
-                            continue;
-                        }
+                }
 
-                        // Get all index columns configured for this column
-                        // family
-                        Set<String> cfIndexColumns = new HashSet<String>();
-                        for (List<String> columns : configuredIndexes.values()) {
-                            cfIndexColumns.addAll(columns);
-                        }
+                if (sync.isEmpty() && async.isEmpty()) {
+                    updateRowCache();
+                    return;
+                }
+                // In async mode the batch is durably journaled and applied
+                // in the background, after the data write has gone ahead.
+                // Otherwise the entries of async indexes are handed off first
+                // and only those of sync indexes are waited for. Counts are
+                // written once after their entries, never journaled.
+                long writeStarted = System.nanoTime();
+                if (journal != null) {
+                    sync.entries.addAll(async.entries);
+                    sync.counts.addAll(async.counts);
+                    journal.append(sync.entries, sync.counts);
+                } else {
+                    asyncIndexDao.execute(async.entries, async.counts);
+                    if (!sync.isEmpty()) {
+                        indexDao.execute(sync.entries, sync.counts);
+                    }
+                }
+                IndexMetrics.write.update(System.nanoTime() - writeStarted, TimeUnit.NANOSECONDS);
+                updateRowCache();
+            } catch (IndexLimitExceededException ex) {
+                throw ex;
+            } catch (RejectedExecutionException ex) {
+                throw ex;
+            } catch (Throwable t) {
+                throw new RuntimeException("Could not index a mutation.", t);
+            } finally {
+                IndexMetrics.handler.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+        }
 
-                        // Skip indexing if none of index columns changed
-                        if (!cf.isMarkedForDelete() && !IndexUtil.indexChanged(cf, cfIndexColumns)) {
-                            continue;
-                        }
+        private void updateRowCache() {
+            for (CachedRow row : cachedRows) {
+                if (row.values == null) {
+                    rowCache.invalidate(row.keyspace, row.columnFamily, row.rowKey);
+                } else {
+                    rowCache.update(row.keyspace, row.columnFamily, row.rowKey, row.columns, row.values);
+                }
+            }
+        }
 
-                        Map<String, String> currentRow = IndexUtil.fetchRow(cluster, keyspace, cfName, rowKey, cfIndexColumns);
-                        Map<String, String> newRow = IndexUtil.getNewRow(currentRow, cf);
-                        Map<String, List<String>> currentIndexValues = IndexUtil.getIndexValues(currentRow, cfIndexColumns);
-                        Map<String, List<String>> newIndexValues = IndexUtil.getIndexValues(newRow, cfIndexColumns);
+        // Groups the mutations by keyspace, column family and row key, merging
+        // the changes to a row that is mutated several times in the batch.
+        private Map<String, Map<String, Map<String, ColumnFamily>>> mergeMutations() throws Exception {
+            Map<String, Map<String, Map<String, ColumnFamily>>> result = new LinkedHashMap<String, Map<String, Map<String, ColumnFamily>>>();
+            for (IMutation mutation : mutations) {
+                String keyspace = mutation.getTable();
+                if (IndexUtil.INDEXING_KEYSPACE.equals(keyspace)) {
+                    continue;
+                }
+                String rowKey = ByteBufferUtil.string(mutation.key());
 
-                        for (String indexName : configuredIndexes.keySet()) {
-                            List<String> indexColumns = configuredIndexes.get(indexName);
-                            
-                            if(indexMutator == null) {
-                                indexMutator = HFactory.createMutator(indexDao.getKeyspace(), StringSerializer.get());
-                            }
-                            
-                            long timestamp = System.currentTimeMillis() * 1000;
-                            if (cf.isMarkedForDelete()) {
-                                indexDao.deleteIndexes(indexName,
-                                        IndexUtil.buildIndexes(indexColumns, rowKey, currentIndexValues), consistency, timestamp, indexMutator);
-                            } else if (IndexUtil.indexChanged(cf, indexColumns)) {
-                                indexDao.deleteIndexes(indexName,
-                                        IndexUtil.buildIndexes(indexColumns, rowKey, currentIndexValues), consistency, timestamp, indexMutator);
-                                indexDao.insertIndexes(indexName, IndexUtil.buildIndexes(indexColumns, rowKey, newIndexValues),
-                                        consistency, (timestamp + 1), indexMutator);
+                Map<String, Map<String, ColumnFamily>> columnFamilies = result.get(keyspace);
+                if (columnFamilies == null) {
+                    columnFamilies = new LinkedHashMap<String, Map<String, ColumnFamily>>();
+                    result.put(keyspace, columnFamilies);
+                }
+                for (ColumnFamily cf : ((RowMutation) mutation).getColumnFamilies()) {
+                    Map<String, ColumnFamily> rows = columnFamilies.get(cf.metadata().cfName);
+                    if (rows == null) {
+                        rows = new LinkedHashMap<String, ColumnFamily>();
+                        columnFamilies.put(cf.metadata().cfName, rows);
+                    }
+                    ColumnFamily merged = rows.get(rowKey);
+                    if (merged == null) {
+                        rows.put(rowKey, cf);
+                    } else {
+                        // Never modify the column family that is about to be written
+                        merged = merged.cloneMe();
+                        merged.addAll(cf, HeapAllocator.instance);
+                        rows.put(rowKey, merged);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private void indexColumnFamily(Configuration conf, String keyspace, String cfName, Map<String, ColumnFamily> rows,
+                long timestamp, Writes sync, Writes async) throws Exception {
+            IndexPlan plan = conf.getPlan(keyspace, cfName);
+            IndexMetrics.ColumnFamilyMetrics cfMetrics = IndexMetrics.get(keyspace, cfName);
+            if (plan.isEmpty()) {
+                cfMetrics.rowsUnindexed.inc(rows.size());
+                return;
+            }
+            Set<String> cfFetchColumns = plan.getFetchColumns();
+
+            // Skip indexing rows where none of index columns changed
+            Map<String, ColumnFamily> changedRows = new LinkedHashMap<String, ColumnFamily>();
+            for (Map.Entry<String, ColumnFamily> row : rows.entrySet()) {
+                ColumnFamily cf = row.getValue();
+                if (cf.isMarkedForDelete() || plan.indexChanged(cf)) {
+                    changedRows.put(row.getKey(), cf);
+                }
+            }
+            cfMetrics.rowsUnchanged.inc(rows.size() - changedRows.size());
+            if (changedRows.isEmpty()) {
+                return;
+            }
+            cfMetrics.rowsIndexed.inc(changedRows.size());
+
+            // Fetch the current state of all changed rows at once
+            long started = System.nanoTime();
+            Map<String, Map<String, String>> currentRows = rowReader.fetchRows(keyspace, cfName,
+                    changedRows.keySet(), cfFetchColumns);
+            cfMetrics.fetchRows.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+
+            for (Map.Entry<String, ColumnFamily> row : changedRows.entrySet()) {
+                String rowKey = row.getKey();
+                ColumnFamily cf = row.getValue();
+                Map<String, String> currentRow = currentRows.get(rowKey);
+                started = System.nanoTime();
+                Map<String, String> newRow = IndexUtil.getNewRow(currentRow, cf);
+                // A row deleted and written again in the batch has its entries
+                // replaced like an update, from the columns written after the
+                // deletion
+                boolean deleted = cf.isMarkedForDelete() && !IndexUtil.isRewritten(cf);
+                Map<String, List<String>> currentIndexValues = IndexUtil.getIndexValues(currentRow, plan);
+                Map<String, List<String>> newIndexValues = IndexUtil.getIndexValues(newRow, plan);
+                cfMetrics.extraction.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                if (rowCache != null) {
+                    cachedRows.add(new CachedRow(keyspace, cfName, rowKey, cfFetchColumns, cf.isMarkedForDelete()
+                            ? null : newRow));
+                }
+
+                for (Map.Entry<String, List<String>> index : plan.getIndexes().entrySet()) {
+                    String indexName = index.getKey();
+                    IndexOptions options = plan.getOptions(indexName);
+                    IndexMetrics metrics = IndexMetrics.get(indexName);
+                    Writes writes = options.getWriteMode() == IndexOptions.WriteMode.ASYNC ? async : sync;
+                    started = System.nanoTime();
+                    boolean appendOnly = IndexEntries.isAppendOnly(options);
+                    int countDepth = IndexEntries.countDepth(plan, indexName, options);
+                    if (deleted && !appendOnly) {
+                        Set<ByteBuffer> currentIndexes = IndexEntries.buildIndexNames(indexName, options,
+                                IndexEntries.indexParts(plan, indexName, rowKey, currentRow, currentIndexValues), true);
+                        for (Map.Entry<String, List<ByteBuffer>> shard : IndexEntries.byShard(indexName, options,
+                                rowKey, currentIndexes, timestamp, false).entrySet()) {
+                            indexDao.deleteIndexes(shard.getKey(), shard.getValue(), options.getConsistency(),
+                                    timestamp, writes.entries);
+                            metrics.entriesDeleted.inc(shard.getValue().size());
+                        }
+                        if (countDepth > 0) {
+                            indexDao.updateCounts(indexName, IndexEntries.countDeltas(currentIndexes,
+                                    Collections.<ByteBuffer> emptySet(), countDepth), options.getConsistency(),
+                                    writes.counts);
+                        }
+                    } else if (!deleted && (cf.isMarkedForDelete() || plan.indexChanged(cf, indexName))) {
+                        // Only write the entries that actually changed
+                        Set<ByteBuffer> currentIndexes = IndexEntries.buildIndexNames(indexName, options,
+                                IndexEntries.indexParts(plan, indexName, rowKey, currentRow, currentIndexValues), true);
+                        Set<ByteBuffer> newIndexes = IndexEntries.buildIndexNames(indexName, options,
+                                IndexEntries.indexParts(plan, indexName, rowKey, newRow, newIndexValues), false);
+                        metrics.fanOut.update(newIndexes.size());
+                        // All entries are rewritten when the values of a covering
+                        // index change, and those that expire to refresh their ttl
+                        ByteBuffer value = IndexEntries.includedValue(indexName, options, newRow);
+                        boolean rewrite = options.getTtl() > 0
+                                || !value.equals(IndexEntries.includedValue(indexName, options, currentRow));
+                        Collection<ByteBuffer> written = rewrite ? new ArrayList<ByteBuffer>(newIndexes) : newIndexes;
+                        // The counts follow the same diff, taken before it
+                        // strips the unchanged entries from newIndexes
+                        Map<ByteBuffer, Long> counts = countDepth > 0 ? IndexEntries.countDeltas(currentIndexes,
+                                newIndexes, countDepth) : null;
+                        List<ByteBuffer> removed = new ArrayList<ByteBuffer>();
+                        for (ByteBuffer name : currentIndexes) {
+                            if (!newIndexes.remove(name)) {
+                                removed.add(name);
                             }
                         }
+                        for (Map.Entry<String, List<ByteBuffer>> shard : IndexEntries.byShard(indexName, options,
+                                rowKey, appendOnly ? new ArrayList<ByteBuffer>() : removed, timestamp, false).entrySet()) {
+                            indexDao.deleteIndexes(shard.getKey(), shard.getValue(), options.getConsistency(),
+                                    timestamp, writes.entries);
+                            metrics.entriesDeleted.inc(shard.getValue().size());
+                        }
+                        for (Map.Entry<String, List<ByteBuffer>> shard : IndexEntries.byShard(indexName, options,
+                                rowKey, written, timestamp, true).entrySet()) {
+                            indexDao.insertIndexes(shard.getKey(), shard.getValue(), value, options.getConsistency(),
+                                    options.getTtl(), (timestamp + 1), writes.entries);
+                            metrics.entriesInserted.inc(shard.getValue().size());
+                        }
+                        if (counts != null && !counts.isEmpty()) {
+                            indexDao.updateCounts(indexName, counts, options.getConsistency(), writes.counts);
+                        }
                     }
-                    if(indexMutator != null) {
-                        indexMutator.execute();
-                    }
-                }                
-            } catch (Throwable t) {
-                throw new RuntimeException("Could not index a mutation.", t);
+                    metrics.build.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        static class CachedRow {
+            final String keyspace;
+            final String columnFamily;
+            final String rowKey;
+            final Set<String> columns;
+            final Map<String, String> values;
+
+            CachedRow(String keyspace, String columnFamily, String rowKey, Set<String> columns,
+                    Map<String, String> values) {
+                this.keyspace = keyspace;
+                this.columnFamily = columnFamily;
+                this.rowKey = rowKey;
+                this.columns = columns;
+                this.values = values;
+            }
+        }
+
+        // The entries and counts of either the sync or the async indexes
+        static class Writes {
+            final IndexBatch entries = new IndexBatch();
+            final CountBatch counts = new CountBatch();
+
+            boolean isEmpty() {
+                return entries.isEmpty() && counts.isEmpty();
             }
         }
     }
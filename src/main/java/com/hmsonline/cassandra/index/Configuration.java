@@ -1,13 +1,20 @@
 package com.hmsonline.cassandra.index;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 
+/**
+ * The indexing configuration, immutable once built: the plans of all the
+ * indexed column families are compiled once by the Builder, so a
+ * configuration can be shared by any number of threads.
+ */
 public class Configuration {
     public static final String KEYSPACE = "keyspace";
     public static final String COLUMN_FAMILY = "column_family";
@@ -15,34 +22,95 @@ public class Configuration {
     public static final String COLUMN_DELIM = ",";
     public static final String FIELD_DELIM = ":";
 
-    private Map<String, Map<String, List<String>>> config = new HashMap<String, Map<String, List<String>>>();
+    public static final Configuration EMPTY = new Builder().build();
 
-    public void addIndex(String indexName, Map<String, String> indexProperties) {
-        String keyspace = indexProperties.get(KEYSPACE);
-        String columnFamily = indexProperties.get(COLUMN_FAMILY);
-        String columns = indexProperties.get(COLUMNS);
+    // keyspace -> column family -> compiled plan
+    private final Map<String, Map<String, IndexPlan>> plans;
 
-        if (StringUtils.isEmpty(keyspace) || StringUtils.isEmpty(columnFamily) || StringUtils.isEmpty(columns)) {
-            return;
+    // index name -> index options
+    private final Map<String, IndexOptions> indexOptionsByName;
+
+    private Configuration(Builder builder) {
+        Map<String, Map<String, IndexPlan>> compiled = new HashMap<String, Map<String, IndexPlan>>();
+        for (Map.Entry<String, Map<String, Map<String, List<String>>>> keyspace : builder.config.entrySet()) {
+            Map<String, IndexPlan> columnFamilies = new HashMap<String, IndexPlan>();
+            for (Map.Entry<String, Map<String, List<String>>> columnFamily : keyspace.getValue().entrySet()) {
+                columnFamilies.put(columnFamily.getKey(), new IndexPlan(columnFamily.getValue(),
+                        builder.options.get(keyspace.getKey()).get(columnFamily.getKey())));
+            }
+            compiled.put(keyspace.getKey(), Collections.unmodifiableMap(columnFamilies));
         }
+        this.plans = Collections.unmodifiableMap(compiled);
+        this.indexOptionsByName = Collections.unmodifiableMap(new HashMap<String, IndexOptions>(
+                builder.indexOptionsByName));
+    }
+
+    /**
+     * Collects the index rows of the Configuration column family and compiles
+     * them into a configuration.
+     */
+    public static class Builder {
+        // keyspace -> column family -> index name -> index columns
+        private final Map<String, Map<String, Map<String, List<String>>>> config = new HashMap<String, Map<String, Map<String, List<String>>>>();
+
+        // keyspace -> column family -> index name -> index options
+        private final Map<String, Map<String, Map<String, IndexOptions>>> options = new HashMap<String, Map<String, Map<String, IndexOptions>>>();
+
+        // index name -> index options
+        private final Map<String, IndexOptions> indexOptionsByName = new HashMap<String, IndexOptions>();
+
+        public Builder addIndex(String indexName, Map<String, String> indexProperties) {
+            String keyspace = indexProperties.get(KEYSPACE);
+            String columnFamily = indexProperties.get(COLUMN_FAMILY);
+            String columns = indexProperties.get(COLUMNS);
+
+            if (StringUtils.isEmpty(keyspace) || StringUtils.isEmpty(columnFamily) || StringUtils.isEmpty(columns)) {
+                return this;
+            }
 
-        List<String> indexColumns = new ArrayList<String>();
-        for (String column : columns.split(COLUMN_DELIM)) {
-            if (StringUtils.isNotEmpty(column)) {
-                indexColumns.add(column.trim());
+            List<String> indexColumns = new ArrayList<String>();
+            for (String column : columns.split(COLUMN_DELIM)) {
+                if (StringUtils.isNotEmpty(column)) {
+                    indexColumns.add(column.trim());
+                }
             }
+
+            Map<String, Map<String, List<String>>> columnFamilies = config.get(keyspace);
+            if (columnFamilies == null) {
+                columnFamilies = new HashMap<String, Map<String, List<String>>>();
+                config.put(keyspace, columnFamilies);
+                options.put(keyspace, new HashMap<String, Map<String, IndexOptions>>());
+            }
+            Map<String, List<String>> indexes = columnFamilies.get(columnFamily);
+            if (indexes == null) {
+                indexes = new LinkedHashMap<String, List<String>>();
+                columnFamilies.put(columnFamily, indexes);
+                options.get(keyspace).put(columnFamily, new HashMap<String, IndexOptions>());
+            }
+            indexes.put(indexName, indexColumns);
+            IndexOptions indexOptions = IndexOptions.fromProperties(indexName, indexProperties);
+            options.get(keyspace).get(columnFamily).put(indexName, indexOptions);
+            indexOptionsByName.put(indexName, indexOptions);
+            return this;
         }
 
-        String key = generateKey(keyspace, columnFamily);
-        if (!config.containsKey(key)) {
-            config.put(key, new HashMap<String, List<String>>());
+        public Configuration build() {
+            return new Configuration(this);
         }
-        config.get(key).put(indexName, indexColumns);
+    }
+
+    /**
+     * Returns the compiled plan for a column family, or an empty plan if it
+     * is not indexed.
+     */
+    public IndexPlan getPlan(String keyspace, String columnFamily) {
+        Map<String, IndexPlan> columnFamilies = plans.get(keyspace);
+        IndexPlan plan = columnFamilies == null ? null : columnFamilies.get(columnFamily);
+        return plan == null ? IndexPlan.EMPTY : plan;
     }
 
     public Map<String, List<String>> getIndexes(String keyspace, String columnFamily) {
-        String key = generateKey(keyspace, columnFamily);
-        return config.containsKey(key) ? config.get(key) : new HashMap<String, List<String>>();
+        return getPlan(keyspace, columnFamily).getIndexes();
     }
 
     public Set<String> getIndexNames(String keyspace, String columnFamily) {
@@ -53,15 +121,16 @@ public class Configuration {
         return getIndexes(keyspace, columnFamily).get(indexName);
     }
 
-    public boolean isEmpty() {
-        return config.isEmpty();
-    }
-
-    public void clear() {
-        config.clear();
+    /**
+     * Returns the options of an index, e.g. to query a sharded index, or the
+     * defaults if the index is unknown.
+     */
+    public IndexOptions getIndexOptions(String indexName) {
+        IndexOptions result = indexOptionsByName.get(indexName);
+        return result == null ? IndexOptions.DEFAULT : result;
     }
 
-    private String generateKey(String keyspace, String columnFamily) {
-        return keyspace.hashCode() + "_" + columnFamily.hashCode();
+    public boolean isEmpty() {
+        return plans.isEmpty();
     }
 }
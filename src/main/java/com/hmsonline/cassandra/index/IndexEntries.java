@@ -0,0 +1,266 @@
+package com.hmsonline.cassandra.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.util.CompositeUtil;
+import com.hmsonline.cassandra.index.util.IndexPartsIterator;
+import com.hmsonline.cassandra.index.util.IndexUtil;
+import com.hmsonline.cassandra.index.util.JsonPathExtractor;
+
+/**
+ * Turns a source row into the entries of an index and the index rows they
+ * are written to, applying the index's options. Shared by the write path and
+ * the index builders so all of them produce exactly the same entries.
+ */
+public class IndexEntries {
+    private static final int MAX_INCLUDED_LENGTH = 0xFFFF;
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final TypeReference<LinkedHashMap<String, String>> INCLUDED_TYPE =
+            new TypeReference<LinkedHashMap<String, String>>() {
+            };
+
+    private static Logger logger = LoggerFactory.getLogger(IndexEntries.class);
+
+    /**
+     * Returns the parts of the entries of a row, correlated or as a product
+     * of the values of the index columns depending on the index's mode.
+     */
+    public static IndexPartsIterator indexParts(IndexPlan plan, String indexName, String rowKey,
+            Map<String, String> row, Map<String, List<String>> values) {
+        List<String> indexColumns = plan.getIndexes().get(indexName);
+        Map<String, JsonPathExtractor> extractors = plan.getCorrelatedExtractors(indexName);
+        if (extractors != null) {
+            return IndexUtil.getCorrelatedParts(row, rowKey, indexColumns, extractors);
+        }
+        return new IndexPartsIterator(indexColumns, rowKey, values);
+    }
+
+    /**
+     * Streams the entries of a row for an index, applying the index's
+     * max_entries. The overflow policy is only enforced on new values, current
+     * values are capped the same way they were when written.
+     */
+    public static Set<ByteBuffer> buildIndexNames(String indexName, IndexOptions options, IndexPartsIterator parts,
+            boolean current) {
+        Set<ByteBuffer> result = new LinkedHashSet<ByteBuffer>();
+        long count = parts.count();
+        long limit = count;
+        if (count > options.getMaxEntries()) {
+            IndexMetrics metrics = IndexMetrics.get(indexName);
+            String message = "Row " + parts.getRowKey() + " produces " + count + " entries for index " + indexName
+                    + ", more than its max_entries of " + options.getMaxEntries();
+            if (options.getOverflow() == IndexOptions.Overflow.SKIP) {
+                if (!current) {
+                    metrics.rowsSkipped.inc();
+                    logger.warn(message + ", not indexing it.");
+                }
+                return result;
+            }
+            if (options.getOverflow() == IndexOptions.Overflow.REJECT && !current) {
+                metrics.rowsRejected.inc();
+                throw new IndexLimitExceededException(message + ".");
+            }
+            if (!current) {
+                metrics.rowsTruncated.inc();
+                logger.warn(message + ", truncating.");
+            }
+            limit = options.getMaxEntries();
+        }
+
+        Iterator<ByteBuffer> names = IndexUtil.indexNames(parts, CompositeUtil.FORMAT);
+        for (long i = 0; i < limit && names.hasNext(); i++) {
+            result.add(names.next());
+        }
+        return result;
+    }
+
+    /**
+     * Groups the entries of a row by the index row (time bucket and shard)
+     * they belong in. Entries whose time can't be determined are dropped.
+     */
+    public static Map<String, List<ByteBuffer>> byShard(String indexName, IndexOptions options, String rowKey,
+            Collection<ByteBuffer> names, long timestamp, boolean insertion) throws Exception {
+        Map<String, List<ByteBuffer>> result = new LinkedHashMap<String, List<ByteBuffer>>();
+        TimeBuckets timeBuckets = options.getTimeBuckets();
+        boolean byValue = options.getShards() > 1 && options.getShardBy() == IndexOptions.ShardBy.VALUE;
+        if (!byValue && (timeBuckets == null || timeBuckets.getSource() == TimeBuckets.Source.WRITE_TIME)) {
+            String bucket = timeBuckets == null ? null : timeBuckets.getBucket(timestamp / 1000);
+            result.put(options.getShardRow(indexName, bucket, ByteBufferUtil.bytes(rowKey)),
+                    new ArrayList<ByteBuffer>(names));
+            return result;
+        }
+        for (ByteBuffer name : names) {
+            ByteBuffer leadingValue = CompositeUtil.split(name, CompositeUtil.FORMAT).get(0);
+            String bucket = null;
+            if (timeBuckets != null) {
+                Long time = timeBuckets.getSource() == TimeBuckets.Source.VALUE ? timeBuckets.parse(ByteBufferUtil
+                        .string(leadingValue)) : Long.valueOf(timestamp / 1000);
+                if (time == null) {
+                    if (insertion) {
+                        logger.warn("Row " + rowKey + " has no valid time for bucketed index " + indexName
+                                + ", not indexing it.");
+                    }
+                    continue;
+                }
+                bucket = timeBuckets.getBucket(time);
+            }
+            String shardRow = options.getShardRow(indexName, bucket, byValue ? leadingValue : ByteBufferUtil
+                    .bytes(rowKey));
+            List<ByteBuffer> shard = result.get(shardRow);
+            if (shard == null) {
+                shard = new ArrayList<ByteBuffer>();
+                result.put(shardRow, shard);
+            }
+            shard.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the entries of a stored row for every index of its column family
+     * to the batch, as a rebuild writes them. Entries bucketed by write time go
+     * in the bucket of the row's last write, the others are written with the
+     * given timestamp. Entries get the ttl and consistency level of their
+     * index, and the values of its included columns.
+     */
+    public static void addEntries(IndexPlan plan, String rowKey, Map<String, String> row, long writeTime,
+            long timestamp, IndexBatch batch) throws Exception {
+        Map<String, List<String>> indexValues = IndexUtil.getIndexValues(row, plan);
+        for (String indexName : plan.getIndexes().keySet()) {
+            IndexOptions options = plan.getOptions(indexName);
+            // A row that is already stored can't be rejected, it is truncated
+            // the same way the write path will find it
+            boolean current = options.getOverflow() == IndexOptions.Overflow.REJECT;
+            Set<ByteBuffer> names = buildIndexNames(indexName, options, indexParts(plan, indexName, rowKey, row,
+                    indexValues), current);
+            ByteBuffer value = includedValue(indexName, options, row);
+            for (Map.Entry<String, List<ByteBuffer>> shard : byShard(indexName, options, rowKey, names,
+                    isAppendOnly(options) ? writeTime : timestamp, true).entrySet()) {
+                for (ByteBuffer name : shard.getValue()) {
+                    batch.addInsertion(shard.getKey(), name, value, timestamp, options.getTtl(),
+                            options.getConsistency());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the entries of a row in a covering index: the
+     * names and values of its included columns that the row has, as a json
+     * object. Json keeps the value valid UTF-8 whatever the columns hold, as
+     * the UTF8Type validation of the Indexes column family requires. Empty
+     * for an index without included columns. Values over 64K characters are
+     * left out.
+     */
+    public static ByteBuffer includedValue(String indexName, IndexOptions options, Map<String, String> row) {
+        if (options.getIncludeColumns().isEmpty() || row == null) {
+            return ByteBufferUtil.EMPTY_BYTE_BUFFER;
+        }
+        Map<String, String> columns = new LinkedHashMap<String, String>();
+        for (String column : options.getIncludeColumns()) {
+            String value = row.get(column);
+            if (value == null) {
+                continue;
+            }
+            if (value.length() > MAX_INCLUDED_LENGTH) {
+                logger.warn("Value of column " + column + " is too long to be included in index " + indexName
+                        + ", leaving it out.");
+                continue;
+            }
+            columns.put(column, value);
+        }
+        if (columns.isEmpty()) {
+            return ByteBufferUtil.EMPTY_BYTE_BUFFER;
+        }
+        try {
+            return ByteBuffer.wrap(mapper.writeValueAsBytes(columns));
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to encode the included columns of index " + indexName, ex);
+        }
+    }
+
+    /**
+     * Decodes the included columns from the value of an entry, see
+     * includedValue.
+     */
+    public static Map<String, String> includedColumns(ByteBuffer value) throws IOException {
+        if (value == null || !value.hasRemaining()) {
+            return new LinkedHashMap<String, String>();
+        }
+        return mapper.readValue(ByteBufferUtil.getArray(value), INCLUDED_TYPE);
+    }
+
+    /**
+     * Returns how many leading index values the rows of an index are counted
+     * by, at most the number of index columns. Indexes whose entries go away
+     * without being deleted, bucketed by write time or expiring, keep no
+     * counts as nothing would ever decrement them.
+     */
+    public static int countDepth(IndexPlan plan, String indexName, IndexOptions options) {
+        // The entries of time bucketed indexes go away with their bucket, and
+        // those with a ttl when they expire, without their counts following
+        if (options.getCountDepth() == 0 || options.getTimeBuckets() != null || options.getTtl() > 0) {
+            return 0;
+        }
+        return Math.min(options.getCountDepth(), plan.getIndexes().get(indexName).size());
+    }
+
+    /**
+     * Returns the changes to the counts of an index when a row's entries go
+     * from current to updated. A row counts once for every prefix of 1 to
+     * depth values of its entries, however many entries share the prefix.
+     */
+    public static Map<ByteBuffer, Long> countDeltas(Collection<ByteBuffer> current, Collection<ByteBuffer> updated,
+            int depth) {
+        Set<ByteBuffer> currentPrefixes = prefixes(current, depth);
+        Set<ByteBuffer> updatedPrefixes = prefixes(updated, depth);
+        Map<ByteBuffer, Long> result = new LinkedHashMap<ByteBuffer, Long>();
+        for (ByteBuffer prefix : currentPrefixes) {
+            if (!updatedPrefixes.contains(prefix)) {
+                result.put(prefix, -1L);
+            }
+        }
+        for (ByteBuffer prefix : updatedPrefixes) {
+            if (!currentPrefixes.contains(prefix)) {
+                result.put(prefix, 1L);
+            }
+        }
+        return result;
+    }
+
+    private static Set<ByteBuffer> prefixes(Collection<ByteBuffer> names, int depth) {
+        Set<ByteBuffer> result = new HashSet<ByteBuffer>();
+        for (ByteBuffer name : names) {
+            for (int i = 1; i <= depth; i++) {
+                result.add(CompositeUtil.prefix(name, i, CompositeUtil.FORMAT));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether the entries of an index are bucketed by write time. Those can't
+     * be found again to be deleted, they go away with their bucket.
+     */
+    public static boolean isAppendOnly(IndexOptions options) {
+        return options.getTimeBuckets() != null
+                && options.getTimeBuckets().getSource() == TimeBuckets.Source.WRITE_TIME;
+    }
+}
@@ -0,0 +1,238 @@
+package com.hmsonline.cassandra.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded worker pools for the indexing handlers. Depending on the isolation
+ * mode there is either one shared pool or one pool (bulkhead) per source
+ * keyspace, so a slow keyspace cannot starve the others. The active, pending
+ * and completed task counts of each pool are exported as
+ * org.apache.cassandra.metrics:type=IndexHandler,scope=IndexHandler[-keyspace].
+ *
+ * The pools are plain ThreadPoolExecutors: a handler's failure, such as an
+ * IndexLimitExceededException, reaches the writer through its Future, unlike
+ * Cassandra's pools they don't log it again as an uncaught error.
+ *
+ * Each pool admits at most threads + queue size handlers at once, counted by
+ * a semaphore. The handlers of a write spanning keyspaces take their room in
+ * every pool before any of them is submitted, so a write refused by one
+ * bulkhead has none of its index entries written by the others.
+ */
+public class IndexExecutors {
+    public static final String JMX_PATH = "indexing";
+    public static final String POOL_NAME = "IndexHandler";
+    private static final String SHARED = "";
+
+    private static Logger logger = LoggerFactory.getLogger(IndexExecutors.class);
+
+    public enum Isolation {
+        SHARED, KEYSPACE
+    }
+
+    public enum Backpressure {
+        REJECT, CALLER_RUNS, BLOCK
+    }
+
+    private final ConcurrentMap<String, Bulkhead> executors = new ConcurrentHashMap<String, Bulkhead>();
+    private final Isolation isolation;
+    private final int threads;
+    private final int queueSize;
+    private final Backpressure backpressure;
+    private final long blockTimeout;
+
+    public IndexExecutors(Isolation isolation, int threads, int queueSize, Backpressure backpressure, long blockTimeout) {
+        this.isolation = isolation;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.backpressure = backpressure;
+        this.blockTimeout = blockTimeout;
+    }
+
+    public static IndexExecutors fromSystemProperties() {
+        Isolation isolation = Isolation.valueOf(System.getProperty("cassandra.index.executor.isolation",
+                Isolation.KEYSPACE.name()).toUpperCase());
+        Backpressure backpressure = Backpressure.valueOf(System.getProperty("cassandra.index.executor.backpressure",
+                Backpressure.BLOCK.name()).toUpperCase());
+        return new IndexExecutors(isolation, Integer.getInteger("cassandra.index.executor.threads", 16),
+                Integer.getInteger("cassandra.index.executor.queue_size", 1024), backpressure, Long.getLong(
+                        "cassandra.index.executor.block_timeout", DatabaseDescriptor.getWriteRpcTimeout()));
+    }
+
+    /**
+     * Runs a handler in the pool of its keyspace. A pool that can't take it
+     * refuses the write as unavailable.
+     */
+    public Future<?> submit(String keyspace, Runnable handler) throws UnavailableException {
+        return submitAll(Collections.singletonMap(keyspace, handler)).get(0);
+    }
+
+    /**
+     * Runs the handlers of a write, keyed by keyspace, each in the pool of its
+     * keyspace, and returns their futures in the order of the handlers. Room
+     * is taken in every pool first: if one of them can't take its handlers
+     * the write is refused as unavailable and none of the handlers is run.
+     * With caller runs backpressure the handlers of a full pool run on the
+     * calling thread once the others are submitted.
+     */
+    public List<Future<?>> submitAll(Map<String, Runnable> handlers) throws UnavailableException {
+        // Pools are taken in a fixed order, so writers blocking for room in
+        // several pools can't wait on each other
+        Map<String, Integer> needed = new TreeMap<String, Integer>();
+        for (String keyspace : handlers.keySet()) {
+            String key = getKey(keyspace);
+            Integer count = needed.get(key);
+            needed.put(key, count == null ? 1 : count + 1);
+        }
+        Map<String, Integer> acquired = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Integer> pool : needed.entrySet()) {
+            if (getBulkhead(pool.getKey()).acquire(pool.getValue())) {
+                acquired.put(pool.getKey(), pool.getValue());
+            } else if (backpressure != Backpressure.CALLER_RUNS) {
+                for (Map.Entry<String, Integer> taken : acquired.entrySet()) {
+                    getBulkhead(taken.getKey()).permits.release(taken.getValue());
+                }
+                logger.warn("Index handler pool " + getBulkhead(pool.getKey()).poolName + " is overloaded.");
+                throw new UnavailableException();
+            }
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        List<FutureTask<?>> callerRuns = new ArrayList<FutureTask<?>>();
+        for (Map.Entry<String, Runnable> handler : handlers.entrySet()) {
+            String key = getKey(handler.getKey());
+            if (!acquired.containsKey(key)) {
+                FutureTask<Object> task = new FutureTask<Object>(handler.getValue(), null);
+                callerRuns.add(task);
+                futures.add(task);
+                continue;
+            }
+            acquired.put(key, acquired.get(key) - 1);
+            try {
+                futures.add(getBulkhead(key).submit(handler.getValue()));
+            } catch (RejectedExecutionException ex) {
+                // Only a pool that was shut down refuses a handler it has room
+                // for, the handlers already submitted are cancelled if they
+                // haven't started
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+                for (Map.Entry<String, Integer> unused : acquired.entrySet()) {
+                    getBulkhead(unused.getKey()).permits.release(unused.getValue());
+                }
+                logger.warn("Index handler pool for " + handler.getKey() + " is shut down: " + ex.getMessage());
+                throw new UnavailableException();
+            }
+        }
+        for (FutureTask<?> task : callerRuns) {
+            task.run();
+        }
+        return futures;
+    }
+
+    public ThreadPoolExecutor getExecutor(String keyspace) {
+        return getBulkhead(getKey(keyspace)).executor;
+    }
+
+    private String getKey(String keyspace) {
+        return isolation == Isolation.KEYSPACE ? keyspace : SHARED;
+    }
+
+    private Bulkhead getBulkhead(String key) {
+        Bulkhead bulkhead = executors.get(key);
+        if (bulkhead == null) {
+            synchronized (this) {
+                bulkhead = executors.get(key);
+                if (bulkhead == null) {
+                    bulkhead = new Bulkhead(key.length() == 0 ? POOL_NAME : POOL_NAME + "-" + key);
+                    executors.put(key, bulkhead);
+                }
+            }
+        }
+        return bulkhead;
+    }
+
+    /**
+     * A pool and the room left in it. The queue has room for every admitted
+     * handler, so the pool itself only refuses handlers once shut down.
+     */
+    private class Bulkhead {
+        private final String poolName;
+        private final ThreadPoolExecutor executor;
+        private final Semaphore permits = new Semaphore(threads + queueSize);
+
+        Bulkhead(String poolName) {
+            logger.info("Creating index handler pool " + poolName + " with " + threads + " threads, queue of "
+                    + queueSize + " and " + backpressure + " backpressure.");
+            this.poolName = poolName;
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(threads + queueSize), new NamedThreadFactory(poolName));
+            this.executor.allowCoreThreadTimeOut(true);
+            IndexMetrics.pool(poolName, executor);
+        }
+
+        boolean acquire(int count) {
+            if (backpressure != Backpressure.BLOCK) {
+                return permits.tryAcquire(count);
+            }
+            try {
+                return permits.tryAcquire(count, blockTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Submits a handler admitted by acquire, its room is given back once
+         * it has run, or if it is cancelled before.
+         */
+        Future<?> submit(final Runnable handler) {
+            FutureTask<Object> task = new FutureTask<Object>(handler, null) {
+                @Override
+                public void run() {
+                    try {
+                        super.run();
+                    } finally {
+                        permits.release();
+                    }
+                }
+
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    // A task taken out of the queue is never run
+                    if (cancelled && executor.remove(this)) {
+                        permits.release();
+                    }
+                    return cancelled;
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                permits.release();
+                throw ex;
+            }
+            return task;
+        }
+    }
+}
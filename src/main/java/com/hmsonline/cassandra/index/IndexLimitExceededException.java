@@ -0,0 +1,13 @@
+package com.hmsonline.cassandra.index;
+
+/**
+ * Thrown when a row produces more entries for an index than the index allows
+ * and the index is configured to reject such writes.
+ */
+public class IndexLimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public IndexLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,152 @@
+package com.hmsonline.cassandra.index;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Metrics of the indexing pipeline, registered with Cassandra's own metrics
+ * and exported over JMX as org.apache.cassandra.metrics:type=Indexing for the
+ * stages shared by all writes, type=IndexedColumnFamily,scope=keyspace.cf per
+ * source column family, type=Index,scope=indexName per index and
+ * type=IndexHandler,scope=poolName per handler pool.
+ */
+public class IndexMetrics {
+    public static final String GROUP = "org.apache.cassandra.metrics";
+
+    private static final ConcurrentMap<String, ColumnFamilyMetrics> columnFamilies = new ConcurrentHashMap<String, ColumnFamilyMetrics>();
+    private static final ConcurrentMap<String, IndexMetrics> indexes = new ConcurrentHashMap<String, IndexMetrics>();
+
+    /** Time handlers spend in the queue of their pool. */
+    public static final Timer queueWait = timer("Indexing", "QueueWait", null);
+    /** Time to get the configuration and plans of a batch of mutations. */
+    public static final Timer configurationLookup = timer("Indexing", "ConfigurationLookup", null);
+    /** Time to write or journal the index batch of a handler. */
+    public static final Timer write = timer("Indexing", "Write", null);
+    /** Time of a whole handler, from leaving the queue to the index batch written. */
+    public static final Timer handler = timer("Indexing", "Handler", null);
+    /** Json values of multi-value columns that could not be parsed. */
+    public static final Counter jsonParseFailures = Metrics.newCounter(new MetricName(GROUP, "Indexing",
+            "JsonParseFailures"));
+    /** Entries of async indexes dropped because the async writer was full. */
+    public static final Counter asyncEntriesDropped = Metrics.newCounter(new MetricName(GROUP, "Indexing",
+            "AsyncEntriesDropped"));
+    /** Entries of async indexes whose write failed. */
+    public static final Counter asyncEntriesFailed = Metrics.newCounter(new MetricName(GROUP, "Indexing",
+            "AsyncEntriesFailed"));
+    /** Journaled batches set aside in the failed file after their last attempt. */
+    public static final Counter journalBatchesFailed = Metrics.newCounter(new MetricName(GROUP, "Indexing",
+            "JournalBatchesFailed"));
+    /** Loads of the indexing configuration that failed, the first one included. */
+    public static final Counter configurationLoadsFailed = Metrics.newCounter(new MetricName(GROUP, "Indexing",
+            "ConfigurationLoadsFailed"));
+    /** Count deltas dropped because their write failed, they are never retried. */
+    public static final Counter countsDropped = Metrics.newCounter(new MetricName(GROUP, "Indexing",
+            "CountsDropped"));
+
+    /** Time to build, diff and shard the entries of a row. */
+    public final Timer build;
+    public final Counter entriesInserted;
+    public final Counter entriesDeleted;
+    /** Entries produced per indexed row. */
+    public final Histogram fanOut;
+    /** Rows whose entries were truncated to the index's max_entries. */
+    public final Counter rowsTruncated;
+    /** Rows left out of the index because they produced too many entries. */
+    public final Counter rowsSkipped;
+    /** Writes rejected because a row produced too many entries. */
+    public final Counter rowsRejected;
+
+    private IndexMetrics(String indexName) {
+        build = timer("Index", "Build", indexName);
+        entriesInserted = Metrics.newCounter(new MetricName(GROUP, "Index", "EntriesInserted", indexName));
+        entriesDeleted = Metrics.newCounter(new MetricName(GROUP, "Index", "EntriesDeleted", indexName));
+        fanOut = Metrics.newHistogram(new MetricName(GROUP, "Index", "FanOut", indexName), true);
+        rowsTruncated = Metrics.newCounter(new MetricName(GROUP, "Index", "RowsTruncated", indexName));
+        rowsSkipped = Metrics.newCounter(new MetricName(GROUP, "Index", "RowsSkipped", indexName));
+        rowsRejected = Metrics.newCounter(new MetricName(GROUP, "Index", "RowsRejected", indexName));
+    }
+
+    public static IndexMetrics get(String indexName) {
+        IndexMetrics result = indexes.get(indexName);
+        if (result == null) {
+            synchronized (indexes) {
+                result = indexes.get(indexName);
+                if (result == null) {
+                    result = new IndexMetrics(indexName);
+                    indexes.put(indexName, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static ColumnFamilyMetrics get(String keyspace, String columnFamily) {
+        String scope = keyspace + "." + columnFamily;
+        ColumnFamilyMetrics result = columnFamilies.get(scope);
+        if (result == null) {
+            synchronized (columnFamilies) {
+                result = columnFamilies.get(scope);
+                if (result == null) {
+                    result = new ColumnFamilyMetrics(scope);
+                    columnFamilies.put(scope, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static class ColumnFamilyMetrics {
+        /** Time to read the current state of the changed rows of a batch. */
+        public final Timer fetchRows;
+        /** Time to extract the index values of the current and new rows. */
+        public final Timer extraction;
+        /** Mutated rows of a column family without indexes. */
+        public final Counter rowsUnindexed;
+        /** Mutated rows that touched no indexed column. */
+        public final Counter rowsUnchanged;
+        /** Mutated rows whose index entries were updated. */
+        public final Counter rowsIndexed;
+
+        private ColumnFamilyMetrics(String scope) {
+            fetchRows = timer("IndexedColumnFamily", "FetchRows", scope);
+            extraction = timer("IndexedColumnFamily", "Extraction", scope);
+            rowsUnindexed = Metrics.newCounter(new MetricName(GROUP, "IndexedColumnFamily", "RowsUnindexed", scope));
+            rowsUnchanged = Metrics.newCounter(new MetricName(GROUP, "IndexedColumnFamily", "RowsUnchanged", scope));
+            rowsIndexed = Metrics.newCounter(new MetricName(GROUP, "IndexedColumnFamily", "RowsIndexed", scope));
+        }
+    }
+
+    private static Timer timer(String type, String name, String scope) {
+        return Metrics.newTimer(new MetricName(GROUP, type, name, scope), TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Exports the task counts of an index handler pool.
+     */
+    static void pool(String poolName, final ThreadPoolExecutor executor) {
+        Metrics.newGauge(new MetricName(GROUP, "IndexHandler", "ActiveTasks", poolName), new Gauge<Integer>() {
+            public Integer value() {
+                return executor.getActiveCount();
+            }
+        });
+        Metrics.newGauge(new MetricName(GROUP, "IndexHandler", "PendingTasks", poolName), new Gauge<Integer>() {
+            public Integer value() {
+                return executor.getQueue().size();
+            }
+        });
+        Metrics.newGauge(new MetricName(GROUP, "IndexHandler", "CompletedTasks", poolName), new Gauge<Long>() {
+            public Long value() {
+                return executor.getCompletedTaskCount();
+            }
+        });
+    }
+}
@@ -0,0 +1,302 @@
+package com.hmsonline.cassandra.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.MurmurHash;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per index settings, read from the optional columns of an index row in the
+ * Configuration column family. Settings that are missing or invalid fall back
+ * to the system wide defaults, each on its own: an invalid setting is logged
+ * and doesn't affect the others.
+ *
+ * max_entries - the most entries a single row may produce for the index,
+ * unlimited unless set, so existing indexes keep all their entries
+ * overflow - what to do with a row producing more entries: reject the write,
+ * truncate the entries to max_entries, or log and skip indexing the row
+ * mode - product indexes every combination of the index column values,
+ * correlated only combines the json values found under the same array element
+ * shards - the number of rows the index is spread over, named indexName:bucket
+ * shard_by - the bucket of an entry is the hash of the source row_key, or of the
+ * leading index value so queries with an equality prefix only read one shard
+ * time_bucket - hour, day or month, splits the index into one row per bucket
+ * named indexName:bucket[:shard]
+ * time_source - the time of an entry is its leading index value or the write_time
+ * time_format - SimpleDateFormat pattern of time values, epoch millis if unset
+ * consistency_level - the consistency level of the index writes, the default
+ * level of the index DAO if unset
+ * ttl - seconds after which entries expire, they never do if unset or 0
+ * write_mode - sync writes the entries before the source write is applied,
+ * async hands them to a background writer and doesn't wait for them
+ * include - comma separated plain columns whose values are stored in the
+ * entries, so queries can be answered without reading the source rows
+ * count_depth - keeps a count of the rows per prefix of up to that many leading
+ * index values in the IndexCounts column family, none if unset or 0
+ */
+public class IndexOptions {
+    public static final String MAX_ENTRIES = "max_entries";
+    public static final String OVERFLOW = "overflow";
+    public static final String MODE = "mode";
+    public static final String SHARDS = "shards";
+    public static final String SHARD_BY = "shard_by";
+    public static final String TIME_BUCKET = "time_bucket";
+    public static final String TIME_SOURCE = "time_source";
+    public static final String TIME_FORMAT = "time_format";
+    public static final String CONSISTENCY_LEVEL = "consistency_level";
+    public static final String TTL = "ttl";
+    public static final String WRITE_MODE = "write_mode";
+    public static final String INCLUDE = "include";
+    public static final String COUNT_DEPTH = "count_depth";
+    public static final String SHARD_DELIM = ":";
+
+    private static Logger logger = LoggerFactory.getLogger(IndexOptions.class);
+
+    public enum Overflow {
+        REJECT, TRUNCATE, SKIP
+    }
+
+    public enum Mode {
+        PRODUCT, CORRELATED
+    }
+
+    public enum ShardBy {
+        ROW_KEY, VALUE
+    }
+
+    public enum WriteMode {
+        SYNC, ASYNC
+    }
+
+    public static final IndexOptions DEFAULT = fromProperties("default", new HashMap<String, String>());
+
+    private final int maxEntries;
+    private final Overflow overflow;
+    private final Mode mode;
+    private final int shards;
+    private final ShardBy shardBy;
+    private final TimeBuckets timeBuckets;
+    private final ConsistencyLevel consistency;
+    private final int ttl;
+    private final WriteMode writeMode;
+    private final List<String> includeColumns;
+    private final int countDepth;
+
+    public IndexOptions(int maxEntries, Overflow overflow, Mode mode, int shards, ShardBy shardBy,
+            TimeBuckets timeBuckets, ConsistencyLevel consistency, int ttl, WriteMode writeMode,
+            List<String> includeColumns, int countDepth) {
+        this.maxEntries = maxEntries;
+        this.overflow = overflow;
+        this.mode = mode;
+        this.shards = Math.max(1, shards);
+        this.shardBy = shardBy;
+        this.timeBuckets = timeBuckets;
+        this.consistency = consistency;
+        this.ttl = Math.max(0, ttl);
+        this.writeMode = writeMode;
+        this.includeColumns = Collections.unmodifiableList(new ArrayList<String>(includeColumns));
+        this.countDepth = Math.max(0, countDepth);
+    }
+
+    public static IndexOptions fromProperties(String indexName, Map<String, String> indexProperties) {
+        // Each option is validated on its own, an invalid one falls back to
+        // its default without affecting the others
+        Overflow overflow = Overflow.TRUNCATE;
+        try {
+            overflow = Overflow.valueOf(System.getProperty("cassandra.index.overflow", overflow.name()).toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            logger.warn("Invalid cassandra.index.overflow, using " + overflow + ": " + ex.getMessage());
+        }
+        int maxEntries = intOption(indexName, indexProperties, MAX_ENTRIES,
+                Integer.getInteger("cassandra.index.max_entries", Integer.MAX_VALUE), 0);
+        overflow = enumOption(indexName, indexProperties, OVERFLOW, Overflow.class, overflow);
+        Mode mode = enumOption(indexName, indexProperties, MODE, Mode.class, Mode.PRODUCT);
+        int shards = intOption(indexName, indexProperties, SHARDS, 1, 1);
+        ShardBy shardBy = enumOption(indexName, indexProperties, SHARD_BY, ShardBy.class, ShardBy.ROW_KEY);
+        TimeBuckets timeBuckets = null;
+        TimeBuckets.Granularity granularity = enumOption(indexName, indexProperties, TIME_BUCKET,
+                TimeBuckets.Granularity.class, null);
+        if (granularity != null) {
+            TimeBuckets.Source source = enumOption(indexName, indexProperties, TIME_SOURCE,
+                    TimeBuckets.Source.class, TimeBuckets.Source.VALUE);
+            String timeFormat = StringUtils.trimToNull(indexProperties.get(TIME_FORMAT));
+            try {
+                timeBuckets = new TimeBuckets(granularity, source, timeFormat);
+            } catch (IllegalArgumentException ex) {
+                invalidOption(indexName, TIME_FORMAT, timeFormat, "not bucketing the index", ex);
+            }
+        }
+        ConsistencyLevel consistency = enumOption(indexName, indexProperties, CONSISTENCY_LEVEL,
+                ConsistencyLevel.class, null);
+        int ttl = intOption(indexName, indexProperties, TTL, 0, 0);
+        WriteMode writeMode = enumOption(indexName, indexProperties, WRITE_MODE, WriteMode.class, WriteMode.SYNC);
+        List<String> includeColumns = new ArrayList<String>();
+        if (StringUtils.isNotEmpty(indexProperties.get(INCLUDE))) {
+            for (String column : indexProperties.get(INCLUDE).split(Configuration.COLUMN_DELIM)) {
+                if (StringUtils.isNotBlank(column)) {
+                    includeColumns.add(column.trim());
+                }
+            }
+        }
+        int countDepth = intOption(indexName, indexProperties, COUNT_DEPTH, 0, 0);
+        return new IndexOptions(maxEntries, overflow, mode, shards, shardBy, timeBuckets, consistency, ttl,
+                writeMode, includeColumns, countDepth);
+    }
+
+    private static int intOption(String indexName, Map<String, String> indexProperties, String option,
+            int defaultValue, int min) {
+        String value = indexProperties.get(option);
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result >= min) {
+                return result;
+            }
+            invalidOption(indexName, option, value, "using " + defaultValue, "must be at least " + min);
+        } catch (NumberFormatException ex) {
+            invalidOption(indexName, option, value, "using " + defaultValue, ex);
+        }
+        return defaultValue;
+    }
+
+    private static <T extends Enum<T>> T enumOption(String indexName, Map<String, String> indexProperties,
+            String option, Class<T> type, T defaultValue) {
+        String value = indexProperties.get(option);
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            invalidOption(indexName, option, value, "using " + defaultValue, ex);
+            return defaultValue;
+        }
+    }
+
+    private static void invalidOption(String indexName, String option, String value, String fallback, Exception ex) {
+        invalidOption(indexName, option, value, fallback, ex.getMessage());
+    }
+
+    private static void invalidOption(String indexName, String option, String value, String fallback,
+            String reason) {
+        logger.warn("Invalid " + option + " '" + value + "' for index " + indexName + ", " + fallback + ": "
+                + reason);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public ShardBy getShardBy() {
+        return shardBy;
+    }
+
+    /**
+     * Returns the time buckets of the index, or null if it is not bucketed.
+     */
+    public TimeBuckets getTimeBuckets() {
+        return timeBuckets;
+    }
+
+    /**
+     * Returns the consistency level of the index writes, or null for the
+     * default level of the index DAO.
+     */
+    public ConsistencyLevel getConsistency() {
+        return consistency;
+    }
+
+    /**
+     * Returns the time to live of the entries in seconds, 0 if they don't
+     * expire.
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    /**
+     * Returns the columns whose values are stored in the entries, empty if
+     * the index doesn't cover any.
+     */
+    public List<String> getIncludeColumns() {
+        return includeColumns;
+    }
+
+    /**
+     * Returns the most leading index values rows are counted by, 0 if the
+     * index keeps no counts.
+     */
+    public int getCountDepth() {
+        return countDepth;
+    }
+
+    /**
+     * Returns the index row an entry is written to, the index name itself if
+     * the index is neither sharded nor bucketed. The shard key is the source
+     * row key or the leading index value, depending on shard_by. The bucket
+     * is null for an index without time buckets.
+     */
+    public String getShardRow(String indexName, String bucket, ByteBuffer shardKey) {
+        String row = bucket == null ? indexName : indexName + SHARD_DELIM + bucket;
+        if (shards == 1) {
+            return row;
+        }
+        int hash = MurmurHash.hash32(shardKey, shardKey.position(), shardKey.remaining(), 0);
+        return row + SHARD_DELIM + ((hash & Integer.MAX_VALUE) % shards);
+    }
+
+    public String getShardRow(String indexName, ByteBuffer shardKey) {
+        return getShardRow(indexName, null, shardKey);
+    }
+
+    public String getShardRow(String indexName, String shardKey) {
+        return getShardRow(indexName, null, ByteBufferUtil.bytes(shardKey));
+    }
+
+    /**
+     * Returns all rows of the index, or of one of its time buckets.
+     */
+    public List<String> getShardRows(String indexName, String bucket) {
+        String row = bucket == null ? indexName : indexName + SHARD_DELIM + bucket;
+        List<String> result = new ArrayList<String>(shards);
+        if (shards == 1) {
+            result.add(row);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                result.add(row + SHARD_DELIM + i);
+            }
+        }
+        return result;
+    }
+
+    public List<String> getShardRows(String indexName) {
+        return getShardRows(indexName, null);
+    }
+}
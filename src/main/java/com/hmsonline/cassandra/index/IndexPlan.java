@@ -0,0 +1,127 @@
+package com.hmsonline.cassandra.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.db.ColumnFamily;
+
+import com.hmsonline.cassandra.index.util.ColumnMatcher;
+import com.hmsonline.cassandra.index.util.JsonPathExtractor;
+
+/**
+ * The compiled, immutable indexing configuration of one column family: its
+ * indexes, the union of their columns, column matchers for the column family
+ * and for each index, the json extractors shared by all multi-value columns
+ * with the same prefix, and the options of each index. Correlated indexes get
+ * extractors of their own. The columns included in covering indexes are
+ * fetched and matched along with the index columns, but not indexed.
+ */
+public class IndexPlan {
+    public static final IndexPlan EMPTY = new IndexPlan(new HashMap<String, List<String>>());
+
+    private final Map<String, List<String>> indexes;
+    private final Set<String> indexColumns;
+    private final Set<String> fetchColumns;
+    private final ColumnMatcher matcher;
+    private final Map<String, ColumnMatcher> indexMatchers = new HashMap<String, ColumnMatcher>();
+    private final Map<String, JsonPathExtractor> extractors;
+    private final Map<String, IndexOptions> options;
+    private final Map<String, Map<String, JsonPathExtractor>> correlatedExtractors = new HashMap<String, Map<String, JsonPathExtractor>>();
+
+    public IndexPlan(Map<String, List<String>> indexes) {
+        this(indexes, new HashMap<String, IndexOptions>());
+    }
+
+    public IndexPlan(Map<String, List<String>> indexes, Map<String, IndexOptions> options) {
+        Map<String, List<String>> copy = new LinkedHashMap<String, List<String>>();
+        Set<String> columns = new LinkedHashSet<String>();
+        Set<String> fetched = new LinkedHashSet<String>();
+        Set<String> productColumns = new LinkedHashSet<String>();
+        this.options = new HashMap<String, IndexOptions>(options);
+        for (Map.Entry<String, List<String>> index : indexes.entrySet()) {
+            copy.put(index.getKey(), Collections.unmodifiableList(new ArrayList<String>(index.getValue())));
+            columns.addAll(index.getValue());
+            List<String> matched = new ArrayList<String>(index.getValue());
+            matched.addAll(getOptions(index.getKey()).getIncludeColumns());
+            fetched.addAll(matched);
+            indexMatchers.put(index.getKey(), new ColumnMatcher(matched));
+            if (getOptions(index.getKey()).getMode() == IndexOptions.Mode.CORRELATED) {
+                correlatedExtractors.put(index.getKey(), JsonPathExtractor.compile(index.getValue()));
+            } else {
+                productColumns.addAll(index.getValue());
+            }
+        }
+        this.indexes = Collections.unmodifiableMap(copy);
+        this.indexColumns = Collections.unmodifiableSet(columns);
+        this.fetchColumns = Collections.unmodifiableSet(fetched);
+        this.matcher = new ColumnMatcher(fetched);
+        this.extractors = JsonPathExtractor.compile(productColumns);
+    }
+
+    public boolean isEmpty() {
+        return indexes.isEmpty();
+    }
+
+    public Map<String, List<String>> getIndexes() {
+        return indexes;
+    }
+
+    public Set<String> getIndexColumns() {
+        return indexColumns;
+    }
+
+    /**
+     * Returns the columns to read from a source row to index it: the index
+     * columns and the columns included in covering indexes.
+     */
+    public Set<String> getFetchColumns() {
+        return fetchColumns;
+    }
+
+    /**
+     * Returns the options of an index, or the defaults if it has none.
+     */
+    public IndexOptions getOptions(String indexName) {
+        IndexOptions result = options.get(indexName);
+        return result == null ? IndexOptions.DEFAULT : result;
+    }
+
+    /**
+     * Returns the json extractors of the multi-value columns of uncorrelated
+     * indexes, keyed by column prefix.
+     */
+    public Map<String, JsonPathExtractor> getExtractors() {
+        return extractors;
+    }
+
+    /**
+     * Returns the json extractors of a correlated index, keyed by column
+     * prefix, or null if the index is not correlated.
+     */
+    public Map<String, JsonPathExtractor> getCorrelatedExtractors(String indexName) {
+        return correlatedExtractors.get(indexName);
+    }
+
+    /**
+     * Whether the mutation touches any column indexed or included in this
+     * column family.
+     */
+    public boolean indexChanged(ColumnFamily columnFamily) {
+        return matcher.matchesAny(columnFamily);
+    }
+
+    /**
+     * Whether the mutation touches any column of the given index, or included
+     * in it.
+     */
+    public boolean indexChanged(ColumnFamily columnFamily, String indexName) {
+        ColumnMatcher indexMatcher = indexMatchers.get(indexName);
+        return indexMatcher != null && indexMatcher.matchesAny(columnFamily);
+    }
+}
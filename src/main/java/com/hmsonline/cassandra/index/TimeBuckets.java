@@ -0,0 +1,185 @@
+package com.hmsonline.cassandra.index;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Assigns the entries of a time bucketed index to hour, day or month buckets
+ * (UTC). The time of an entry is either its leading index value, as epoch
+ * milliseconds or in the configured SimpleDateFormat pattern, or the time of
+ * the write that created it.
+ *
+ * Bucket names are computed from the UTC epoch milliseconds, without a
+ * formatter, and time values are parsed with a formatter kept per thread.
+ */
+public class TimeBuckets {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    // Earlier times are in the Julian calendar, named by a formatter
+    private static final long GREGORIAN_CUTOVER = -12219292800000L;
+    // Later times have more than 4 digit years, named by a formatter
+    private static final long YEAR_10000 = 253402300800000L;
+    // The most buckets a query or deletion may span, 10000 hours is over a year
+    public static final int MAX_BUCKETS = Integer.getInteger("cassandra.index.max_time_buckets", 10000);
+
+    public enum Granularity {
+        HOUR("yyyyMMddHH", Calendar.HOUR_OF_DAY), DAY("yyyyMMdd", Calendar.DAY_OF_MONTH), MONTH("yyyyMM",
+                Calendar.MONTH);
+
+        private final String pattern;
+        private final int field;
+
+        private Granularity(String pattern, int field) {
+            this.pattern = pattern;
+            this.field = field;
+        }
+    }
+
+    public enum Source {
+        VALUE, WRITE_TIME
+    }
+
+    private final Granularity granularity;
+    private final Source source;
+    private final String timeFormat;
+    private final ThreadLocal<SimpleDateFormat> timeFormats;
+    private final ThreadLocal<SimpleDateFormat> bucketFormats;
+
+    /**
+     * @throws IllegalArgumentException if the time format is not a valid
+     * SimpleDateFormat pattern
+     */
+    public TimeBuckets(Granularity granularity, Source source, String timeFormat) {
+        if (timeFormat != null) {
+            new SimpleDateFormat(timeFormat);
+        }
+        this.granularity = granularity;
+        this.source = source;
+        this.timeFormat = timeFormat;
+        this.timeFormats = formats(timeFormat);
+        this.bucketFormats = formats(granularity.pattern);
+    }
+
+    public Granularity getGranularity() {
+        return granularity;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public String getBucket(long time) {
+        if (time < GREGORIAN_CUTOVER || time >= YEAR_10000) {
+            return bucketFormats.get().format(time);
+        }
+        // Civil date of the day in the proleptic Gregorian calendar, with
+        // years starting in March so leap days come last
+        long days = time / DAY_MILLIS;
+        long millis = time % DAY_MILLIS;
+        if (millis < 0) {
+            days--;
+            millis += DAY_MILLIS;
+        }
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        StringBuilder bucket = new StringBuilder(10);
+        pad(bucket, year, 4);
+        pad(bucket, month, 2);
+        if (granularity != Granularity.MONTH) {
+            pad(bucket, day, 2);
+        }
+        if (granularity == Granularity.HOUR) {
+            pad(bucket, (int) (millis / HOUR_MILLIS), 2);
+        }
+        return bucket.toString();
+    }
+
+    private static void pad(StringBuilder bucket, int value, int digits) {
+        for (int limit = 10; --digits > 0; limit *= 10) {
+            if (value < limit) {
+                bucket.append('0');
+            }
+        }
+        bucket.append(value);
+    }
+
+    /**
+     * Parses a leading index value, returns null if it is not a time.
+     */
+    public Long parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return timeFormat == null ? Long.valueOf(value.trim()) : timeFormats.get().parse(value).getTime();
+        } catch (NumberFormatException ex) {
+            return null;
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the buckets overlapping [from, to], oldest first.
+     *
+     * @throws IllegalArgumentException if the range spans more than
+     * MAX_BUCKETS buckets
+     */
+    public List<String> getBuckets(long from, long to) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(from);
+        // Truncate to the start of the bucket
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (granularity != Granularity.HOUR) {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        if (granularity == Granularity.MONTH) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+
+        List<String> result = new ArrayList<String>();
+        while (calendar.getTimeInMillis() <= to) {
+            if (result.size() == MAX_BUCKETS) {
+                throw new IllegalArgumentException("Time range spans more than " + MAX_BUCKETS + " "
+                        + granularity.name().toLowerCase() + " buckets");
+            }
+            result.add(getBucket(calendar.getTimeInMillis()));
+            calendar.add(granularity.field, 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the formatters of a pattern, one per thread as they aren't
+     * thread safe, or null without a pattern.
+     */
+    private static ThreadLocal<SimpleDateFormat> formats(final String pattern) {
+        if (pattern == null) {
+            return null;
+        }
+        return new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                SimpleDateFormat format = new SimpleDateFormat(pattern);
+                format.setTimeZone(UTC);
+                format.setLenient(false);
+                return format;
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.hector.api.Keyspace;
+
+import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hmsonline.cassandra.index.IndexExecutors;
+import com.hmsonline.cassandra.index.IndexMetrics;
+
+/**
+ * Writes index batches in the background through another IndexDao, for the
+ * indexes with an async write mode. Callers return as soon as their batch is
+ * queued. When the queue is full the batch is dropped rather than slowing
+ * down the caller. A batch that fails to be written, possibly after some of
+ * its chunks were, is written again up to maxAttempts times. Dropped and
+ * failed entries are logged and counted, and stay missing from their index
+ * until it is rebuilt. The counts that go with a batch are written once,
+ * after its entries, by the same task. The pool is registered as
+ * org.apache.cassandra.indexing:type=IndexAsyncWriter.
+ */
+public class AsyncIndexDao extends IndexDao {
+    public static final String POOL_NAME = "IndexAsyncWriter";
+
+    private static Logger logger = LoggerFactory.getLogger(AsyncIndexDao.class);
+
+    private final IndexDao delegate;
+    private final ThreadPoolExecutor executor;
+    private final int maxAttempts;
+
+    public AsyncIndexDao(Keyspace keyspace, IndexDao delegate, int threads, int queueSize) {
+        this(keyspace, delegate, threads, queueSize, 3);
+    }
+
+    public AsyncIndexDao(Keyspace keyspace, IndexDao delegate, int threads, int queueSize, int maxAttempts) {
+        super(keyspace);
+        this.delegate = delegate;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.executor = new JMXEnabledThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), new NamedThreadFactory(POOL_NAME),
+                IndexExecutors.JMX_PATH);
+        // Cassandra's pools block the caller when full, fail fast instead
+        this.executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(IndexBatch batch) {
+        execute(batch, new CountBatch());
+    }
+
+    @Override
+    public void execute(final IndexBatch batch, final CountBatch counts) {
+        if (batch.isEmpty() && counts.isEmpty()) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (write(batch)) {
+                        delegate.writeCounts(counts);
+                    } else {
+                        IndexMetrics.countsDropped.inc(counts.size());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            IndexMetrics.asyncEntriesDropped.inc(batch.size());
+            IndexMetrics.countsDropped.inc(counts.size());
+            logger.warn("Async index writer is overloaded, dropped a batch of " + batch.size() + " entries.");
+        }
+    }
+
+    /**
+     * Writes the entries of a batch, again on failure, and returns whether
+     * they were all written.
+     */
+    private boolean write(IndexBatch batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        for (int attempt = 1;; attempt++) {
+            try {
+                delegate.execute(batch);
+                return true;
+            } catch (Throwable t) {
+                if (attempt >= maxAttempts) {
+                    IndexMetrics.asyncEntriesFailed.inc(batch.size());
+                    logger.warn("Failed to write async index batch of " + batch.size() + " entries after "
+                            + attempt + " attempts", t);
+                    return false;
+                }
+                logger.debug("Failed to write async index batch of " + batch.size() + " entries, retrying", t);
+            }
+        }
+    }
+
+    public int getPendingBatches() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Writes the queued batches, waiting up to the timeout for them, and
+     * unregisters the pool.
+     */
+    public void stop(long timeout) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+}
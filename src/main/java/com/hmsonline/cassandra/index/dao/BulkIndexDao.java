@@ -0,0 +1,102 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+import me.prettyprint.hector.api.Keyspace;
+
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.sstable.SSTableSimpleUnsortedWriter;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
+
+/**
+ * Writes index batches as SSTables of the Indexes column family into
+ * directory/Indexing/Indexes, ready to be streamed into the cluster with
+ * sstableloader. Rows are buffered and sorted in memory, and an SSTable is
+ * written each time the buffer fills up. Only insertions can be written, not
+ * deletions or counts, and nothing is visible until the writer is closed and
+ * the SSTables are loaded.
+ * Entries with a ttl expire counting from when they are written here.
+ * The mutator based methods inherited from IndexDao still go through Hector.
+ *
+ * Cassandra's SSTable writer reads the descriptor of the files it writes by
+ * reflection, which Java 9 and later only allow with --add-opens
+ * java.base/java.io=ALL-UNNAMED. Without it the writer's thread dies and
+ * closing it never returns, so the constructor fails instead.
+ */
+public class BulkIndexDao extends IndexDao {
+    private final SSTableSimpleUnsortedWriter writer;
+    private final File directory;
+
+    public BulkIndexDao(Keyspace keyspace, File directory, IPartitioner<?> partitioner, AbstractType<?> comparator,
+            int bufferSizeInMB) throws IOException {
+        super(keyspace);
+        if (!canWriteSSTables()) {
+            throw new IOException("Writing SSTables requires running with"
+                    + " --add-opens java.base/java.io=ALL-UNNAMED");
+        }
+        this.directory = new File(new File(directory, KEYSPACE), COLUMN_FAMILY);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Unable to create bulk index output directory: " + this.directory);
+        }
+        this.writer = new SSTableSimpleUnsortedWriter(this.directory, partitioner, KEYSPACE, COLUMN_FAMILY,
+                comparator, null, bufferSizeInMB);
+    }
+
+    /**
+     * Whether this JVM lets Cassandra's SSTable writer read file descriptors.
+     */
+    public static boolean canWriteSSTables() {
+        try {
+            FBUtilities.getProtectedField(FileDescriptor.class, "fd");
+            return true;
+        } catch (RuntimeException ex) {
+            return false;
+        } catch (AssertionError ex) {
+            return false;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized void execute(IndexBatch batch) {
+        try {
+            String row = null;
+            for (IndexBatch.Entry entry : batch.getEntries()) {
+                if (entry.isDeletion()) {
+                    throw new UnsupportedOperationException("Bulk index output can't write deletions.");
+                }
+                if (!entry.getIndexName().equals(row)) {
+                    row = entry.getIndexName();
+                    writer.newRow(ByteBufferUtil.bytes(row));
+                }
+                if (entry.getTtl() > 0) {
+                    writer.addExpiringColumn(entry.getName(), entry.getValue(), entry.getTimestamp(), entry.getTtl(),
+                            System.currentTimeMillis() + entry.getTtl() * 1000L);
+                } else {
+                    writer.addColumn(entry.getName(), entry.getValue(), entry.getTimestamp());
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to write index batch of " + batch.size() + " entries", ex);
+        }
+    }
+
+    @Override
+    public void execute(CountBatch counts) {
+        throw new UnsupportedOperationException("Bulk index output can't write counts.");
+    }
+
+    /**
+     * Writes the buffered rows and waits for the last SSTable to be complete.
+     */
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,186 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Keeps the index column values of recently written rows so the handler can
+ * skip the read-before-write for hot rows. Entries are evicted in LRU order
+ * once either the entry or the byte limit is exceeded, and expire after a
+ * while to bound staleness.
+ *
+ * The cache is only kept up to date with the writes coordinated by this node,
+ * so it should only be enabled when all writes to the indexed rows go through
+ * the same node.
+ */
+public class CachingRowReader implements RowReader {
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int COLUMN_OVERHEAD = 48;
+
+    private final RowReader delegate;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long expiry;
+    private final LinkedHashMap<CacheKey, CacheEntry> cache = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public CachingRowReader(RowReader delegate, int maxEntries, long maxBytes, long expiry) {
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.expiry = expiry;
+    }
+
+    public Map<String, Map<String, String>> fetchRows(String keyspace, String columnFamily, Collection<String> keys,
+            Collection<String> indexColumns) throws Exception {
+        Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+        List<String> missing = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (String key : keys) {
+                CacheKey cacheKey = new CacheKey(keyspace, columnFamily, key);
+                CacheEntry entry = cache.get(cacheKey);
+                if (entry != null && (now > entry.expires || !sameColumns(entry.columns, indexColumns))) {
+                    remove(cacheKey);
+                    entry = null;
+                }
+                if (entry == null) {
+                    missing.add(key);
+                    misses++;
+                } else {
+                    result.put(key, new HashMap<String, String>(entry.row));
+                    hits++;
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            result.putAll(delegate.fetchRows(keyspace, columnFamily, missing, indexColumns));
+        }
+        return result;
+    }
+
+    /**
+     * Records the index column values of a row after a write.
+     */
+    public void update(String keyspace, String columnFamily, String key, Collection<String> indexColumns,
+            Map<String, String> row) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (Map.Entry<String, String> column : row.entrySet()) {
+            if (column.getValue() != null && IndexUtil.contains(indexColumns, column.getKey())) {
+                values.put(column.getKey(), column.getValue());
+            }
+        }
+        CacheEntry entry = new CacheEntry(new HashSet<String>(indexColumns), values, System.currentTimeMillis()
+                + expiry, weigh(key, values));
+
+        synchronized (this) {
+            CacheKey cacheKey = new CacheKey(keyspace, columnFamily, key);
+            remove(cacheKey);
+            cache.put(cacheKey, entry);
+            bytes += entry.weight;
+
+            Iterator<CacheEntry> eldest = cache.values().iterator();
+            while ((cache.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                bytes -= eldest.next().weight;
+                eldest.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidate(String keyspace, String columnFamily, String key) {
+        remove(new CacheKey(keyspace, columnFamily, key));
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void remove(CacheKey cacheKey) {
+        CacheEntry removed = cache.remove(cacheKey);
+        if (removed != null) {
+            bytes -= removed.weight;
+        }
+    }
+
+    private static boolean sameColumns(Set<String> cached, Collection<String> indexColumns) {
+        return cached.size() == indexColumns.size() && cached.containsAll(indexColumns);
+    }
+
+    private static long weigh(String key, Map<String, String> row) {
+        long weight = ENTRY_OVERHEAD + 2 * key.length();
+        for (Map.Entry<String, String> column : row.entrySet()) {
+            weight += COLUMN_OVERHEAD + 2 * (column.getKey().length() + column.getValue().length());
+        }
+        return weight;
+    }
+
+    static class CacheEntry {
+        private final Set<String> columns;
+        private final Map<String, String> row;
+        private final long expires;
+        private final long weight;
+
+        CacheEntry(Set<String> columns, Map<String, String> row, long expires, long weight) {
+            this.columns = columns;
+            this.row = row;
+            this.expires = expires;
+            this.weight = weight;
+        }
+    }
+
+    static class CacheKey {
+        private final String keyspace;
+        private final String columnFamily;
+        private final String key;
+
+        CacheKey(String keyspace, String columnFamily, String key) {
+            this.keyspace = keyspace;
+            this.columnFamily = columnFamily;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return key.equals(other.key) && columnFamily.equals(other.columnFamily) && keyspace.equals(other.keyspace);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * keyspace.hashCode() + columnFamily.hashCode()) + key.hashCode();
+        }
+    }
+}
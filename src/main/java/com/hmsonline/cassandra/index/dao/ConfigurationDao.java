@@ -2,6 +2,11 @@ package com.hmsonline.cassandra.index.dao;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.hector.api.Keyspace;
@@ -13,50 +18,133 @@ import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.RangeSlicesQuery;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.hmsonline.cassandra.index.Configuration;
+import com.hmsonline.cassandra.index.IndexMetrics;
 import com.hmsonline.cassandra.index.util.IndexUtil;
 
+/**
+ * Loads the indexing configuration. After the first load the configuration is
+ * reloaded by a background thread and swapped in as a whole, so request
+ * threads never wait for a reload and keep using the previous configuration
+ * while one is in flight. An empty configuration is cached like any other.
+ *
+ * Every load takes a generation when it starts and its configuration is only
+ * swapped in if no later load has been, so a slow reload never replaces the
+ * result of a newer one. If the first load fails the configuration is empty,
+ * nothing is indexed until a reload succeeds, and reloads are retried every
+ * retry interval instead of every refresh interval. Failed loads are counted
+ * in IndexMetrics.configurationLoadsFailed.
+ */
 public class ConfigurationDao extends AbstractCassandraDao {
     public static final String KEYSPACE = IndexUtil.INDEXING_KEYSPACE;
     public static final String COLUMN_FAMILY = "Configuration";
-    private static final int REFRESH_INTERVAL = 5 * 60 * 1000; // 15 Minutes
+    private static final long REFRESH_INTERVAL = Long.getLong("cassandra.index.config.refresh_interval", 5 * 60 * 1000);
+    private static final long REFRESH_JITTER = Long.getLong("cassandra.index.config.refresh_jitter", 30 * 1000);
+    private static final long RETRY_INTERVAL = Long.getLong("cassandra.index.config.retry_interval", 10 * 1000);
 
     private static Logger logger = LoggerFactory.getLogger(ConfigurationDao.class);
-    private static long lastFetchTime = -1;
-    private static Configuration config;
+    private static volatile Configuration config;
+    private static final AtomicLong generations = new AtomicLong();
+    // Generation of the load config comes from
+    private static long published;
+    private static ScheduledExecutorService refresher;
+    private static ConfigurationDao refreshingDao;
+    private static final Random random = new Random();
 
     public ConfigurationDao(Keyspace keyspace) {
         super(keyspace);
     }
 
     public Configuration getConfiguration() {
-        long currentTime = System.currentTimeMillis();
-        long timeSinceRefresh = currentTime - ConfigurationDao.lastFetchTime;
+        Configuration current = config;
+        if (current == null) {
+            // Nothing to serve yet, only the very first load is synchronous
+            boolean loaded = true;
+            synchronized (ConfigurationDao.class) {
+                if (config == null) {
+                    long generation = generations.incrementAndGet();
+                    Configuration first;
+                    try {
+                        first = loadConfiguration();
+                    } catch (RuntimeException ex) {
+                        IndexMetrics.configurationLoadsFailed.inc();
+                        logger.error("Could not load the indexing configuration, indexing nothing until it loads.", ex);
+                        first = Configuration.EMPTY;
+                        loaded = false;
+                    }
+                    publish(generation, first);
+                }
+                current = config;
+            }
+            startRefresher(this, loaded ? REFRESH_INTERVAL : RETRY_INTERVAL);
+        }
+        return current;
+    }
+
+    /**
+     * Reloads the configuration on the calling thread.
+     */
+    public void updateConfiguration() {
+        logger.debug("Refreshing indexing configuration.");
+        long generation = generations.incrementAndGet();
+        Configuration loaded;
+        try {
+            loaded = loadConfiguration();
+        } catch (RuntimeException ex) {
+            IndexMetrics.configurationLoadsFailed.inc();
+            throw ex;
+        }
+        publish(generation, loaded);
+    }
+
+    private static synchronized void publish(long generation, Configuration loaded) {
+        if (generation > published) {
+            published = generation;
+            config = loaded;
+        } else {
+            logger.debug("Dropping indexing configuration load " + generation + ", load " + published
+                    + " was more recent.");
+        }
+    }
 
-        if (config == null || config.isEmpty() || timeSinceRefresh > REFRESH_INTERVAL) {
-            updateConfiguration();
+    private static synchronized void startRefresher(ConfigurationDao dao, long delay) {
+        if (refresher == null) {
+            refreshingDao = dao;
+            refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("IndexConfigurationRefresh"));
+            scheduleRefresh(delay);
         }
-        return config;
     }
-    
-    public synchronized void updateConfiguration() {
-        long currentTime = System.currentTimeMillis();
-        long timeSinceRefresh = currentTime - ConfigurationDao.lastFetchTime;
-
-        if (config == null || config.isEmpty() || timeSinceRefresh > REFRESH_INTERVAL) {
-            logger.debug("Refreshing indexing configuration.");
-            Configuration configuration = loadConfiguration();
-            config = configuration;
+
+    private static synchronized void scheduleRefresh(long delay) {
+        long jitter = REFRESH_JITTER > 0 ? (long) (random.nextDouble() * REFRESH_JITTER) : 0;
+        refresher.schedule(new Runnable() {
+            public void run() {
+                refresh(true);
+            }
+        }, delay + jitter, TimeUnit.MILLISECONDS);
+    }
+
+    private static void refresh(boolean reschedule) {
+        long delay = RETRY_INTERVAL;
+        try {
+            refreshingDao.updateConfiguration();
+            delay = REFRESH_INTERVAL;
+        } catch (Throwable t) {
+            logger.warn("Could not refresh the indexing configuration, keeping the current one.", t);
+        } finally {
+            if (reschedule) {
+                scheduleRefresh(delay);
+            }
         }
-        ConfigurationDao.lastFetchTime = currentTime;        
     }
 
-    private Configuration loadConfiguration() {
+    protected Configuration loadConfiguration() {
         try {
-            Configuration config = new Configuration();
+            Configuration.Builder config = new Configuration.Builder();
 
             RangeSlicesQuery<String, String, String> rangeSlicesQuery = HFactory  
                     .createRangeSlicesQuery(this.getKeyspace(), StringSerializer.get(),  
@@ -81,13 +169,35 @@ public class ConfigurationDao extends AbstractCassandraDao {
                 }  
                 config.addIndex(indexName, indexProperties);
             }  
-            return config;
+            return config.build();
         } catch (Exception ex) {
             throw new RuntimeException("Failed to load indexing configuration: " + KEYSPACE + ":" + COLUMN_FAMILY, ex);
         }
     }
 
-    public static void forceRefresh() {
-        ConfigurationDao.lastFetchTime = -1;
+    /**
+     * Reloads the configuration in the background as soon as possible.
+     */
+    public static synchronized void forceRefresh() {
+        if (refresher != null) {
+            refresher.execute(new Runnable() {
+                public void run() {
+                    refresh(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets the configuration and stops the refresher, for tests.
+     */
+    static synchronized void reset() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        refreshingDao = null;
+        config = null;
+        published = generations.get();
     }
 }
@@ -0,0 +1,101 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+
+/**
+ * Deltas to the counts of index prefixes, kept in counter columns of the
+ * IndexCounts column family. Counter updates aren't idempotent, so unlike an
+ * IndexBatch a count batch is never journaled or retried: it is written once,
+ * after the entries it goes with, and dropped if that fails.
+ */
+public class CountBatch {
+    private final List<Delta> deltas = new ArrayList<Delta>();
+
+    /**
+     * @param consistency null for the default level of the DAO
+     */
+    public void add(String indexName, ByteBuffer prefix, long delta, ConsistencyLevel consistency) {
+        deltas.add(new Delta(indexName, prefix, delta, consistency));
+    }
+
+    /**
+     * Appends the deltas of another batch to this one.
+     */
+    public void addAll(CountBatch batch) {
+        deltas.addAll(batch.deltas);
+    }
+
+    public List<Delta> getDeltas() {
+        return deltas;
+    }
+
+    public boolean isEmpty() {
+        return deltas.isEmpty();
+    }
+
+    public int size() {
+        return deltas.size();
+    }
+
+    /**
+     * Groups the deltas by the consistency level they are written at, in the
+     * order of their first delta. The default level is the null key.
+     */
+    public Map<ConsistencyLevel, List<Delta>> byConsistency() {
+        Map<ConsistencyLevel, List<Delta>> result = new LinkedHashMap<ConsistencyLevel, List<Delta>>();
+        for (Delta delta : deltas) {
+            List<Delta> group = result.get(delta.getConsistency());
+            if (group == null) {
+                group = new ArrayList<Delta>();
+                result.put(delta.getConsistency(), group);
+            }
+            group.add(delta);
+        }
+        return result;
+    }
+
+    public static class Delta {
+        private final String indexName;
+        private final ByteBuffer prefix;
+        private final long delta;
+        private final ConsistencyLevel consistency;
+
+        Delta(String indexName, ByteBuffer prefix, long delta, ConsistencyLevel consistency) {
+            this.indexName = indexName;
+            this.prefix = prefix;
+            this.delta = delta;
+            this.consistency = consistency;
+        }
+
+        /**
+         * The index, which is also the row of its counts.
+         */
+        public String getIndexName() {
+            return indexName;
+        }
+
+        /**
+         * The encoded leading index values, the name of the counter column.
+         */
+        public ByteBuffer getPrefix() {
+            return prefix;
+        }
+
+        public long getDelta() {
+            return delta;
+        }
+
+        /**
+         * The consistency level of the write, null for the default level.
+         */
+        public ConsistencyLevel getConsistency() {
+            return consistency;
+        }
+    }
+}
@@ -1,14 +1,71 @@
 package com.hmsonline.cassandra.index.dao;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.factory.HFactory;
 
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ConsistencyLevel;
+
 
 public class DaoFactory {
     public static IndexDao getIndexDAO(Cluster cluster) {
         Keyspace keyspace = HFactory.createKeyspace(IndexDao.KEYSPACE, cluster);
-        return new IndexDao(keyspace);
+        return new IndexDao(keyspace, cluster);
+    }
+
+    public static IndexDao getLocalIndexDAO(Cluster cluster, ConsistencyLevel consistency) {
+        Keyspace keyspace = HFactory.createKeyspace(IndexDao.KEYSPACE, cluster);
+        return new LocalIndexDao(keyspace, consistency);
+    }
+
+    /**
+     * Returns a DAO writing index SSTables for sstableloader, for the
+     * partitioner and Indexes comparator of the loaded schema.
+     */
+    public static BulkIndexDao getBulkIndexDAO(Cluster cluster, File directory, int bufferSizeInMB)
+            throws IOException {
+        CFMetaData metadata = Schema.instance.getCFMetaData(IndexDao.KEYSPACE, IndexDao.COLUMN_FAMILY);
+        if (metadata == null) {
+            throw new IOException("Column family " + IndexDao.KEYSPACE + "." + IndexDao.COLUMN_FAMILY
+                    + " is not in the schema.");
+        }
+        Keyspace keyspace = HFactory.createKeyspace(IndexDao.KEYSPACE, cluster);
+        return new BulkIndexDao(keyspace, directory, DatabaseDescriptor.getPartitioner(), metadata.comparator,
+                bufferSizeInMB);
+    }
+
+    /**
+     * Returns a started DAO coalescing the batches of concurrent callers into
+     * groups written by the given DAO.
+     */
+    public static GroupCommitIndexDao getGroupCommitIndexDAO(Cluster cluster, IndexDao delegate, long window,
+            int maxEntries, int writers) {
+        Keyspace keyspace = HFactory.createKeyspace(IndexDao.KEYSPACE, cluster);
+        GroupCommitIndexDao indexDao = new GroupCommitIndexDao(keyspace, delegate, window, maxEntries, writers);
+        indexDao.start();
+        return indexDao;
+    }
+
+    /**
+     * Returns a DAO writing batches in the background through the given DAO,
+     * for indexes whose writes aren't waited for.
+     */
+    public static AsyncIndexDao getAsyncIndexDAO(Cluster cluster, IndexDao delegate, int threads, int queueSize,
+            int maxAttempts) {
+        Keyspace keyspace = HFactory.createKeyspace(IndexDao.KEYSPACE, cluster);
+        return new AsyncIndexDao(keyspace, delegate, threads, queueSize, maxAttempts);
+    }
+
+    public static RowHydrator getRowHydrator(Cluster cluster, String keyspace, ExecutorService executor,
+            int batchSize, int concurrency) {
+        return new RowHydrator(HFactory.createKeyspace(keyspace, cluster), executor, batchSize, concurrency);
     }
 
     public static ConfigurationDao getConfigurationDAO(Cluster cluster) {
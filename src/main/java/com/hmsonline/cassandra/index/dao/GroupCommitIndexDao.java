@@ -0,0 +1,155 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.hector.api.Keyspace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the index batches of concurrent callers into shared batches
+ * written by another IndexDao. A writer takes the oldest pending batch, waits
+ * up to the window for more until maxEntries are pending, and writes them all
+ * in one go. Each caller blocks until the group its batch went into has been
+ * written, and fails with it.
+ *
+ * Under light load a batch waits at most the window, under heavy load the
+ * writers are busy and batches pile up into large groups on their own.
+ * Counts aren't coalesced, they go straight to the other IndexDao.
+ */
+public class GroupCommitIndexDao extends IndexDao {
+    private static Logger logger = LoggerFactory.getLogger(GroupCommitIndexDao.class);
+
+    private final IndexDao delegate;
+    private final long window;
+    private final int maxEntries;
+    private final int writers;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    private volatile boolean running;
+
+    /**
+     * @param window in microseconds
+     */
+    public GroupCommitIndexDao(Keyspace keyspace, IndexDao delegate, long window, int maxEntries, int writers) {
+        super(keyspace);
+        this.delegate = delegate;
+        this.window = window;
+        this.maxEntries = maxEntries;
+        this.writers = writers;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < writers; i++) {
+            Thread writer = new Thread(new Writer(), "IndexGroupCommit:" + (i + 1));
+            writer.setDaemon(true);
+            writer.start();
+        }
+        logger.info("Index group commit started with " + writers + " writers, a window of " + window
+                + " us and up to " + maxEntries + " entries per group.");
+    }
+
+    @Override
+    public void execute(IndexBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (!running) {
+            throw new IllegalStateException("Index group commit is not running.");
+        }
+        Pending pending = new Pending(batch);
+        queue.add(pending);
+        try {
+            pending.done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for an index batch of " + batch.size()
+                    + " entries to be written", ex);
+        }
+        if (pending.error != null) {
+            throw new RuntimeException("Failed to write index batch of " + batch.size() + " entries", pending.error);
+        }
+    }
+
+    @Override
+    public void execute(CountBatch counts) {
+        delegate.execute(counts);
+    }
+
+    public int getPendingBatches() {
+        return queue.size();
+    }
+
+    private void writeGroup(Pending first) {
+        List<Pending> group = new ArrayList<Pending>();
+        group.add(first);
+        int entries = first.batch.size();
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(window);
+        try {
+            while (entries < maxEntries) {
+                Pending next = queue.poll();
+                if (next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                }
+                group.add(next);
+                entries += next.batch.size();
+            }
+        } catch (InterruptedException ex) {
+            // Still write what was collected, its callers are waiting
+            Thread.currentThread().interrupt();
+        }
+
+        IndexBatch merged = new IndexBatch();
+        for (Pending pending : group) {
+            merged.addAll(pending.batch);
+        }
+        Throwable error = null;
+        try {
+            delegate.execute(merged);
+        } catch (Throwable t) {
+            error = t;
+        }
+        for (Pending pending : group) {
+            pending.error = error;
+            pending.done.countDown();
+        }
+    }
+
+    static class Pending {
+        private final IndexBatch batch;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        Pending(IndexBatch batch) {
+            this.batch = batch;
+        }
+    }
+
+    class Writer implements Runnable {
+        public void run() {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    writeGroup(queue.take());
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+}
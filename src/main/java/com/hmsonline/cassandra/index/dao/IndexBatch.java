@@ -0,0 +1,234 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * A set of index insertions and deletions to be written to the Indexes column
+ * family in one round trip. Unlike a Hector Mutator, a batch can be serialized
+ * so it can be journaled and applied later. Index column names are kept
+ * encoded, exactly as they are written. Each entry carries the time to live
+ * and consistency level of its index, and insertions the column value, empty
+ * unless the index covers some columns.
+ */
+public class IndexBatch {
+    // Serialized batches start with the format version, batches in any other
+    // format are refused: the index journal has to be drained before an
+    // upgrade that changes the format
+    private static final int FORMAT_VERSION = 1;
+
+    public enum Kind {
+        INSERTION((byte) 0), DELETION((byte) 1);
+
+        private final byte code;
+
+        private Kind(byte code) {
+            this.code = code;
+        }
+
+        static Kind fromCode(byte code) throws IOException {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+            throw new IOException("Unknown index batch entry kind " + code);
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public void addInsertion(String indexName, String index, long timestamp) {
+        addInsertion(indexName, ByteBufferUtil.bytes(index), timestamp);
+    }
+
+    public void addInsertion(String indexName, ByteBuffer name, long timestamp) {
+        addInsertion(indexName, name, timestamp, 0, null);
+    }
+
+    /**
+     * @param ttl in seconds, 0 if the entry doesn't expire
+     * @param consistency null for the default level of the DAO
+     */
+    public void addInsertion(String indexName, ByteBuffer name, long timestamp, int ttl, ConsistencyLevel consistency) {
+        addInsertion(indexName, name, ByteBufferUtil.EMPTY_BYTE_BUFFER, timestamp, ttl, consistency);
+    }
+
+    public void addInsertion(String indexName, ByteBuffer name, ByteBuffer value, long timestamp, int ttl,
+            ConsistencyLevel consistency) {
+        entries.add(new Entry(Kind.INSERTION, indexName, name, value, timestamp, ttl, consistency));
+    }
+
+    public void addDeletion(String indexName, String index, long timestamp) {
+        addDeletion(indexName, ByteBufferUtil.bytes(index), timestamp);
+    }
+
+    public void addDeletion(String indexName, ByteBuffer name, long timestamp) {
+        addDeletion(indexName, name, timestamp, null);
+    }
+
+    public void addDeletion(String indexName, ByteBuffer name, long timestamp, ConsistencyLevel consistency) {
+        entries.add(new Entry(Kind.DELETION, indexName, name, ByteBufferUtil.EMPTY_BYTE_BUFFER, timestamp, 0,
+                consistency));
+    }
+
+    /**
+     * Appends the entries of another batch to this one.
+     */
+    public void addAll(IndexBatch batch) {
+        entries.addAll(batch.entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Groups the entries by the consistency level they are written at, in the
+     * order of their first entry. The default level is the null key. Within a
+     * group the insertions come before the deletions: a group written in
+     * several chunks isn't atomic, and a failed chunk should leave stale
+     * entries behind rather than rows missing from their index. Entries are
+     * resolved by their timestamps, so the order doesn't change the result of
+     * a complete write.
+     */
+    public Map<ConsistencyLevel, List<Entry>> byConsistency() {
+        Map<ConsistencyLevel, List<Entry>> result = new LinkedHashMap<ConsistencyLevel, List<Entry>>();
+        Map<ConsistencyLevel, List<Entry>> deletions = new LinkedHashMap<ConsistencyLevel, List<Entry>>();
+        for (Entry entry : entries) {
+            List<Entry> group = result.get(entry.getConsistency());
+            if (group == null) {
+                group = new ArrayList<Entry>();
+                result.put(entry.getConsistency(), group);
+                deletions.put(entry.getConsistency(), new ArrayList<Entry>());
+            }
+            if (entry.isDeletion()) {
+                deletions.get(entry.getConsistency()).add(entry);
+            } else {
+                group.add(entry);
+            }
+        }
+        for (Map.Entry<ConsistencyLevel, List<Entry>> group : result.entrySet()) {
+            group.getValue().addAll(deletions.get(group.getKey()));
+        }
+        return result;
+    }
+
+    public void serialize(DataOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeByte(entry.getKind().code);
+            ByteBufferUtil.writeWithLength(ByteBufferUtil.bytes(entry.getIndexName()), out);
+            ByteBufferUtil.writeWithLength(entry.getName(), out);
+            out.writeLong(entry.getTimestamp());
+            out.writeInt(entry.getTtl());
+            out.writeInt(entry.getConsistency() == null ? 0 : entry.getConsistency().getValue());
+            ByteBufferUtil.writeWithLength(entry.getValue(), out);
+        }
+    }
+
+    public static IndexBatch deserialize(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported index batch format version " + version
+                    + ", the index journal must be drained before upgrading.");
+        }
+        IndexBatch batch = new IndexBatch();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            Kind kind = Kind.fromCode(in.readByte());
+            String indexName = ByteBufferUtil.string(ByteBufferUtil.readWithLength(in));
+            ByteBuffer name = ByteBufferUtil.readWithLength(in);
+            long timestamp = in.readLong();
+            int ttl = in.readInt();
+            ConsistencyLevel consistency = ConsistencyLevel.findByValue(in.readInt());
+            ByteBuffer value = ByteBufferUtil.readWithLength(in);
+            batch.entries.add(new Entry(kind, indexName, name, value, timestamp, ttl, consistency));
+        }
+        return batch;
+    }
+
+    public static class Entry {
+        private final Kind kind;
+        private final String indexName;
+        private final ByteBuffer name;
+        private final ByteBuffer value;
+        private final long timestamp;
+        private final int ttl;
+        private final ConsistencyLevel consistency;
+
+        Entry(Kind kind, String indexName, ByteBuffer name, ByteBuffer value, long timestamp, int ttl,
+                ConsistencyLevel consistency) {
+            this.kind = kind;
+            this.indexName = indexName;
+            this.name = name;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.ttl = ttl;
+            this.consistency = consistency;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public boolean isDeletion() {
+            return kind == Kind.DELETION;
+        }
+
+        public String getIndexName() {
+            return indexName;
+        }
+
+        /**
+         * The encoded name of the index column.
+         */
+        public ByteBuffer getName() {
+            return name;
+        }
+
+        /**
+         * The value of the index column, empty unless the index covers some
+         * columns.
+         */
+        public ByteBuffer getValue() {
+            return value;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * The time to live of an insertion in seconds, 0 if it doesn't expire.
+         */
+        public int getTtl() {
+            return ttl;
+        }
+
+        /**
+         * The consistency level of the write, null for the default level.
+         */
+        public ConsistencyLevel getConsistency() {
+            return consistency;
+        }
+    }
+}
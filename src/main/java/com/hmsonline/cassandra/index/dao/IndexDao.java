@@ -1,22 +1,87 @@
 package com.hmsonline.cassandra.index.dao;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import me.prettyprint.cassandra.model.ConfigurableConsistencyLevel;
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.HConsistencyLevel;
 import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.CounterQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
 
 import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.hmsonline.cassandra.index.IndexEntries;
+import com.hmsonline.cassandra.index.IndexMetrics;
+import com.hmsonline.cassandra.index.IndexOptions;
+import com.hmsonline.cassandra.index.TimeBuckets;
+import com.hmsonline.cassandra.index.util.CompositeUtil;
 import com.hmsonline.cassandra.index.util.IndexUtil;
 
 public class IndexDao extends AbstractCassandraDao {
     public static final String KEYSPACE = IndexUtil.INDEXING_KEYSPACE;
     public static final String COLUMN_FAMILY = "Indexes";
+    public static final String COUNTS_COLUMN_FAMILY = "IndexCounts";
+    // Batches are written in chunks of at most this many entries. A batch of
+    // several chunks isn't atomic, see IndexBatch.byConsistency
+    public static final int CHUNK_SIZE = Integer.getInteger("cassandra.index.chunk_size", 500);
+
+    private static Logger logger = LoggerFactory.getLogger(IndexDao.class);
+
+    private final Cluster cluster;
+    private final ConcurrentMap<ConsistencyLevel, Keyspace> keyspaces = new ConcurrentHashMap<ConsistencyLevel, Keyspace>();
 
     public IndexDao(Keyspace keyspace) {
+        this(keyspace, null);
+    }
+
+    /**
+     * With a cluster, entries with a consistency level are written through a
+     * keyspace with that level. Without one every write uses the level of the
+     * given keyspace.
+     */
+    public IndexDao(Keyspace keyspace, Cluster cluster) {
         super(keyspace);
+        this.cluster = cluster;
+    }
+
+    /**
+     * Returns the keyspace writing at the given consistency level, the default
+     * keyspace for a null level.
+     */
+    protected Keyspace getKeyspace(ConsistencyLevel consistency) throws Exception {
+        if (consistency == null || cluster == null) {
+            return getKeyspace();
+        }
+        Keyspace keyspace = keyspaces.get(consistency);
+        if (keyspace == null) {
+            HConsistencyLevel level = HConsistencyLevel.valueOf(consistency.name());
+            ConfigurableConsistencyLevel policy = new ConfigurableConsistencyLevel();
+            policy.setDefaultReadConsistencyLevel(level);
+            policy.setDefaultWriteConsistencyLevel(level);
+            keyspaces.putIfAbsent(consistency, HFactory.createKeyspace(KEYSPACE, cluster, policy));
+            keyspace = keyspaces.get(consistency);
+        }
+        return keyspace;
     }
 
     public void insertIndex(String indexName, String index, ConsistencyLevel consistency, long timestamp, Mutator<String> mutator) {
@@ -40,11 +105,447 @@ public class IndexDao extends AbstractCassandraDao {
         }
     }
 
-    //Below is to maintain backward compatibility. 
+    public void insertIndexes(String indexName, List<ByteBuffer> names, ConsistencyLevel consistency, long timestamp, IndexBatch batch) {
+        insertIndexes(indexName, names, consistency, 0, timestamp, batch);
+    }
+
+    /**
+     * @param ttl in seconds, 0 if the entries don't expire
+     */
+    public void insertIndexes(String indexName, List<ByteBuffer> names, ConsistencyLevel consistency, int ttl,
+            long timestamp, IndexBatch batch) {
+        insertIndexes(indexName, names, ByteBufferUtil.EMPTY_BYTE_BUFFER, consistency, ttl, timestamp, batch);
+    }
+
+    /**
+     * @param value of all the entries, the included columns of a covering index
+     */
+    public void insertIndexes(String indexName, List<ByteBuffer> names, ByteBuffer value,
+            ConsistencyLevel consistency, int ttl, long timestamp, IndexBatch batch) {
+        for (ByteBuffer name : names) {
+            batch.addInsertion(indexName, name, value, timestamp, ttl, consistency);
+        }
+    }
+
+    public void deleteIndexes(String indexName, List<ByteBuffer> names, ConsistencyLevel consistency, long timestamp, IndexBatch batch) {
+        for (ByteBuffer name : names) {
+            batch.addDeletion(indexName, name, timestamp, consistency);
+        }
+    }
+
+    /**
+     * Adds the deltas to the counts of the prefixes of an index.
+     */
+    public void updateCounts(String indexName, Map<ByteBuffer, Long> deltas, ConsistencyLevel consistency,
+            CountBatch counts) {
+        for (Map.Entry<ByteBuffer, Long> delta : deltas.entrySet()) {
+            counts.add(indexName, delta.getKey(), delta.getValue(), consistency);
+        }
+    }
+
+    /**
+     * Writes a batch of entries and then, once they are written, the counts
+     * that go with them. Counts are only written if the entries were, see
+     * writeCounts.
+     */
+    public void execute(IndexBatch batch, CountBatch counts) {
+        execute(batch);
+        writeCounts(counts);
+    }
+
+    /**
+     * Writes counts once. They are never retried, as a retry could apply
+     * them twice: if the write fails the counts are dropped, logged and
+     * counted in IndexMetrics.countsDropped, without failing the caller.
+     */
+    public void writeCounts(CountBatch counts) {
+        if (counts == null || counts.isEmpty()) {
+            return;
+        }
+        try {
+            execute(counts);
+        } catch (RuntimeException ex) {
+            IndexMetrics.countsDropped.inc(counts.size());
+            logger.warn("Failed to write " + counts.size() + " index counts, dropping them.", ex);
+        }
+    }
+
+    public void execute(CountBatch counts) {
+        try {
+            for (Map.Entry<ConsistencyLevel, List<CountBatch.Delta>> group : counts.byConsistency().entrySet()) {
+                Mutator<String> mutator = HFactory.createMutator(getKeyspace(group.getKey()), StringSerializer.get());
+                for (CountBatch.Delta delta : group.getValue()) {
+                    mutator.addCounter(delta.getIndexName(), COUNTS_COLUMN_FAMILY, HFactory.createCounterColumn(
+                            delta.getPrefix(), delta.getDelta(), ByteBufferSerializer.get()));
+                }
+                mutator.execute();
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to write " + counts.size() + " index counts", ex);
+        }
+    }
+
+    /**
+     * Writes a batch of entries in chunks of CHUNK_SIZE. A failed chunk fails
+     * the whole batch, with the earlier chunks already written: callers retry
+     * the whole batch, which is harmless as every entry carries its
+     * timestamp.
+     */
+    public void execute(IndexBatch batch) {
+        try {
+            // Entries are written at the consistency level of their index
+            for (Map.Entry<ConsistencyLevel, List<IndexBatch.Entry>> group : batch.byConsistency().entrySet()) {
+                Keyspace keyspace = getKeyspace(group.getKey());
+                Mutator<String> mutator = HFactory.createMutator(keyspace, StringSerializer.get());
+                int pending = 0;
+                for (IndexBatch.Entry entry : group.getValue()) {
+                    if (pending == CHUNK_SIZE) {
+                        mutator.execute();
+                        mutator = HFactory.createMutator(keyspace, StringSerializer.get());
+                        pending = 0;
+                    }
+                    pending++;
+                    if (entry.isDeletion()) {
+                        mutator.addDeletion(entry.getIndexName(), COLUMN_FAMILY, entry.getName(),
+                                ByteBufferSerializer.get(), entry.getTimestamp());
+                    } else {
+                        HColumn<ByteBuffer, ByteBuffer> column = HFactory.createColumn(entry.getName(),
+                                entry.getValue(), entry.getTimestamp(), ByteBufferSerializer.get(),
+                                ByteBufferSerializer.get());
+                        if (entry.getTtl() > 0) {
+                            column.setTtl(entry.getTtl());
+                        }
+                        mutator.addInsertion(entry.getIndexName(), COLUMN_FAMILY, column);
+                    }
+                }
+                mutator.execute();
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to write index batch of " + batch.size() + " entries", ex);
+        }
+    }
+
+    /**
+     * Streams the entries of an index slice. Entries are read a page at a
+     * time, so only one page is held in memory. The shards of a sharded index
+     * are read side by side and merged in index order, unless the query's
+     * prefix determines the only shard to read. Time bucketed indexes only
+     * read the buckets overlapping the query's time range.
+     */
+    public Iterator<IndexEntry> query(IndexQuery query) {
+        TimeBuckets timeBuckets = query.getOptions().getTimeBuckets();
+        if (timeBuckets == null) {
+            return queryBucket(query, null);
+        }
+        List<String> buckets = getBuckets(query, timeBuckets);
+        if (query.isReversed()) {
+            Collections.reverse(buckets);
+        }
+        if (timeBuckets.getSource() == TimeBuckets.Source.VALUE) {
+            // The buckets partition the leading value, reading them one after
+            // the other keeps the index order
+            return new ConcatIterator(query, buckets);
+        }
+        List<Iterator<IndexEntry>> iterators = new ArrayList<Iterator<IndexEntry>>();
+        for (String bucket : buckets) {
+            iterators.add(queryBucket(query, bucket));
+        }
+        return new MergingIterator(iterators, query.isReversed(), query.getLimit());
+    }
+
+    /**
+     * Returns the number of rows whose leading index values equal the given
+     * values, read from a single counter. The index must keep counts at least
+     * as deep as the number of values. Rows written before the index kept
+     * counts decrement them when they change without having been counted, so
+     * the count is never less than 0 but may be too low.
+     */
+    public long count(String indexName, List<String> values) {
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("Counting index " + indexName + " requires leading values");
+        }
+        try {
+            CounterQuery<String, ByteBuffer> query = HFactory.createCounterColumnQuery(getKeyspace(),
+                    StringSerializer.get(), ByteBufferSerializer.get());
+            query.setColumnFamily(COUNTS_COLUMN_FAMILY);
+            query.setKey(indexName);
+            query.setName(CompositeUtil.compose(values, CompositeUtil.FORMAT));
+            HCounterColumn<ByteBuffer> column = query.execute().get();
+            return column == null ? 0 : Math.max(0, column.getValue());
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to count index: " + indexName + values, ex);
+        }
+    }
+
+    /**
+     * Deletes the time buckets of an index overlapping [from, to] at once.
+     */
+    public void deleteBuckets(String indexName, IndexOptions options, long from, long to) {
+        try {
+            Mutator<String> mutator = HFactory.createMutator(this.getKeyspace(), StringSerializer.get());
+            for (String bucket : options.getTimeBuckets().getBuckets(from, to)) {
+                for (String row : options.getShardRows(indexName, bucket)) {
+                    mutator.addDeletion(row, COLUMN_FAMILY);
+                }
+            }
+            mutator.execute();
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to delete buckets of index: " + indexName, ex);
+        }
+    }
+
+    private Iterator<IndexEntry> queryBucket(IndexQuery query, String bucket) {
+        IndexOptions options = query.getOptions();
+        String indexName = query.getIndexName();
+        if (options.getShards() == 1) {
+            return new QueryIterator(query, options.getShardRows(indexName, bucket).get(0));
+        }
+        if (options.getShardBy() == IndexOptions.ShardBy.VALUE && !query.getPrefix().isEmpty()) {
+            return new QueryIterator(query, options.getShardRow(indexName, bucket, ByteBufferUtil.bytes(query
+                    .getPrefix().get(0))));
+        }
+        List<Iterator<IndexEntry>> shards = new ArrayList<Iterator<IndexEntry>>();
+        for (String shardRow : options.getShardRows(indexName, bucket)) {
+            shards.add(new QueryIterator(query, shardRow));
+        }
+        return new MergingIterator(shards, query.isReversed(), query.getLimit());
+    }
+
+    // The time range is the query's own, or taken from the leading value
+    // restrictions of an index bucketed by value
+    private static List<String> getBuckets(IndexQuery query, TimeBuckets timeBuckets) {
+        Long from = query.getTimeFrom();
+        Long to = query.getTimeTo();
+        if (timeBuckets.getSource() == TimeBuckets.Source.VALUE) {
+            if (!query.getPrefix().isEmpty()) {
+                Long time = timeBuckets.parse(query.getPrefix().get(0));
+                from = from == null ? time : from;
+                to = to == null ? time : to;
+            } else {
+                from = from == null ? timeBuckets.parse(query.getRangeStart()) : from;
+                to = to == null ? timeBuckets.parse(query.getRangeEnd()) : to;
+            }
+        }
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Querying the time bucketed index " + query.getIndexName()
+                    + " requires a time range");
+        }
+        return timeBuckets.getBuckets(from, to);
+    }
+
+    private static IndexEntry toEntry(HColumn<ByteBuffer, ByteBuffer> column) {
+        ByteBuffer name = column.getName();
+        try {
+            List<String> parts = CompositeUtil.decompose(name, CompositeUtil.FORMAT);
+            return new IndexEntry(parts.subList(0, parts.size() - 1), parts.get(parts.size() - 1), name,
+                    IndexEntries.includedColumns(column.getValue()));
+        } catch (Exception ex) {
+            throw new RuntimeException("Unable to decode index entry: " + ByteBufferUtil.bytesToHex(name), ex);
+        }
+    }
+
+    class QueryIterator implements Iterator<IndexEntry> {
+        private final IndexQuery query;
+        private final String row;
+        private final ByteBuffer finish;
+        private ByteBuffer start;
+        private boolean skipStart;
+        private int remaining;
+        private boolean exhausted;
+        private Iterator<HColumn<ByteBuffer, ByteBuffer>> page;
+        private IndexEntry next;
+
+        QueryIterator(IndexQuery query, String row) {
+            this.query = query;
+            this.row = row;
+            this.remaining = query.getLimit();
+
+            List<String> startParts = new ArrayList<String>(query.getPrefix());
+            if (query.getRangeStart() != null) {
+                startParts.add(query.getRangeStart());
+            }
+            List<String> endParts = new ArrayList<String>(query.getPrefix());
+            if (query.getRangeEnd() != null) {
+                endParts.add(query.getRangeEnd());
+            }
+            ByteBuffer lower = CompositeUtil.sliceStart(startParts, CompositeUtil.FORMAT);
+            ByteBuffer upper = CompositeUtil.sliceEnd(endParts, CompositeUtil.FORMAT);
+            this.start = query.isReversed() ? upper : lower;
+            this.finish = query.isReversed() ? lower : upper;
+            if (query.getCursor() != null) {
+                this.start = query.getCursor();
+                this.skipStart = true;
+            }
+        }
+
+        public boolean hasNext() {
+            while (next == null && remaining > 0) {
+                if (page == null || !page.hasNext()) {
+                    if (exhausted) {
+                        return false;
+                    }
+                    page = fetchPage();
+                    continue;
+                }
+                next = toEntry(page.next());
+            }
+            return next != null;
+        }
+
+        public IndexEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            IndexEntry result = next;
+            next = null;
+            remaining--;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Iterator<HColumn<ByteBuffer, ByteBuffer>> fetchPage() {
+            // One extra column as the slice start is inclusive
+            int count = Math.min(query.getPageSize(), remaining) + (skipStart ? 1 : 0);
+            List<HColumn<ByteBuffer, ByteBuffer>> columns;
+            try {
+                SliceQuery<String, ByteBuffer, ByteBuffer> sliceQuery = HFactory.createSliceQuery(getKeyspace(),
+                        StringSerializer.get(), ByteBufferSerializer.get(), ByteBufferSerializer.get());
+                sliceQuery.setColumnFamily(COLUMN_FAMILY);
+                sliceQuery.setKey(row);
+                sliceQuery.setRange(start, finish, query.isReversed(), count);
+                columns = sliceQuery.execute().get().getColumns();
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to query index: " + query.getIndexName(), ex);
+            }
+
+            exhausted = columns.size() < count;
+            if (skipStart && !columns.isEmpty() && columns.get(0).getName().equals(start)) {
+                columns = columns.subList(1, columns.size());
+            }
+            if (columns.isEmpty()) {
+                exhausted = true;
+            } else {
+                start = columns.get(columns.size() - 1).getName();
+                skipStart = true;
+            }
+            return columns.iterator();
+        }
+    }
+
+    /**
+     * Merges the sorted entries of several shards.
+     */
+    static class MergingIterator implements Iterator<IndexEntry> {
+        private final PriorityQueue<PeekingIterator> queue;
+        private int remaining;
+
+        MergingIterator(List<Iterator<IndexEntry>> shards, final boolean reversed, int limit) {
+            this.remaining = limit;
+            this.queue = new PriorityQueue<PeekingIterator>(Math.max(1, shards.size()), new Comparator<PeekingIterator>() {
+                public int compare(PeekingIterator i1, PeekingIterator i2) {
+                    int result = CompositeUtil.compare(i1.peek().getCursor(), i2.peek().getCursor(),
+                            CompositeUtil.FORMAT);
+                    return reversed ? -result : result;
+                }
+            });
+            for (Iterator<IndexEntry> shard : shards) {
+                if (shard.hasNext()) {
+                    queue.add(new PeekingIterator(shard));
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return remaining > 0 && !queue.isEmpty();
+        }
+
+        public IndexEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            PeekingIterator shard = queue.poll();
+            IndexEntry result = shard.next();
+            if (shard.hasNext()) {
+                queue.add(shard);
+            }
+            remaining--;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads the buckets of an index one after the other.
+     */
+    class ConcatIterator implements Iterator<IndexEntry> {
+        private final IndexQuery query;
+        private final Iterator<String> buckets;
+        private Iterator<IndexEntry> current = Collections.<IndexEntry> emptyList().iterator();
+        private int remaining;
+
+        ConcatIterator(IndexQuery query, List<String> buckets) {
+            this.query = query;
+            this.buckets = buckets.iterator();
+            this.remaining = query.getLimit();
+        }
+
+        public boolean hasNext() {
+            while (remaining > 0 && !current.hasNext() && buckets.hasNext()) {
+                current = queryBucket(query, buckets.next());
+            }
+            return remaining > 0 && current.hasNext();
+        }
+
+        public IndexEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    static class PeekingIterator {
+        private final Iterator<IndexEntry> iterator;
+        private IndexEntry next;
+
+        PeekingIterator(Iterator<IndexEntry> iterator) {
+            this.iterator = iterator;
+            this.next = iterator.next();
+        }
+
+        IndexEntry peek() {
+            return next;
+        }
+
+        boolean hasNext() {
+            return next != null;
+        }
+
+        IndexEntry next() {
+            IndexEntry result = next;
+            next = iterator.hasNext() ? iterator.next() : null;
+            return result;
+        }
+    }
+
+    //Below is to maintain backward compatibility. These write at the given
+    //consistency level, the mutator based methods above at the level of the
+    //mutator's keyspace.
     
     public void insertIndex(String indexName, String index, ConsistencyLevel consistency, long timestamp) {
         try {
-            Mutator<String> mutator = HFactory.createMutator(this.getKeyspace(), StringSerializer.get());
+            Mutator<String> mutator = HFactory.createMutator(getKeyspace(consistency), StringSerializer.get());
             insertIndex(indexName, index, consistency, timestamp, mutator);
             mutator.execute();
         } catch (Exception ex) {
@@ -54,7 +555,7 @@ public class IndexDao extends AbstractCassandraDao {
 
     public void insertIndexes(String indexName, List<String> indexes, ConsistencyLevel consistency, long timestamp) {
         try {
-            Mutator<String> mutator = HFactory.createMutator(this.getKeyspace(), StringSerializer.get());
+            Mutator<String> mutator = HFactory.createMutator(getKeyspace(consistency), StringSerializer.get());
             insertIndexes(indexName, indexes, consistency, timestamp, mutator);
             mutator.execute();
         } catch (Exception ex) {
@@ -64,7 +565,7 @@ public class IndexDao extends AbstractCassandraDao {
 
     public void deleteIndex(String indexName, String index, ConsistencyLevel consistency, long timestamp) {
         try {
-            Mutator<String> mutator = HFactory.createMutator(this.getKeyspace(), StringSerializer.get());
+            Mutator<String> mutator = HFactory.createMutator(getKeyspace(consistency), StringSerializer.get());
             deleteIndex(indexName, index, consistency, timestamp, mutator);
             mutator.execute();
         } catch (Exception ex) {
@@ -74,7 +575,7 @@ public class IndexDao extends AbstractCassandraDao {
 
     public void deleteIndexes(String indexName, List<String> indexes, ConsistencyLevel consistency, long timestamp) {
         try {
-            Mutator<String> mutator = HFactory.createMutator(this.getKeyspace(), StringSerializer.get());
+            Mutator<String> mutator = HFactory.createMutator(getKeyspace(consistency), StringSerializer.get());
             deleteIndexes(indexName, indexes, consistency, timestamp, mutator);
             mutator.execute();
         } catch (Exception ex) {
@@ -0,0 +1,55 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A decoded index entry: the values of the index columns and the key of the
+ * indexed row. The cursor is the encoded column name, a query set to it
+ * resumes after this entry. Entries of covering indexes also hold the values
+ * of the included columns of the row.
+ */
+public class IndexEntry {
+    private final List<String> values;
+    private final String rowKey;
+    private final ByteBuffer cursor;
+    private final Map<String, String> columns;
+
+    public IndexEntry(List<String> values, String rowKey, ByteBuffer cursor) {
+        this(values, rowKey, cursor, Collections.<String, String> emptyMap());
+    }
+
+    public IndexEntry(List<String> values, String rowKey, ByteBuffer cursor, Map<String, String> columns) {
+        this.values = values;
+        this.rowKey = rowKey;
+        this.cursor = cursor;
+        this.columns = columns;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+    public String getRowKey() {
+        return rowKey;
+    }
+
+    public ByteBuffer getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns the included columns the row had when the entry was written,
+     * empty if the index doesn't cover any columns.
+     */
+    public Map<String, String> getColumns() {
+        return columns;
+    }
+
+    @Override
+    public String toString() {
+        return values + " -> " + rowKey;
+    }
+}
@@ -0,0 +1,136 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.hmsonline.cassandra.index.IndexOptions;
+
+/**
+ * A slice of an index: equality on a leading prefix of the index columns, an
+ * optional range on the column after the prefix, in forward or reverse order.
+ * Results are read in pages of pageSize entries, up to limit entries in total,
+ * starting after the cursor of a previously returned entry if one is set.
+ *
+ * Sharded and time bucketed indexes need the options of the index to find
+ * their rows. Time bucketed indexes also need a time range, unless it can be
+ * taken from the leading value restrictions of an index bucketed by value.
+ */
+public class IndexQuery {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final String indexName;
+    private final List<String> prefix = new ArrayList<String>();
+    private String rangeStart;
+    private String rangeEnd;
+    private boolean reversed;
+    private int limit = Integer.MAX_VALUE;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private ByteBuffer cursor;
+    private IndexOptions options = IndexOptions.DEFAULT;
+    private Long timeFrom;
+    private Long timeTo;
+
+    public IndexQuery(String indexName) {
+        this.indexName = indexName;
+    }
+
+    public IndexQuery setPrefix(String... values) {
+        prefix.clear();
+        prefix.addAll(Arrays.asList(values));
+        return this;
+    }
+
+    /**
+     * Restricts the column after the prefix to [start, end], either bound may
+     * be null for an open range.
+     */
+    public IndexQuery setRange(String start, String end) {
+        this.rangeStart = start;
+        this.rangeEnd = end;
+        return this;
+    }
+
+    public IndexQuery setReversed(boolean reversed) {
+        this.reversed = reversed;
+        return this;
+    }
+
+    public IndexQuery setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public IndexQuery setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Resumes the query after the entry with the given cursor.
+     */
+    public IndexQuery setCursor(ByteBuffer cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public IndexQuery setOptions(IndexOptions options) {
+        this.options = options;
+        return this;
+    }
+
+    /**
+     * Restricts a time bucketed index to the buckets overlapping [from, to],
+     * in epoch milliseconds.
+     */
+    public IndexQuery setTimeRange(Long from, Long to) {
+        this.timeFrom = from;
+        this.timeTo = to;
+        return this;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public List<String> getPrefix() {
+        return prefix;
+    }
+
+    public String getRangeStart() {
+        return rangeStart;
+    }
+
+    public String getRangeEnd() {
+        return rangeEnd;
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public ByteBuffer getCursor() {
+        return cursor;
+    }
+
+    public IndexOptions getOptions() {
+        return options;
+    }
+
+    public Long getTimeFrom() {
+        return timeFrom;
+    }
+
+    public Long getTimeTo() {
+        return timeTo;
+    }
+}
@@ -0,0 +1,104 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.prettyprint.hector.api.Keyspace;
+
+import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.db.CounterMutation;
+import org.apache.cassandra.db.IMutation;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.service.StorageProxy;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Writes index batches as RowMutations through Cassandra's internal write
+ * path, at the consistency level of each entry or the given default level.
+ * Counts are written as CounterMutations, which don't support level ANY.
+ * The mutator based methods inherited from IndexDao still go through Hector.
+ */
+public class LocalIndexDao extends IndexDao {
+    private final ConsistencyLevel consistency;
+
+    public LocalIndexDao(Keyspace keyspace, ConsistencyLevel consistency) {
+        super(keyspace);
+        this.consistency = consistency;
+    }
+
+    @Override
+    public void execute(IndexBatch batch) {
+        for (Map.Entry<org.apache.cassandra.thrift.ConsistencyLevel, List<IndexBatch.Entry>> group : batch
+                .byConsistency().entrySet()) {
+            ConsistencyLevel level = group.getKey() == null ? consistency : ConsistencyLevel.valueOf(group.getKey()
+                    .name());
+            execute(group.getValue(), level, batch);
+        }
+    }
+
+    @Override
+    public void execute(CountBatch counts) {
+        for (Map.Entry<org.apache.cassandra.thrift.ConsistencyLevel, List<CountBatch.Delta>> group : counts
+                .byConsistency().entrySet()) {
+            ConsistencyLevel level = group.getKey() == null ? consistency : ConsistencyLevel.valueOf(group.getKey()
+                    .name());
+            Map<String, RowMutation> mutations = new HashMap<String, RowMutation>();
+            for (CountBatch.Delta delta : group.getValue()) {
+                RowMutation mutation = mutations.get(delta.getIndexName());
+                if (mutation == null) {
+                    mutation = new RowMutation(KEYSPACE, ByteBufferUtil.bytes(delta.getIndexName()));
+                    mutations.put(delta.getIndexName(), mutation);
+                }
+                mutation.addCounter(new QueryPath(COUNTS_COLUMN_FAMILY, null, delta.getPrefix()), delta.getDelta());
+            }
+            List<IMutation> counters = new ArrayList<IMutation>();
+            for (RowMutation mutation : mutations.values()) {
+                counters.add(new CounterMutation(mutation, level));
+            }
+            try {
+                StorageProxy.mutate(counters, level);
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to write " + counts.size() + " index counts", ex);
+            }
+        }
+    }
+
+    private void execute(List<IndexBatch.Entry> entries, ConsistencyLevel level, IndexBatch batch) {
+        Map<String, RowMutation> mutations = new HashMap<String, RowMutation>();
+        int pending = 0;
+        for (IndexBatch.Entry entry : entries) {
+            if (pending == CHUNK_SIZE) {
+                mutate(mutations, level, batch);
+                mutations.clear();
+                pending = 0;
+            }
+            pending++;
+            RowMutation mutation = mutations.get(entry.getIndexName());
+            if (mutation == null) {
+                mutation = new RowMutation(KEYSPACE, ByteBufferUtil.bytes(entry.getIndexName()));
+                mutations.put(entry.getIndexName(), mutation);
+            }
+            QueryPath path = new QueryPath(COLUMN_FAMILY, null, entry.getName());
+            if (entry.isDeletion()) {
+                mutation.delete(path, entry.getTimestamp());
+            } else if (entry.getTtl() > 0) {
+                mutation.add(path, entry.getValue(), entry.getTimestamp(), entry.getTtl());
+            } else {
+                mutation.add(path, entry.getValue(), entry.getTimestamp());
+            }
+        }
+
+        mutate(mutations, level, batch);
+    }
+
+    private void mutate(Map<String, RowMutation> mutations, ConsistencyLevel level, IndexBatch batch) {
+        try {
+            StorageProxy.mutate(new ArrayList<IMutation>(mutations.values()), level);
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to write index batch of " + batch.size() + " entries", ex);
+        }
+    }
+}
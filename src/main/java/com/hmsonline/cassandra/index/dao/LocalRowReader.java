@@ -0,0 +1,77 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.ReadCommand;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceByNamesReadCommand;
+import org.apache.cassandra.db.SliceFromReadCommand;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.service.StorageProxy;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Reads source rows through Cassandra's internal read path. Only usable when
+ * the aspect runs inside the Cassandra process, but it avoids the Thrift
+ * loopback connection, its serialization and the Hector connection pool.
+ */
+public class LocalRowReader implements RowReader {
+    private final ConsistencyLevel consistency;
+
+    public LocalRowReader(ConsistencyLevel consistency) {
+        this.consistency = consistency;
+    }
+
+    public Map<String, Map<String, String>> fetchRows(String keyspace, String columnFamily, Collection<String> keys,
+            Collection<String> indexColumns) throws Exception {
+        QueryPath path = new QueryPath(columnFamily);
+        List<ReadCommand> commands = new ArrayList<ReadCommand>(keys.size());
+        for (String key : keys) {
+            commands.add(createCommand(keyspace, ByteBufferUtil.bytes(key), path, indexColumns));
+        }
+
+        Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+        for (String key : keys) {
+            result.put(key, new HashMap<String, String>());
+        }
+        for (Row row : StorageProxy.read(commands, consistency)) {
+            ColumnFamily cf = row.cf;
+            if (cf == null) {
+                continue;
+            }
+            Map<String, String> columns = result.get(ByteBufferUtil.string(row.key.key));
+            for (IColumn column : cf.getSortedColumns()) {
+                if (column.isLive() && !cf.deletionInfo().isDeleted(column)) {
+                    columns.put(ByteBufferUtil.string(column.name()), ByteBufferUtil.string(column.value()));
+                }
+            }
+        }
+        return result;
+    }
+
+    private ReadCommand createCommand(String keyspace, ByteBuffer key, QueryPath path, Collection<String> indexColumns) {
+        if (!IndexUtil.containsMultiValueColumn(indexColumns)) {
+            List<ByteBuffer> columnNames = new ArrayList<ByteBuffer>(indexColumns.size());
+            for (String indexColumn : indexColumns) {
+                columnNames.add(ByteBufferUtil.bytes(indexColumn));
+            }
+            return new SliceByNamesReadCommand(keyspace, key, path, columnNames);
+        } else if (indexColumns.size() == 1) {
+            String columnPrefix = IndexUtil.getColumnPrefix(indexColumns.iterator().next());
+            return new SliceFromReadCommand(keyspace, key, path, ByteBufferUtil.bytes(columnPrefix),
+                    ByteBufferUtil.bytes(columnPrefix + Character.MAX_VALUE), false, IndexUtil.MAX_COLUMNS);
+        }
+        return new SliceFromReadCommand(keyspace, key, path, ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                ByteBufferUtil.EMPTY_BYTE_BUFFER, false, IndexUtil.MAX_COLUMNS);
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Fetches the source rows of index entries. Row keys are grouped into
+ * multigets of batchSize keys, run on the executor. Up to concurrency
+ * multigets are queued ahead of the one whose rows are being waited for or
+ * returned, so at most concurrency + 1 run at once. The caller reads index
+ * pages as it queues the next multigets, and rows are returned in index order.
+ *
+ * Entries whose source row no longer exists are skipped.
+ */
+public class RowHydrator extends AbstractCassandraDao {
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final int concurrency;
+
+    public RowHydrator(Keyspace keyspace, ExecutorService executor, int batchSize, int concurrency) {
+        super(keyspace);
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Hydrates the entries from the given column family. Only the given
+     * columns are fetched, or up to IndexUtil.MAX_COLUMNS columns of each row
+     * if none are given.
+     */
+    public Iterator<IndexedRow> hydrate(Iterator<IndexEntry> entries, String columnFamily, String... columns) {
+        return new HydratingIterator(entries, columnFamily, columns);
+    }
+
+    private List<IndexedRow> fetch(List<IndexEntry> entries, String columnFamily, String[] columns) throws Exception {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (IndexEntry entry : entries) {
+            keys.add(entry.getRowKey());
+        }
+        Map<String, Map<String, String>> rows = fetchRows(columnFamily, keys, columns);
+
+        List<IndexedRow> result = new ArrayList<IndexedRow>(entries.size());
+        for (IndexEntry entry : entries) {
+            Map<String, String> row = rows.get(entry.getRowKey());
+            if (row == null || row.isEmpty()) {
+                continue;
+            }
+            result.add(new IndexedRow(entry, row));
+        }
+        return result;
+    }
+
+    // One multiget, rows that don't exist are left out or empty
+    Map<String, Map<String, String>> fetchRows(String columnFamily, Set<String> keys, String[] columns)
+            throws Exception {
+        MultigetSliceQuery<String, String, String> multigetQuery = HFactory.createMultigetSliceQuery(getKeyspace(),
+                StringSerializer.get(), StringSerializer.get(), StringSerializer.get());
+        multigetQuery.setColumnFamily(columnFamily);
+        multigetQuery.setKeys(keys);
+        if (columns.length > 0) {
+            multigetQuery.setColumnNames(columns);
+        } else {
+            multigetQuery.setRange("", "", false, IndexUtil.MAX_COLUMNS);
+        }
+        Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+        for (Row<String, String, String> row : multigetQuery.execute().get()) {
+            Map<String, String> values = new HashMap<String, String>();
+            for (HColumn<String, String> column : row.getColumnSlice().getColumns()) {
+                values.put(column.getName(), column.getValue());
+            }
+            result.put(row.getKey(), values);
+        }
+        return result;
+    }
+
+    /**
+     * A source row with the index entry it was found by.
+     */
+    public static class IndexedRow {
+        private final IndexEntry entry;
+        private final Map<String, String> columns;
+
+        IndexedRow(IndexEntry entry, Map<String, String> columns) {
+            this.entry = entry;
+            this.columns = columns;
+        }
+
+        public IndexEntry getEntry() {
+            return entry;
+        }
+
+        public String getRowKey() {
+            return entry.getRowKey();
+        }
+
+        public Map<String, String> getColumns() {
+            return columns;
+        }
+    }
+
+    class HydratingIterator implements Iterator<IndexedRow> {
+        private final Iterator<IndexEntry> entries;
+        private final String columnFamily;
+        private final String[] columns;
+        private final LinkedList<Future<List<IndexedRow>>> inFlight = new LinkedList<Future<List<IndexedRow>>>();
+        private Iterator<IndexedRow> current = Collections.<IndexedRow> emptyList().iterator();
+
+        HydratingIterator(Iterator<IndexEntry> entries, String columnFamily, String[] columns) {
+            this.entries = entries;
+            this.columnFamily = columnFamily;
+            this.columns = columns;
+        }
+
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                fill(concurrency);
+                if (inFlight.isEmpty()) {
+                    return false;
+                }
+                Future<List<IndexedRow>> batch = inFlight.removeFirst();
+                // Queue the next multiget before waiting for this one
+                fill(concurrency);
+                try {
+                    current = batch.get().iterator();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while hydrating index entries", ex);
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException("Failed to hydrate index entries from " + columnFamily, ex.getCause());
+                }
+            }
+            return true;
+        }
+
+        public IndexedRow next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        // The multigets queued ahead of the current one
+        int getInFlight() {
+            return inFlight.size();
+        }
+
+        private void fill(int limit) {
+            while (inFlight.size() < limit && entries.hasNext()) {
+                final List<IndexEntry> batch = new ArrayList<IndexEntry>(batchSize);
+                while (batch.size() < batchSize && entries.hasNext()) {
+                    batch.add(entries.next());
+                }
+                inFlight.add(executor.submit(new Callable<List<IndexedRow>>() {
+                    public List<IndexedRow> call() throws Exception {
+                        return fetch(batch, columnFamily, columns);
+                    }
+                }));
+            }
+        }
+    }
+}
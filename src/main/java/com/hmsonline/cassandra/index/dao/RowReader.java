@@ -0,0 +1,17 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Reads the current index column values of source rows, which the handler
+ * needs to remove stale index entries.
+ */
+public interface RowReader {
+    /**
+     * Returns the index columns of each requested row, keyed by row key. Every
+     * requested key is present in the result, rows that don't exist are empty.
+     */
+    Map<String, Map<String, String>> fetchRows(String keyspace, String columnFamily, Collection<String> keys,
+            Collection<String> indexColumns) throws Exception;
+}
@@ -0,0 +1,24 @@
+package com.hmsonline.cassandra.index.dao;
+
+import java.util.Collection;
+import java.util.Map;
+
+import me.prettyprint.hector.api.Cluster;
+
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Reads source rows through Hector, over Thrift.
+ */
+public class ThriftRowReader implements RowReader {
+    private final Cluster cluster;
+
+    public ThriftRowReader(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    public Map<String, Map<String, String>> fetchRows(String keyspace, String columnFamily, Collection<String> keys,
+            Collection<String> indexColumns) throws Exception {
+        return IndexUtil.fetchRows(cluster, keyspace, columnFamily, keys, indexColumns);
+    }
+}
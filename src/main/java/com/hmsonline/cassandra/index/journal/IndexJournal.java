@@ -0,0 +1,480 @@
+package com.hmsonline.cassandra.index.journal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hmsonline.cassandra.index.IndexMetrics;
+import com.hmsonline.cassandra.index.dao.CountBatch;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.dao.IndexDao;
+
+/**
+ * Node-local, append-only journal of index batches. Batches are appended to
+ * segment files and applied to the Indexes column family by background
+ * workers. A segment is deleted once it has been rolled and every batch in it
+ * has been applied, so whatever is left on disk at startup is replayed.
+ * Counts are only kept in memory with their batch and written once it has
+ * been applied: replaying or retrying them would count rows twice, so those
+ * of batches pending at a restart are lost.
+ *
+ * In periodic mode the journal is fsynced every sync period and append returns
+ * immediately. In batch mode append blocks until the next fsync covers it, so
+ * concurrent writers share one fsync.
+ *
+ * A failed batch is applied again as a whole, including the chunks that were
+ * already written, which is harmless as every entry carries its timestamp.
+ * A batch that still fails after maxAttempts attempts is appended to the
+ * IndexJournalFailed.log file of the journal directory, in the format of the
+ * segments, and counted in IndexMetrics.journalBatchesFailed. Renamed to a
+ * segment name the file is replayed on the next start.
+ *
+ * At most maxPending batches are held in memory waiting to be applied. When
+ * the limit is reached append
+ * blocks for up to the append timeout and then rejects the batch, so writers
+ * slow down instead of the backlog growing without bound. Replay pages the
+ * journaled batches in under the same limit.
+ */
+public class IndexJournal {
+    private static final String SEGMENT_PREFIX = "IndexJournal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 4 + 8; // length + checksum
+    private static final String FAILED_FILE = "IndexJournalFailed.log";
+
+    private static Logger logger = LoggerFactory.getLogger(IndexJournal.class);
+
+    private final File directory;
+    private final IndexDao indexDao;
+    private final int workers;
+    private final long segmentSize;
+    private final long syncPeriod;
+    private final boolean batchSync;
+    private final int maxPending;
+    private final long appendTimeout;
+    private final int maxAttempts;
+    private final long retryDelay;
+    // One permit per batch that may be pending, bounds the queue
+    private final Semaphore permits;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private Segment current;
+    private long lastSegmentId;
+    private long appended;
+    private long synced;
+    private volatile boolean running;
+
+    public IndexJournal(File directory, IndexDao indexDao, int workers, long segmentSize, long syncPeriod,
+            boolean batchSync) {
+        this(directory, indexDao, workers, segmentSize, syncPeriod, batchSync, 100000, 10000, 10, 1000);
+    }
+
+    /**
+     * @param maxPending the most batches waiting to be applied
+     * @param appendTimeout in milliseconds, how long append waits for a
+     * pending batch to be applied before rejecting its batch
+     * @param maxAttempts how many times a batch is tried before it is set
+     * aside in the failed file
+     * @param retryDelay in milliseconds, between two attempts of a batch
+     */
+    public IndexJournal(File directory, IndexDao indexDao, int workers, long segmentSize, long syncPeriod,
+            boolean batchSync, int maxPending, long appendTimeout, int maxAttempts, long retryDelay) {
+        this.directory = directory;
+        this.indexDao = indexDao;
+        this.workers = workers;
+        this.segmentSize = segmentSize;
+        this.syncPeriod = syncPeriod;
+        this.batchSync = batchSync;
+        this.maxPending = maxPending;
+        this.appendTimeout = appendTimeout;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.permits = new Semaphore(maxPending);
+    }
+
+    public synchronized void start() throws IOException, InterruptedException {
+        if (running) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create index journal directory: " + directory);
+        }
+        List<Long> segments = listSegments();
+        if (!segments.isEmpty()) {
+            lastSegmentId = segments.get(segments.size() - 1);
+        }
+        current = openSegment();
+        running = true;
+
+        // The workers apply replayed batches as they are paged in
+        startThread(new Syncer(), "IndexJournalSync");
+        for (int i = 0; i < workers; i++) {
+            startThread(new Worker(), "IndexJournalWorker:" + (i + 1));
+        }
+        replay(segments);
+        logger.info("Index journal started in " + directory + " with " + workers + " workers ("
+                + (batchSync ? "batch" : "periodic") + " sync every " + syncPeriod + " ms, up to " + maxPending
+                + " pending batches).");
+    }
+
+    /**
+     * Stops the workers and closes the journal. Batches that are still
+     * pending stay on disk and are replayed on the next start.
+     */
+    public void stop() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        threads.clear();
+        synchronized (this) {
+            current.close();
+            synced = appended;
+            notifyAll();
+            permits.release(queue.size());
+            queue.clear();
+        }
+        logger.info("Index journal stopped in " + directory + ".");
+    }
+
+    private void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    public void append(IndexBatch batch) throws IOException, InterruptedException {
+        append(batch, null);
+    }
+
+    /**
+     * @param counts written once the batch has been applied, never journaled
+     */
+    public void append(IndexBatch batch, CountBatch counts) throws IOException, InterruptedException {
+        if (!permits.tryAcquire(appendTimeout, TimeUnit.MILLISECONDS)) {
+            throw new RejectedExecutionException("Index journal still has " + maxPending
+                    + " pending batches after " + appendTimeout + " ms.");
+        }
+        try {
+            write(batch, counts);
+        } catch (IOException ex) {
+            permits.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    private void write(IndexBatch batch, CountBatch counts) throws IOException, InterruptedException {
+        ByteBuffer frame = frame(batch);
+        long position;
+        Record record;
+        synchronized (this) {
+            if (!running) {
+                throw new IllegalStateException("Index journal is not running.");
+            }
+            if (current.size > 0 && current.size + frame.remaining() > segmentSize) {
+                current.close();
+                current = openSegment();
+            }
+            current.write(frame);
+            record = new Record(current, batch, counts);
+            position = ++appended;
+        }
+        queue.put(record);
+
+        if (batchSync) {
+            synchronized (this) {
+                while (synced < position) {
+                    wait();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer frame(IndexBatch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        batch.serialize(new DataOutputStream(bytes));
+        byte[] payload = bytes.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(payload.length);
+        frame.putLong(checksum.getValue());
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    public int getPendingBatches() {
+        return queue.size();
+    }
+
+    private List<Long> listSegments() {
+        File[] files = directory.listFiles();
+        List<Long> ids = new ArrayList<Long>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                ids.add(Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private void replay(List<Long> ids) throws IOException, InterruptedException {
+        for (Long id : ids) {
+            Segment segment = new Segment(id, segmentFile(id));
+            int batches = replaySegment(segment);
+            logger.info("Replayed " + batches + " index batches from " + segment.file);
+            segment.seal();
+        }
+    }
+
+    // Queues the batches of a segment one at a time, waiting for earlier ones
+    // to be applied whenever the pending limit is reached
+    private int replaySegment(Segment segment) throws IOException, InterruptedException {
+        File file = segment.file;
+        int batches = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                long expected = in.readLong();
+                if (length < 0 || length > file.length()) {
+                    logger.warn("Invalid record length " + length + " in " + file + ", skipping the rest of the segment.");
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload);
+                if (checksum.getValue() != expected) {
+                    logger.warn("Checksum mismatch in " + file + ", skipping the rest of the segment.");
+                    break;
+                }
+                IndexBatch batch = IndexBatch.deserialize(new DataInputStream(new ByteArrayInputStream(payload)));
+                permits.acquire();
+                segment.pending.incrementAndGet();
+                queue.add(new Record(segment, batch, null));
+                batches++;
+            }
+        } catch (EOFException ex) {
+            logger.warn("Truncated record at the end of " + file + ", it was never acknowledged.");
+        } finally {
+            in.close();
+        }
+        return batches;
+    }
+
+    private Segment openSegment() throws IOException {
+        long id = Math.max(lastSegmentId + 1, System.currentTimeMillis());
+        lastSegmentId = id;
+        Segment segment = new Segment(id, segmentFile(id));
+        segment.channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        return segment;
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private void sync() throws IOException {
+        Segment segment;
+        long position;
+        synchronized (this) {
+            segment = current;
+            position = appended;
+        }
+        if (position > synced) {
+            segment.sync();
+            synchronized (this) {
+                synced = position;
+                notifyAll();
+            }
+        }
+    }
+
+    private void apply(Record record) throws InterruptedException, IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                indexDao.execute(record.batch);
+                break;
+            } catch (Exception ex) {
+                if (attempt >= maxAttempts) {
+                    logger.error("Could not apply journaled index batch after " + attempt
+                            + " attempts, setting it aside in " + FAILED_FILE + ".", ex);
+                    setAside(record);
+                    record.segment.complete();
+                    return;
+                }
+                logger.error("Could not apply journaled index batch, retrying in " + retryDelay + " ms.", ex);
+                Thread.sleep(retryDelay);
+            }
+        }
+        record.segment.complete();
+        indexDao.writeCounts(record.counts);
+    }
+
+    // Appends a batch that can't be applied to the failed file, its counts
+    // are dropped
+    private void setAside(Record record) throws IOException {
+        ByteBuffer frame = frame(record.batch);
+        synchronized (FAILED_FILE) {
+            FileChannel channel = new RandomAccessFile(new File(directory, FAILED_FILE), "rw").getChannel();
+            try {
+                channel.position(channel.size());
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+        IndexMetrics.journalBatchesFailed.inc();
+        if (record.counts != null) {
+            IndexMetrics.countsDropped.inc(record.counts.size());
+        }
+    }
+
+    class Syncer implements Runnable {
+        public void run() {
+            while (running) {
+                try {
+                    Thread.sleep(syncPeriod);
+                    sync();
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (Throwable t) {
+                    logger.error("Could not sync the index journal.", t);
+                }
+            }
+        }
+    }
+
+    class Worker implements Runnable {
+        public void run() {
+            while (running) {
+                try {
+                    Record record = queue.take();
+                    try {
+                        apply(record);
+                    } finally {
+                        permits.release();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (Throwable t) {
+                    logger.error("Index journal worker failed.", t);
+                }
+            }
+        }
+    }
+
+    static class Record {
+        private final Segment segment;
+        private final IndexBatch batch;
+        private final CountBatch counts;
+
+        Record(Segment segment, IndexBatch batch, CountBatch counts) {
+            this.segment = segment;
+            this.batch = batch;
+            this.counts = counts;
+        }
+    }
+
+    static class Segment {
+        private final long id;
+        private final File file;
+        private final AtomicInteger pending = new AtomicInteger();
+        private FileChannel channel;
+        private long size;
+        private volatile boolean closed;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        void write(ByteBuffer frame) throws IOException {
+            size += frame.remaining();
+            pending.incrementAndGet();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        void sync() throws IOException {
+            FileChannel channel = this.channel;
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+            }
+        }
+
+        void close() throws IOException {
+            sync();
+            channel.close();
+            seal();
+        }
+
+        // No more batches will be added, the segment goes once they are applied
+        void seal() {
+            closed = true;
+            if (pending.get() == 0) {
+                delete();
+            }
+        }
+
+        void complete() {
+            if (pending.decrementAndGet() == 0 && closed) {
+                delete();
+            }
+        }
+
+        synchronized void delete() {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Unable to delete index journal segment " + id + ": " + file);
+            }
+        }
+    }
+}
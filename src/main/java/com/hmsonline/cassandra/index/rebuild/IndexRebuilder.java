@@ -0,0 +1,397 @@
+package com.hmsonline.cassandra.index.rebuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.query.RangeSlicesQuery;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.hmsonline.cassandra.index.IndexEntries;
+import com.hmsonline.cassandra.index.IndexPlan;
+import com.hmsonline.cassandra.index.dao.ConfigurationDao;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.dao.IndexDao;
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Rebuilds the indexes of a column family online from the rows owned by this
+ * node. The node's primary token ranges are cut into splits of about
+ * keysPerSplit keys, which are scanned in parallel with paged range slices.
+ * Entries are built exactly as on the write path and written in large
+ * batches, optionally throttled in rows and megabytes per second.
+ *
+ * After each batch the token of the last row it covers is checkpointed, so a
+ * rebuild interrupted by a restart resumes where it stopped. Each page of rows
+ * is written with the time it was read at, so writes to a row racing the
+ * rebuild always win over the rebuilt entries.
+ *
+ * Run the rebuild on every node to cover the whole ring.
+ */
+public class IndexRebuilder implements IndexRebuilderMBean {
+    public static final String MBEAN_NAME = "org.apache.cassandra.indexing:type=IndexRebuilder";
+
+    private static Logger logger = LoggerFactory.getLogger(IndexRebuilder.class);
+
+    private final Cluster cluster;
+    private final ConfigurationDao configurationDao;
+    private final IndexDao indexDao;
+    private final File directory;
+    private final int threads;
+    private final int keysPerSplit;
+    private final int pageSize;
+    private final int batchSize;
+    private final double rowsPerSecond;
+    private final double megabytesPerSecond;
+    private final ConcurrentMap<String, Rebuild> rebuilds = new ConcurrentHashMap<String, Rebuild>();
+
+    public IndexRebuilder(Cluster cluster, ConfigurationDao configurationDao, IndexDao indexDao, File directory,
+            int threads, int keysPerSplit, int pageSize, int batchSize, double rowsPerSecond,
+            double megabytesPerSecond) {
+        this.cluster = cluster;
+        this.configurationDao = configurationDao;
+        this.indexDao = indexDao;
+        this.directory = directory;
+        this.threads = threads;
+        this.keysPerSplit = keysPerSplit;
+        this.pageSize = pageSize;
+        this.batchSize = batchSize;
+        this.rowsPerSecond = rowsPerSecond;
+        this.megabytesPerSecond = megabytesPerSecond;
+    }
+
+    public static IndexRebuilder fromSystemProperties(Cluster cluster, ConfigurationDao configurationDao,
+            IndexDao indexDao) {
+        String directory = System.getProperty("cassandra.index.rebuild.directory");
+        if (directory == null) {
+            directory = new File(DatabaseDescriptor.getCommitLogLocation()).getParent() + File.separator
+                    + "index_rebuild";
+        }
+        return new IndexRebuilder(cluster, configurationDao, indexDao, new File(directory), Integer.getInteger(
+                "cassandra.index.rebuild.threads", 4), Integer.getInteger("cassandra.index.rebuild.keys_per_split",
+                65536), Integer.getInteger("cassandra.index.rebuild.page_size", 1000), Integer.getInteger(
+                "cassandra.index.rebuild.batch_size", 10000), Double.parseDouble(System.getProperty(
+                "cassandra.index.rebuild.rows_per_second", "0")), Double.parseDouble(System.getProperty(
+                "cassandra.index.rebuild.mb_per_second", "0")));
+    }
+
+    public synchronized void rebuild(final String keyspace, final String columnFamily) {
+        final Rebuild rebuild = new Rebuild(keyspace, columnFamily);
+        Rebuild running = rebuilds.get(rebuild.getName());
+        if (running != null && running.isRunning()) {
+            throw new IllegalStateException("Indexes of " + rebuild.getName() + " are already being rebuilt.");
+        }
+        rebuilds.put(rebuild.getName(), rebuild);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    IndexRebuilder.this.run(rebuild);
+                } catch (Throwable t) {
+                    rebuild.failed(t);
+                    logger.error("Rebuild of " + rebuild.getName() + " failed, it will resume from its checkpoint.", t);
+                }
+            }
+        }, "IndexRebuild:" + rebuild.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public List<String> getRebuilds() {
+        List<String> result = new ArrayList<String>();
+        for (Rebuild rebuild : rebuilds.values()) {
+            result.add(rebuild.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Rebuilds the indexes of a column family, blocking until done.
+     */
+    public void run(Rebuild rebuild) throws Exception {
+        IndexPlan plan = configurationDao.getConfiguration().getPlan(rebuild.keyspace, rebuild.columnFamily);
+        if (plan.isEmpty()) {
+            throw new IllegalArgumentException(rebuild.getName() + " has no indexes.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create index rebuild directory: " + directory);
+        }
+        RebuildCheckpoint checkpoint = new RebuildCheckpoint(new File(directory, rebuild.getName() + ".properties"));
+
+        List<String[]> splits = getSplits(rebuild);
+        rebuild.splitsTotal.set(splits.size());
+        logger.info("Rebuilding indexes of " + rebuild.getName() + " over " + splits.size() + " local splits with "
+                + threads + " threads.");
+
+        Keyspace ks = HFactory.createKeyspace(rebuild.keyspace, cluster);
+        RateLimiter rowThrottle = rowsPerSecond > 0 ? RateLimiter.create(rowsPerSecond) : null;
+        RateLimiter byteThrottle = megabytesPerSecond > 0 ? RateLimiter.create(megabytesPerSecond * 1024 * 1024)
+                : null;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("IndexRebuilder"));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (String[] split : splits) {
+                futures.add(executor.submit(new SplitScanner(rebuild, plan, ks, split[0], split[1], checkpoint,
+                        rowThrottle, byteThrottle)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    throw new Exception("Failed to rebuild a split of " + rebuild.getName(), ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // A finished rebuild starts over next time
+        checkpoint.delete();
+        rebuild.finished();
+        logger.info("Rebuilt indexes of " + rebuild + ".");
+    }
+
+    // The start and end tokens of the local splits, as strings. Cassandra
+    // hands out ranges of the raw Token type.
+    @SuppressWarnings("rawtypes")
+    private List<String[]> getSplits(Rebuild rebuild) {
+        List<String[]> result = new ArrayList<String[]>();
+        for (Range<Token> range : StorageService.instance.getLocalPrimaryRanges(rebuild.keyspace)) {
+            for (Pair<Range<Token>, Long> split : StorageService.instance.getSplits(rebuild.keyspace,
+                    rebuild.columnFamily, range, keysPerSplit)) {
+                result.add(new String[] { tokenString(split.left.left), tokenString(split.left.right) });
+            }
+        }
+        return result;
+    }
+
+    // The partitioner's token factory is raw as well
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static String tokenString(Token token) {
+        return StorageService.getPartitioner().getTokenFactory().toString(token);
+    }
+
+    /**
+     * Scans one split, page after page, and writes the entries of its rows.
+     */
+    class SplitScanner implements Runnable {
+        private final Rebuild rebuild;
+        private final IndexPlan plan;
+        private final Keyspace keyspace;
+        private final String left;
+        private final String right;
+        private final RebuildCheckpoint checkpoint;
+        private final RateLimiter rowThrottle;
+        private final RateLimiter byteThrottle;
+
+        SplitScanner(Rebuild rebuild, IndexPlan plan, Keyspace keyspace, String left, String right,
+                RebuildCheckpoint checkpoint, RateLimiter rowThrottle, RateLimiter byteThrottle) {
+            this.rebuild = rebuild;
+            this.plan = plan;
+            this.keyspace = keyspace;
+            this.left = left;
+            this.right = right;
+            this.checkpoint = checkpoint;
+            this.rowThrottle = rowThrottle;
+            this.byteThrottle = byteThrottle;
+        }
+
+        public void run() {
+            try {
+                scan();
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private void scan() throws Exception {
+            IPartitioner<?> partitioner = StorageService.getPartitioner();
+            String splitName = left + "," + right;
+            if (checkpoint.isDone(splitName)) {
+                rebuild.splitsDone.incrementAndGet();
+                return;
+            }
+            String startToken = checkpoint.get(splitName);
+            if (startToken == null) {
+                startToken = left;
+            }
+
+            IndexBatch batch = new IndexBatch();
+            while (true) {
+                // Entries are written with the time their rows were read at
+                long timestamp = System.currentTimeMillis() * 1000;
+                List<Row<String, String, String>> rows = fetchPage(startToken, right);
+                long bytes = 0;
+                for (Row<String, String, String> row : rows) {
+                    bytes += indexRow(row, timestamp, batch);
+                }
+                rebuild.rows.addAndGet(rows.size());
+                rebuild.bytes.addAndGet(bytes);
+                if (rowThrottle != null && !rows.isEmpty()) {
+                    rowThrottle.acquire(rows.size());
+                }
+                if (byteThrottle != null && bytes > 0) {
+                    byteThrottle.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+                }
+
+                boolean last = rows.size() < pageSize;
+                if (!rows.isEmpty()) {
+                    startToken = tokenString(partitioner.getToken(ByteBufferUtil.bytes(rows.get(rows.size() - 1)
+                            .getKey())));
+                }
+                if (last || batch.size() >= batchSize) {
+                    flush(batch);
+                    batch = new IndexBatch();
+                    checkpoint.put(splitName, last ? RebuildCheckpoint.DONE : startToken);
+                }
+                if (last) {
+                    break;
+                }
+            }
+            rebuild.splitsDone.incrementAndGet();
+            logger.info("Rebuilding indexes of " + rebuild + ".");
+        }
+
+        List<Row<String, String, String>> fetchPage(String startToken, String endToken) {
+            RangeSlicesQuery<String, String, String> rangeQuery = HFactory.createRangeSlicesQuery(keyspace,
+                    StringSerializer.get(), StringSerializer.get(), StringSerializer.get());
+            rangeQuery.setColumnFamily(rebuild.columnFamily);
+            rangeQuery.setTokens(null, startToken, endToken);
+            rangeQuery.setRowCount(pageSize);
+            Set<String> columns = plan.getFetchColumns();
+            if (!IndexUtil.containsMultiValueColumn(columns)) {
+                rangeQuery.setColumnNames(columns.toArray(new String[columns.size()]));
+            } else if (columns.size() == 1) {
+                String columnPrefix = IndexUtil.getColumnPrefix(columns.iterator().next());
+                rangeQuery.setRange(columnPrefix, columnPrefix + Character.MAX_VALUE, false, IndexUtil.MAX_COLUMNS);
+            } else {
+                rangeQuery.setRange("", "", false, IndexUtil.MAX_COLUMNS);
+            }
+            return rangeQuery.execute().get().getList();
+        }
+
+        // Adds the entries of a row to the batch, returns the size of the row
+        private long indexRow(Row<String, String, String> row, long timestamp, IndexBatch batch) throws Exception {
+            List<HColumn<String, String>> columns = row.getColumnSlice().getColumns();
+            if (columns.isEmpty()) {
+                // Deleted row
+                return 0;
+            }
+            Map<String, String> values = new HashMap<String, String>();
+            long bytes = row.getKey().length();
+            long writeTime = 0;
+            for (HColumn<String, String> column : columns) {
+                values.put(column.getName(), column.getValue());
+                bytes += column.getName().length() + column.getValue().length();
+                writeTime = Math.max(writeTime, column.getClock());
+            }
+            IndexEntries.addEntries(plan, row.getKey(), values, writeTime, timestamp, batch);
+            return bytes;
+        }
+
+        private void flush(IndexBatch batch) {
+            if (!batch.isEmpty()) {
+                indexDao.execute(batch);
+                rebuild.entries.addAndGet(batch.size());
+            }
+        }
+    }
+
+    /**
+     * The progress of the rebuild of a column family.
+     */
+    public static class Rebuild {
+        private final String keyspace;
+        private final String columnFamily;
+        private final long started = System.currentTimeMillis();
+        private final AtomicInteger splitsTotal = new AtomicInteger();
+        private final AtomicInteger splitsDone = new AtomicInteger();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong entries = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile long finished;
+        private volatile String error;
+
+        public Rebuild(String keyspace, String columnFamily) {
+            this.keyspace = keyspace;
+            this.columnFamily = columnFamily;
+        }
+
+        public String getName() {
+            return keyspace + "." + columnFamily;
+        }
+
+        public boolean isRunning() {
+            return finished == 0;
+        }
+
+        public int getSplitsTotal() {
+            return splitsTotal.get();
+        }
+
+        public int getSplitsDone() {
+            return splitsDone.get();
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public long getEntries() {
+            return entries.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        void finished() {
+            finished = System.currentTimeMillis();
+        }
+
+        void failed(Throwable t) {
+            error = String.valueOf(t.getMessage());
+            finished();
+        }
+
+        @Override
+        public String toString() {
+            long elapsed = (isRunning() ? System.currentTimeMillis() : finished) - started;
+            String state = isRunning() ? "running" : error == null ? "done" : "failed: " + error;
+            return getName() + " (" + state + "): " + getSplitsDone() + "/" + getSplitsTotal() + " splits, "
+                    + getRows() + " rows, " + getEntries() + " entries, " + getBytes() / (1024 * 1024) + " MB in "
+                    + elapsed / 1000 + " s";
+        }
+    }
+}
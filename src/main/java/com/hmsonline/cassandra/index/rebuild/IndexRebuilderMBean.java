@@ -0,0 +1,17 @@
+package com.hmsonline.cassandra.index.rebuild;
+
+import java.util.List;
+
+public interface IndexRebuilderMBean {
+    /**
+     * Starts rebuilding the indexes of a column family from the rows owned by
+     * this node, resuming from its checkpoint if a previous rebuild did not
+     * finish.
+     */
+    public void rebuild(String keyspace, String columnFamily);
+
+    /**
+     * The progress of each rebuild started since the node came up.
+     */
+    public List<String> getRebuilds();
+}
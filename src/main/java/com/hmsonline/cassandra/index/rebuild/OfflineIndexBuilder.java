@@ -0,0 +1,323 @@
+package com.hmsonline.cassandra.index.rebuild;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.factory.HFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.columniterator.OnDiskAtomIterator;
+import org.apache.cassandra.db.compaction.ICompactionScanner;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.CloseableIterator;
+import org.apache.cassandra.utils.MergeIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.hmsonline.cassandra.index.IndexEntries;
+import com.hmsonline.cassandra.index.IndexPlan;
+import com.hmsonline.cassandra.index.dao.BulkIndexDao;
+import com.hmsonline.cassandra.index.dao.DaoFactory;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.dao.IndexDao;
+import com.hmsonline.cassandra.index.util.IndexUtil;
+
+/**
+ * Builds the indexes of a column family from a copy of its SSTables, e.g. a
+ * snapshot, instead of reading the rows through the cluster. The token ring is
+ * cut into ranges at the key samples of the SSTables, and each range is read
+ * sequentially from all SSTables at once, merging the versions of each row the
+ * way compaction does. Ranges are processed in parallel, by default on all
+ * cores.
+ *
+ * Entries are written with the time of the last write to their row, so any
+ * change made to the row after the snapshot wins over them. They are written
+ * to the cluster, or with -Dcassandra.index.offline.output to SSTables of the
+ * Indexes column family for sstableloader. Runs outside of Cassandra, with the
+ * node's cassandra.yaml to load the schema:
+ *
+ * java -Dcassandra.config=file:///etc/cassandra/cassandra.yaml
+ * -Dcassandra.host=host:9160 com.hmsonline.cassandra.index.rebuild.OfflineIndexBuilder
+ * keyspace column_family sstable_directory
+ */
+public class OfflineIndexBuilder {
+    private static final int RANGES_PER_THREAD = 4;
+
+    private static Logger logger = LoggerFactory.getLogger(OfflineIndexBuilder.class);
+
+    private final CFMetaData metadata;
+    private final IndexPlan plan;
+    private final IndexDao indexDao;
+    private final File directory;
+    private final int threads;
+    private final int batchSize;
+    private final RateLimiter diskThrottle;
+    private final AtomicInteger rangesDone = new AtomicInteger();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+
+    public OfflineIndexBuilder(CFMetaData metadata, IndexPlan plan, IndexDao indexDao, File directory, int threads,
+            int batchSize, double megabytesPerSecond) {
+        this.metadata = metadata;
+        this.plan = plan;
+        this.indexDao = indexDao;
+        this.directory = directory;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        // The scanners need a limiter, even an unlimited one
+        this.diskThrottle = RateLimiter.create(megabytesPerSecond > 0 ? megabytesPerSecond * 1024 * 1024
+                : Double.MAX_VALUE);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: OfflineIndexBuilder <keyspace> <column family> <sstable directory>");
+            System.exit(1);
+        }
+        DatabaseDescriptor.loadSchemas();
+        CFMetaData metadata = Schema.instance.getCFMetaData(args[0], args[1]);
+        if (metadata == null) {
+            System.err.println("Unknown column family: " + args[0] + "." + args[1]);
+            System.exit(1);
+        }
+
+        String cassandraHost = System.getProperty("cassandra.host", "localhost:9160");
+        Cluster cluster = HFactory.getOrCreateCluster("Indexing", cassandraHost);
+        IndexPlan plan = DaoFactory.getConfigurationDAO(cluster).getConfiguration().getPlan(args[0], args[1]);
+        if (plan.isEmpty()) {
+            System.err.println(args[0] + "." + args[1] + " has no indexes.");
+            System.exit(1);
+        }
+
+        // Entries are either written to the cluster or to SSTables for sstableloader
+        String output = System.getProperty("cassandra.index.offline.output");
+        BulkIndexDao bulkIndexDao = null;
+        IndexDao indexDao;
+        if (output != null) {
+            bulkIndexDao = DaoFactory.getBulkIndexDAO(cluster, new File(output), Integer.getInteger(
+                    "cassandra.index.offline.buffer_size", 64));
+            indexDao = bulkIndexDao;
+        } else {
+            indexDao = DaoFactory.getIndexDAO(cluster);
+        }
+
+        OfflineIndexBuilder builder = new OfflineIndexBuilder(metadata, plan, indexDao, new File(args[2]),
+                Integer.getInteger("cassandra.index.offline.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("cassandra.index.offline.batch_size", 10000), Double.parseDouble(System
+                        .getProperty("cassandra.index.offline.mb_per_second", "0")));
+        builder.build();
+        if (bulkIndexDao != null) {
+            bulkIndexDao.close();
+            logger.info("Index SSTables written to " + bulkIndexDao.getDirectory() + ", load them with sstableloader.");
+        }
+        System.exit(0);
+    }
+
+    public void build() throws Exception {
+        final List<SSTableReader> sstables = openSSTables();
+        if (sstables.isEmpty()) {
+            logger.info("No SSTables of " + metadata.ksName + "." + metadata.cfName + " in " + directory + ".");
+            return;
+        }
+        List<Runnable> builders = getRangeBuilders(sstables, threads * RANGES_PER_THREAD);
+        logger.info("Building indexes of " + metadata.ksName + "." + metadata.cfName + " from " + sstables.size()
+                + " SSTables in " + builders.size() + " ranges with " + threads + " threads.");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamedThreadFactory("OfflineIndexBuilder"));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Runnable builder : builders) {
+                futures.add(executor.submit(builder));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    throw new Exception("Failed to build a range of " + metadata.ksName + "." + metadata.cfName,
+                            ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("Built indexes of " + metadata.ksName + "." + metadata.cfName + ": " + rows + " rows, "
+                + entries + " entries.");
+    }
+
+    private List<SSTableReader> openSSTables() throws Exception {
+        List<SSTableReader> result = new ArrayList<SSTableReader>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (!file.getName().endsWith("-Data.db")) {
+                continue;
+            }
+            Descriptor descriptor = Descriptor.fromFilename(file.getPath());
+            if (descriptor.temporary || !descriptor.ksname.equals(metadata.ksName)
+                    || !descriptor.cfname.equals(metadata.cfName)) {
+                continue;
+            }
+            result.add(SSTableReader.open(descriptor, metadata));
+        }
+        return result;
+    }
+
+    // Cassandra's scanners take ranges of the raw Token type
+    @SuppressWarnings("rawtypes")
+    private List<Runnable> getRangeBuilders(final List<SSTableReader> sstables, int count) {
+        List<Runnable> result = new ArrayList<Runnable>();
+        for (final Range<Token> range : getRanges(sstables, count)) {
+            result.add(new Runnable() {
+                public void run() {
+                    try {
+                        build(sstables, range);
+                    } catch (RuntimeException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    // Cuts the ring into about count ranges holding as many key samples each
+    @SuppressWarnings("rawtypes")
+    private List<Range<Token>> getRanges(Collection<SSTableReader> sstables, int count) {
+        IPartitioner<?> partitioner = StorageService.getPartitioner();
+        TreeSet<Token<?>> samples = new TreeSet<Token<?>>();
+        for (SSTableReader sstable : sstables) {
+            for (byte[] key : sstable.getKeySamples()) {
+                samples.add(partitioner.getToken(ByteBuffer.wrap(key)));
+            }
+        }
+        List<Token<?>> tokens = new ArrayList<Token<?>>(samples);
+        List<Range<Token>> result = new ArrayList<Range<Token>>();
+        Token<?> minimum = partitioner.getMinimumToken();
+        Token<?> left = minimum;
+        int step = Math.max(1, tokens.size() / count);
+        for (int i = step; i < tokens.size(); i += step) {
+            result.add(new Range<Token>(left, tokens.get(i), partitioner));
+            left = tokens.get(i);
+        }
+        // The last range runs to the end of the ring
+        result.add(new Range<Token>(left, minimum, partitioner));
+        return result;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void build(List<SSTableReader> sstables, Range<Token> range) throws Exception {
+        List<ICompactionScanner> scanners = new ArrayList<ICompactionScanner>();
+        for (SSTableReader sstable : sstables) {
+            scanners.add(sstable.getDirectScanner(range, diskThrottle));
+        }
+        CloseableIterator<Row> merged = MergeIterator.get(scanners, KEY_ORDER, new RowReducer());
+        try {
+            IndexBatch batch = new IndexBatch();
+            while (merged.hasNext()) {
+                Row row = merged.next();
+                if (row.cf == null) {
+                    // Deleted row
+                    continue;
+                }
+                indexRow(row, batch);
+                if (batch.size() >= batchSize) {
+                    flush(batch);
+                    batch = new IndexBatch();
+                }
+            }
+            flush(batch);
+        } finally {
+            merged.close();
+        }
+        logger.info("Building indexes of " + metadata.ksName + "." + metadata.cfName + ": "
+                + rangesDone.incrementAndGet() + " ranges, " + rows + " rows, " + entries + " entries.");
+    }
+
+    private void indexRow(Row row, IndexBatch batch) throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        long writeTime = 0;
+        for (IColumn column : row.cf.getSortedColumns()) {
+            String name = ByteBufferUtil.string(column.name());
+            if (IndexUtil.contains(plan.getFetchColumns(), name)) {
+                values.put(name, ByteBufferUtil.string(column.value()));
+                writeTime = Math.max(writeTime, column.timestamp());
+            }
+        }
+        rows.incrementAndGet();
+        if (!values.isEmpty()) {
+            IndexEntries.addEntries(plan, ByteBufferUtil.string(row.key.key), values, writeTime, writeTime, batch);
+        }
+    }
+
+    private void flush(IndexBatch batch) {
+        if (!batch.isEmpty()) {
+            indexDao.execute(batch);
+            entries.addAndGet(batch.size());
+        }
+    }
+
+    private static final Comparator<OnDiskAtomIterator> KEY_ORDER = new Comparator<OnDiskAtomIterator>() {
+        public int compare(OnDiskAtomIterator row1, OnDiskAtomIterator row2) {
+            return row1.getKey().compareTo(row2.getKey());
+        }
+    };
+
+    /**
+     * Merges the versions of a row found in several SSTables, applying and
+     * then dropping all tombstones. A row without live columns is returned
+     * with a null column family.
+     */
+    class RowReducer extends MergeIterator.Reducer<OnDiskAtomIterator, Row> {
+        private DecoratedKey key;
+        private ColumnFamily columnFamily;
+
+        public void reduce(OnDiskAtomIterator row) {
+            if (columnFamily == null) {
+                key = row.getKey();
+                columnFamily = ColumnFamily.create(metadata);
+            }
+            columnFamily.delete(row.getColumnFamily());
+            while (row.hasNext()) {
+                columnFamily.addAtom(row.next());
+            }
+        }
+
+        protected Row getReduced() {
+            Row result = new Row(key, ColumnFamilyStore.removeDeleted(columnFamily, Integer.MAX_VALUE));
+            key = null;
+            columnFamily = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.hmsonline.cassandra.index.rebuild;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The progress of a rebuild on disk: for each split, the token of the last
+ * row whose entries have been written, or DONE once the split is complete. The
+ * file is replaced atomically, so a crash leaves either the previous or the
+ * new checkpoint.
+ */
+class RebuildCheckpoint {
+    static final String DONE = "done";
+
+    private final File file;
+    private final Properties splits = new Properties();
+
+    RebuildCheckpoint(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                splits.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    synchronized String get(String split) {
+        return splits.getProperty(split);
+    }
+
+    synchronized boolean isDone(String split) {
+        return DONE.equals(splits.getProperty(split));
+    }
+
+    synchronized void put(String split, String token) throws IOException {
+        splits.setProperty(split, token);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            splits.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // Not atomic on every platform, but rename won't replace there
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Unable to write rebuild checkpoint: " + file);
+            }
+        }
+    }
+
+    synchronized void delete() {
+        file.delete();
+    }
+}
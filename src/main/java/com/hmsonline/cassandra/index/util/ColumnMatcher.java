@@ -0,0 +1,102 @@
+package com.hmsonline.cassandra.index.util;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Matches column names against a set of index columns. Plain index columns
+ * match by name, multi-value index columns (prefix:path) match every column
+ * starting with their prefix. Matching works on the serialized column names
+ * and does not allocate.
+ */
+public class ColumnMatcher {
+    private final Set<ByteBuffer> names = new HashSet<ByteBuffer>();
+    private final Node prefixes = new Node();
+    private boolean hasPrefixes;
+
+    public ColumnMatcher(Collection<String> indexColumns) {
+        for (String indexColumn : indexColumns) {
+            if (IndexUtil.isMultiValueColumn(indexColumn)) {
+                addPrefix(ByteBufferUtil.bytes(IndexUtil.getColumnPrefix(indexColumn)));
+            } else {
+                names.add(ByteBufferUtil.bytes(indexColumn));
+            }
+        }
+    }
+
+    public boolean matches(ByteBuffer columnName) {
+        return names.contains(columnName) || (hasPrefixes && matchesPrefix(columnName));
+    }
+
+    public boolean matchesAny(ColumnFamily columnFamily) {
+        for (ByteBuffer columnName : columnFamily.getColumnNames()) {
+            if (matches(columnName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addPrefix(ByteBuffer prefix) {
+        hasPrefixes = true;
+        Node node = prefixes;
+        for (int i = prefix.position(); i < prefix.limit(); i++) {
+            node = node.getOrAddChild(prefix.get(i));
+        }
+        node.terminal = true;
+    }
+
+    private boolean matchesPrefix(ByteBuffer columnName) {
+        Node node = prefixes;
+        for (int i = columnName.position(); !node.terminal; i++) {
+            if (i >= columnName.limit()) {
+                return false;
+            }
+            node = node.getChild(columnName.get(i));
+            if (node == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Trie node, the fan out of column name prefixes is small so children
+     * are kept in plain arrays.
+     */
+    static class Node {
+        private byte[] keys = new byte[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        Node getChild(byte key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrAddChild(byte key) {
+            Node child = getChild(key);
+            if (child == null) {
+                byte[] newKeys = new byte[keys.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, keys.length);
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                child = new Node();
+                newKeys[keys.length] = key;
+                newChildren[children.length] = child;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+}
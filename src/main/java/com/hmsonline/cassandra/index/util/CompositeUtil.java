@@ -2,28 +2,251 @@ package com.hmsonline.cassandra.index.util;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.utils.ByteBufferUtil;
 
+/**
+ * Encodes and decodes the names of index columns. Two formats are supported:
+ *
+ * DELIMITED - the historical format, the UTF-8 parts joined by \u0000. Sorts
+ * correctly under UTF8Type but can't represent values containing \u0000.
+ *
+ * COMPOSITE - Cassandra's CompositeType wire format, each component as a 2
+ * byte length, the bytes and an end-of-component byte. Requires the Indexes
+ * column family to use a CompositeType(UTF8Type, ...) comparator with at least
+ * as many components as the widest index plus one for the row key.
+ *
+ * The format used for writing is set with -Dcassandra.index.format.
+ *
+ * Names are encoded straight to bytes and stay encoded until they are
+ * written, but their parts are still the Strings the handler extracts from
+ * the rows: the json extraction and the row cache work on decoded values.
+ */
 public class CompositeUtil {
     public static final char COMPOSITE_DELIM = Character.MIN_VALUE;
+    private static final byte DELIM_BYTE = 0;
+    private static final byte END_OF_COMPONENT = 0;
+    private static final int MAX_COMPONENT_LENGTH = 0xFFFF;
 
+    public enum Format {
+        DELIMITED, COMPOSITE
+    }
+
+    public static final Format FORMAT = Format.valueOf(System.getProperty("cassandra.index.format",
+            Format.DELIMITED.name()).toUpperCase());
+
+    /**
+     * The DELIMITED name as a String, for the callers of the historical String
+     * API. The write path encodes with compose(List, Format) instead.
+     */
     public static String compose(List<String> parts) throws ConfigurationException {
-        StringBuffer buf = new StringBuffer();
+        int length = parts.size();
         for (String part : parts) {
-            buf.append(COMPOSITE_DELIM).append(part == null ? "" : part);
+            length += part == null ? 0 : part.length();
         }
-        if (buf.length() > 0) {
-            buf.deleteCharAt(0);
+        StringBuilder buf = new StringBuilder(length);
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                buf.append(COMPOSITE_DELIM);
+            }
+            String part = parts.get(i);
+            buf.append(part == null ? "" : part);
         }
         return buf.toString();
     }
 
     public static List<String> decompose(ByteBuffer value) throws ConfigurationException, CharacterCodingException {
-        String[] parts = ByteBufferUtil.string(value).split(String.valueOf(COMPOSITE_DELIM));
-        return Arrays.asList(parts);
+        return decompose(value, Format.DELIMITED);
+    }
+
+    /**
+     * Encodes the parts in the given format into a single buffer.
+     */
+    public static ByteBuffer compose(List<String> parts, Format format) {
+        List<ByteBuffer> components = new ArrayList<ByteBuffer>(parts.size());
+        for (String part : parts) {
+            components.add(part == null ? ByteBufferUtil.EMPTY_BYTE_BUFFER : ByteBufferUtil.bytes(part));
+        }
+        return format == Format.COMPOSITE ? composeBytes(components) : join(components);
+    }
+
+    /**
+     * Encodes the components in the CompositeType format. The components are
+     * copied as they are, no intermediate Strings are created.
+     */
+    public static ByteBuffer composeBytes(List<ByteBuffer> components) {
+        int length = 0;
+        for (ByteBuffer component : components) {
+            if (component.remaining() > MAX_COMPONENT_LENGTH) {
+                throw new IllegalArgumentException("Composite component too long: " + component.remaining()
+                        + " bytes");
+            }
+            length += 2 + component.remaining() + 1;
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        for (ByteBuffer component : components) {
+            result.putShort((short) component.remaining());
+            result.put(component.duplicate());
+            result.put(END_OF_COMPONENT);
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Encodes the start of a slice over all names whose leading components
+     * equal the given parts. An empty list yields an open bound.
+     */
+    public static ByteBuffer sliceStart(List<String> parts, Format format) {
+        return sliceBound(parts, format, false);
+    }
+
+    /**
+     * Encodes the end of a slice over all names whose leading components equal
+     * the given parts. An empty list yields an open bound.
+     */
+    public static ByteBuffer sliceEnd(List<String> parts, Format format) {
+        return sliceBound(parts, format, true);
+    }
+
+    private static ByteBuffer sliceBound(List<String> parts, Format format, boolean end) {
+        if (parts.isEmpty()) {
+            return ByteBufferUtil.EMPTY_BYTE_BUFFER;
+        }
+        if (format == Format.COMPOSITE) {
+            // The end-of-component byte of the last component makes the bound
+            // sort before (0) or after (1) every name extending it
+            ByteBuffer bound = compose(parts, format);
+            bound.put(bound.limit() - 1, (byte) (end ? 1 : 0));
+            return bound;
+        }
+        List<String> bound = new ArrayList<String>(parts);
+        bound.add(end ? String.valueOf(Character.MAX_VALUE) : "");
+        return compose(bound, format);
+    }
+
+    /**
+     * Splits an encoded name into its components. The components are views on
+     * the given buffer, nothing is copied or decoded.
+     */
+    public static List<ByteBuffer> split(ByteBuffer name, Format format) {
+        List<ByteBuffer> components = new ArrayList<ByteBuffer>();
+        if (format == Format.COMPOSITE) {
+            int position = name.position();
+            while (position < name.limit()) {
+                if (position + 2 > name.limit()) {
+                    throw new IllegalArgumentException("Invalid composite name, truncated component length");
+                }
+                int length = name.getShort(position) & 0xFFFF;
+                int start = position + 2;
+                if (start + length + 1 > name.limit()) {
+                    throw new IllegalArgumentException("Invalid composite name, truncated component");
+                }
+                components.add(slice(name, start, length));
+                position = start + length + 1;
+            }
+        } else {
+            // A NUL byte never occurs inside a multi-byte UTF-8 sequence
+            int start = name.position();
+            for (int i = start; i < name.limit(); i++) {
+                if (name.get(i) == DELIM_BYTE) {
+                    components.add(slice(name, start, i - start));
+                    start = i + 1;
+                }
+            }
+            components.add(slice(name, start, name.limit() - start));
+
+            // Same as String.split, trailing empty parts are dropped
+            int last = components.size() - 1;
+            while (last > 0 && !components.get(last).hasRemaining()) {
+                components.remove(last--);
+            }
+            if (last == 0 && !components.get(0).hasRemaining() && name.hasRemaining()) {
+                components.remove(0);
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Returns the leading components of an encoded name, as a view on the
+     * given buffer. The prefix is encoded exactly as composing those parts
+     * would encode it. A name with fewer components is returned whole.
+     */
+    public static ByteBuffer prefix(ByteBuffer name, int components, Format format) {
+        int end = name.limit();
+        if (format == Format.COMPOSITE) {
+            int position = name.position();
+            for (int i = 0; i < components && position + 2 <= name.limit(); i++) {
+                position += 2 + (name.getShort(position) & 0xFFFF) + 1;
+            }
+            end = Math.min(position, name.limit());
+        } else {
+            int found = 0;
+            for (int i = name.position(); i < name.limit(); i++) {
+                if (name.get(i) == DELIM_BYTE && ++found == components) {
+                    end = i;
+                    break;
+                }
+            }
+        }
+        return slice(name, name.position(), end - name.position());
+    }
+
+    /**
+     * Compares two encoded names the way the Indexes comparator of the format
+     * orders them.
+     */
+    public static int compare(ByteBuffer name1, ByteBuffer name2, Format format) {
+        if (format != Format.COMPOSITE) {
+            return ByteBufferUtil.compareUnsigned(name1, name2);
+        }
+        List<ByteBuffer> components1 = split(name1, format);
+        List<ByteBuffer> components2 = split(name2, format);
+        for (int i = 0; i < components1.size() && i < components2.size(); i++) {
+            int result = ByteBufferUtil.compareUnsigned(components1.get(i), components2.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return components1.size() - components2.size();
+    }
+
+    /**
+     * Decodes an encoded name into its UTF-8 parts.
+     */
+    public static List<String> decompose(ByteBuffer name, Format format) throws CharacterCodingException {
+        List<ByteBuffer> components = split(name, format);
+        List<String> parts = new ArrayList<String>(components.size());
+        for (ByteBuffer component : components) {
+            parts.add(ByteBufferUtil.string(component));
+        }
+        return parts;
+    }
+
+    private static ByteBuffer join(List<ByteBuffer> components) {
+        int length = Math.max(0, components.size() - 1);
+        for (ByteBuffer component : components) {
+            length += component.remaining();
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        for (int i = 0; i < components.size(); i++) {
+            if (i > 0) {
+                result.put(DELIM_BYTE);
+            }
+            result.put(components.get(i).duplicate());
+        }
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(start + length);
+        slice.position(start);
+        return slice;
     }
 }
@@ -0,0 +1,110 @@
+package com.hmsonline.cassandra.index.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily walks the cartesian product of groups of index values, yielding the
+ * parts of one index entry at a time with the row key as the last part.
+ *
+ * Each group is a list of tuples with one slot per index column, a tuple only
+ * sets the slots of the columns of its group. Uncorrelated indexes have one
+ * group per column, correlated indexes one group per json document prefix.
+ * Groups without tuples contribute empty parts, the product is empty if no
+ * group has a tuple.
+ */
+public class IndexPartsIterator implements Iterator<String[]> {
+    private final List<List<String[]>> groups;
+    private final int[] positions;
+    private final int width;
+    private final String rowKey;
+    private final long count;
+    private boolean hasNext;
+
+    public IndexPartsIterator(List<String> indexColumns, String rowKey, Map<String, List<String>> row) {
+        this(columnGroups(indexColumns, row), indexColumns.size(), rowKey);
+    }
+
+    public IndexPartsIterator(List<List<String[]>> groups, int width, String rowKey) {
+        this.groups = groups;
+        this.positions = new int[groups.size()];
+        this.width = width;
+        this.rowKey = rowKey;
+
+        long product = 0;
+        for (List<String[]> group : groups) {
+            int size = group.size();
+            if (size > 0) {
+                product = product == 0 ? size : (product > Long.MAX_VALUE / size ? Long.MAX_VALUE : product * size);
+            }
+        }
+        this.count = product;
+        this.hasNext = product > 0;
+    }
+
+    private static List<List<String[]>> columnGroups(List<String> indexColumns, Map<String, List<String>> row) {
+        List<List<String[]>> groups = new ArrayList<List<String[]>>(indexColumns.size());
+        for (int i = 0; i < indexColumns.size(); i++) {
+            List<String> values = row.get(indexColumns.get(i));
+            List<String[]> group = new ArrayList<String[]>(values.size());
+            for (String value : values) {
+                String[] tuple = new String[indexColumns.size()];
+                tuple[i] = value;
+                group.add(tuple);
+            }
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    public String getRowKey() {
+        return rowKey;
+    }
+
+    /**
+     * The number of entries of the product, saturated at Long.MAX_VALUE.
+     */
+    public long count() {
+        return count;
+    }
+
+    public boolean hasNext() {
+        return hasNext;
+    }
+
+    public String[] next() {
+        if (!hasNext) {
+            throw new NoSuchElementException();
+        }
+        String[] parts = new String[width + 1];
+        for (int i = 0; i < groups.size(); i++) {
+            if (!groups.get(i).isEmpty()) {
+                String[] tuple = groups.get(i).get(positions[i]);
+                for (int j = 0; j < width; j++) {
+                    if (tuple[j] != null) {
+                        parts[j] = tuple[j];
+                    }
+                }
+            }
+        }
+        parts[width] = rowKey;
+
+        // Advance like an odometer, the last group turning fastest
+        hasNext = false;
+        for (int i = groups.size() - 1; i >= 0; i--) {
+            if (++positions[i] < groups.get(i).size()) {
+                hasNext = true;
+                break;
+            }
+            positions[i] = 0;
+        }
+        return parts;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -14,7 +14,10 @@ import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.SliceQuery;
 
@@ -22,70 +25,99 @@ import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.commons.lang.StringUtils;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import com.hmsonline.cassandra.index.Configuration;
+import com.hmsonline.cassandra.index.IndexPlan;
 
 public class IndexUtil {
     public static final String INDEXING_KEYSPACE = "Indexing";
-    private static Logger logger = LoggerFactory.getLogger(IndexUtil.class);
+    public static final int MAX_COLUMNS = 2000;
 
     public static List<String> buildIndexes(List<String> indexColumns, String rowKey, Map<String, List<String>> row)
             throws Exception {
-        // Calculate number of indexes
-        int numIndexes = 0;
-        for (String indexColumn : indexColumns) {
-            List<String> values = row.get(indexColumn);
-            if (!values.isEmpty()) {
-                numIndexes = numIndexes == 0 ? values.size() : numIndexes * values.size();
-            }
+        List<String> result = new ArrayList<String>();
+        for (Iterator<String[]> parts = new IndexPartsIterator(indexColumns, rowKey, row); parts.hasNext();) {
+            result.add(CompositeUtil.compose(Arrays.asList(parts.next())));
         }
+        return result;
+    }
 
-        if (numIndexes == 0) {
-            return new ArrayList<String>();
+    /**
+     * Builds the index column names already encoded in the given format, so
+     * they can be handed to the mutator as they are.
+     */
+    public static List<ByteBuffer> buildIndexNames(List<String> indexColumns, String rowKey,
+            Map<String, List<String>> row, CompositeUtil.Format format) {
+        List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+        for (Iterator<ByteBuffer> names = indexNames(indexColumns, rowKey, row, format); names.hasNext();) {
+            result.add(names.next());
         }
+        return result;
+    }
 
-        // Create empty indexes with the last part filled with rowkey
-        List<String[]> indexes = new ArrayList<String[]>();
-        for (int i = 0; i < numIndexes; i++) {
-            String[] parts = new String[indexColumns.size() + 1];
-            parts[parts.length - 1] = rowKey;
-            indexes.add(parts);
-        }
+    /**
+     * Lazily encodes the index column names of a row, one entry of the
+     * cartesian product of the index column values at a time.
+     */
+    public static Iterator<ByteBuffer> indexNames(List<String> indexColumns, String rowKey,
+            Map<String, List<String>> row, CompositeUtil.Format format) {
+        return indexNames(new IndexPartsIterator(indexColumns, rowKey, row), format);
+    }
 
-        // Fill in indexes with component values
-        setIndexValues(indexes, indexColumns, row, 0);
+    public static Iterator<ByteBuffer> indexNames(final Iterator<String[]> parts, final CompositeUtil.Format format) {
+        return new Iterator<ByteBuffer>() {
+            public boolean hasNext() {
+                return parts.hasNext();
+            }
 
-        // Build indexes
-        List<String> result = new ArrayList<String>();
-        for (String[] parts : indexes) {
-            result.add(CompositeUtil.compose(Arrays.asList(parts)));
-        }
+            public ByteBuffer next() {
+                return CompositeUtil.compose(Arrays.asList(parts.next()), format);
+            }
 
-        return result;
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
-    private static void setIndexValues(List<String[]> indexes, List<String> indexColumns, Map<String, List<String>> row,
-            int pos) {
-        if (pos >= indexColumns.size()) {
-            return;
-        }
+    /**
+     * The number of index entries a row produces for the index columns.
+     */
+    public static long countIndexes(List<String> indexColumns, Map<String, List<String>> row) {
+        return new IndexPartsIterator(indexColumns, null, row).count();
+    }
 
-        List<String> values = row.get(indexColumns.get(pos));
-        if (!values.isEmpty()) {
-            int count = 0, n = indexes.size() / values.size();
-            for (int i = 0; i < n; i++) {
-                for (String value : values) {
-                    indexes.get(count++)[pos] = value;
+    /**
+     * Builds the index entry parts of a correlated index: values extracted
+     * from the same json array element stay together instead of being
+     * combined with the values of the other elements. The extractors are the
+     * index's own, keyed by column prefix.
+     */
+    public static IndexPartsIterator getCorrelatedParts(Map<String, String> row, String rowKey,
+            List<String> indexColumns, Map<String, JsonPathExtractor> extractors) {
+        List<List<String[]>> groups = new ArrayList<List<String[]>>();
+        for (int i = 0; i < indexColumns.size(); i++) {
+            String indexColumn = indexColumns.get(i);
+            if (!isMultiValueColumn(indexColumn)) {
+                List<String[]> group = new ArrayList<String[]>();
+                if (StringUtils.isNotEmpty(row.get(indexColumn))) {
+                    String[] tuple = new String[indexColumns.size()];
+                    tuple[i] = row.get(indexColumn);
+                    group.add(tuple);
                 }
+                groups.add(group);
             }
         }
-
-        setIndexValues(indexes, indexColumns, row, pos + 1);
+        for (JsonPathExtractor extractor : extractors.values()) {
+            List<String[]> group = new ArrayList<String[]>();
+            for (Map.Entry<String, String> column : row.entrySet()) {
+                if (column.getKey().startsWith(extractor.getPrefix()) && StringUtils.isNotEmpty(column.getValue())) {
+                    extractor.extractTuples(column.getValue(), indexColumns, group);
+                }
+            }
+            groups.add(group);
+        }
+        return new IndexPartsIterator(groups, indexColumns.size(), rowKey);
     }
 
     public static boolean indexChanged(ColumnFamily columnFamily, Collection<String> indexColumns) throws Exception {
@@ -97,7 +129,7 @@ public class IndexUtil {
         return false;
     }
 
-    private static boolean contains(Collection<String> indexColumns, String columnName) {
+    public static boolean contains(Collection<String> indexColumns, String columnName) {
         for (String indexColumn : indexColumns) {
             if (isMultiValueColumn(indexColumn)) {
                 if (columnName.startsWith(getColumnPrefix(indexColumn))) {
@@ -113,64 +145,37 @@ public class IndexUtil {
     }
 
     public static Map<String, List<String>> getIndexValues(Map<String, String> row, Collection<String> indexColumns) {
+        return getIndexValues(row, indexColumns, null);
+    }
+
+    public static Map<String, List<String>> getIndexValues(Map<String, String> row, IndexPlan plan) {
+        return getIndexValues(row, plan.getIndexColumns(), plan);
+    }
+
+    private static Map<String, List<String>> getIndexValues(Map<String, String> row, Collection<String> indexColumns,
+            IndexPlan plan) {
         Map<String, List<String>> result = new HashMap<String, List<String>>();
 
         for (String indexColumn : indexColumns) {
             List<String> values = new ArrayList<String>();
-
-            if (isMultiValueColumn(indexColumn)) {
-                String[] path = indexColumn.split(Configuration.FIELD_DELIM);
-                for (String columnName : row.keySet()) {
-                    if (columnName.startsWith(path[0]) && StringUtils.isNotEmpty(row.get(columnName))) {
-                        values.addAll(getJsonValues(row.get(columnName), path));
-                    }
-                }
-            } else {
-                if (StringUtils.isNotEmpty(row.get(indexColumn))) {
-                    values.add(row.get(indexColumn));
-                }
+            if (!isMultiValueColumn(indexColumn) && StringUtils.isNotEmpty(row.get(indexColumn))) {
+                values.add(row.get(indexColumn));
             }
-
             result.put(indexColumn, values);
         }
 
-        return result;
-    }
-
-    private static List<String> getJsonValues(String jsonString, String[] path) {
-        Object json = null;
-        try {
-            json = new JSONParser().parse(jsonString);
-        } catch (Exception ex) {
-            logger.warn("Unable to parse json string: " + jsonString, ex);
-        }
-        return getJsonValues(json, path, 1);
-    }
-
-    private static List<String> getJsonValues(Object json, String[] path, int index) {
-        if (json == null) {
-            return new ArrayList<String>();
-        }
-
-        if (index >= path.length) {
-            return Arrays.asList(String.valueOf(json));
-        }
-
-        if (json instanceof JSONObject) {
-            return getJsonValues(((JSONObject) json).get(path[index]), path, index + 1);
-        }
-
-        if (json instanceof JSONArray) {
-            List<String> values = new ArrayList<String>();
-            Iterator<?> iter = ((JSONArray) json).iterator();
-            while (iter.hasNext()) {
-                values.addAll(getJsonValues(iter.next(), path, index));
+        // Each json column is parsed once for all index columns on it
+        Map<String, JsonPathExtractor> extractors = plan != null ? plan.getExtractors() : JsonPathExtractor
+                .compile(indexColumns);
+        for (JsonPathExtractor extractor : extractors.values()) {
+            for (Map.Entry<String, String> column : row.entrySet()) {
+                if (column.getKey().startsWith(extractor.getPrefix()) && StringUtils.isNotEmpty(column.getValue())) {
+                    extractor.extract(column.getValue(), result);
+                }
             }
-            return values;
         }
 
-        logger.warn("Invalid json format: " + json);
-        return new ArrayList<String>();
+        return result;
     }
 
     public static Map<String, String> fetchRow(Cluster cluster, String keyspace, String columnFamily, String key,
@@ -183,22 +188,50 @@ public class IndexUtil {
 
         if (!containsMultiValueColumn(indexColumns)) {
             // Fetch specific columns
-            List<String> columnNames = new ArrayList<String>();
-            for (String indexColumn : indexColumns) {
-                columnNames.add(indexColumn);
-            }
-            String[] varargs = columnNames.toArray(new String[0]);
-            sliceQuery.setColumnNames(varargs);
+            sliceQuery.setColumnNames(indexColumns.toArray(new String[indexColumns.size()]));
         } else if (indexColumns.size() == 1) {
             // Fetch a slice range
             String columnPrefix = getColumnPrefix(indexColumns.iterator().next());
-            sliceQuery.setRange(columnPrefix, columnPrefix + Character.MAX_VALUE, false, 2000);
+            sliceQuery.setRange(columnPrefix, columnPrefix + Character.MAX_VALUE, false, MAX_COLUMNS);
         } else {
-            sliceQuery.setRange("", "", false, 2000); // MAX_COLUMNS
+            sliceQuery.setRange("", "", false, MAX_COLUMNS);
         }
         QueryResult<ColumnSlice<String, String>> row = sliceQuery.execute();
-        ColumnSlice<String, String> columns = row.get();
+        return toMap(row.get());
+    }
 
+    /**
+     * Fetches the index columns of several rows of a column family with a
+     * single multiget. Every requested key is present in the result, rows that
+     * don't exist are returned empty.
+     */
+    public static Map<String, Map<String, String>> fetchRows(Cluster cluster, String keyspace, String columnFamily,
+            Collection<String> keys, Collection<String> indexColumns) throws Exception {
+        Keyspace ks = HFactory.createKeyspace(keyspace, cluster);
+        MultigetSliceQuery<String, String, String> multigetQuery = HFactory.createMultigetSliceQuery(ks,
+                StringSerializer.get(), StringSerializer.get(), StringSerializer.get());
+        multigetQuery.setColumnFamily(columnFamily);
+        multigetQuery.setKeys(keys);
+
+        if (!containsMultiValueColumn(indexColumns)) {
+            multigetQuery.setColumnNames(indexColumns.toArray(new String[indexColumns.size()]));
+        } else if (indexColumns.size() == 1) {
+            String columnPrefix = getColumnPrefix(indexColumns.iterator().next());
+            multigetQuery.setRange(columnPrefix, columnPrefix + Character.MAX_VALUE, false, MAX_COLUMNS);
+        } else {
+            multigetQuery.setRange("", "", false, MAX_COLUMNS);
+        }
+        Rows<String, String, String> rows = multigetQuery.execute().get();
+
+        Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+        for (String key : keys) {
+            Row<String, String, String> row = rows.getByKey(key);
+            result.put(key, row == null ? new HashMap<String, String>() : toMap(row.getColumnSlice()));
+        }
+        return result;
+    }
+
+    private static Map<String, String> toMap(ColumnSlice<String, String> columns) {
         Map<String, String> result = new HashMap<String, String>();
         for (HColumn<String, String> column : columns.getColumns()) {
             result.put(column.getName(), column.getValue());
@@ -206,20 +239,44 @@ public class IndexUtil {
         return result;
     }
 
+    /**
+     * Returns the row as it will be after the mutation. A deleted row only
+     * keeps the columns written after its deletion.
+     */
     public static Map<String, String> getNewRow(Map<String, String> currentRow, ColumnFamily columnFamily)
             throws Exception {
+        boolean deleted = columnFamily.isMarkedForDelete();
         Map<String, String> mutation = new HashMap<String, String>();
         for (IColumn column : columnFamily.getSortedColumns()) {
+            if (deleted && columnFamily.deletionInfo().isDeleted(column)) {
+                continue;
+            }
             String value = column.isMarkedForDelete() ? null : ByteBufferUtil.string(column.value());
             mutation.put(ByteBufferUtil.string(column.name()), value);
         }
 
-        Map<String, String> newRow = new HashMap<String, String>(currentRow);
+        Map<String, String> newRow = deleted ? new HashMap<String, String>() : new HashMap<String, String>(currentRow);
         newRow.putAll(mutation);
         return newRow;
     }
+
+    /**
+     * Whether a mutation deleting a row also writes columns after the
+     * deletion, as a delete followed by an insert in one batch does.
+     */
+    public static boolean isRewritten(ColumnFamily columnFamily) {
+        if (!columnFamily.isMarkedForDelete()) {
+            return false;
+        }
+        for (IColumn column : columnFamily.getSortedColumns()) {
+            if (!column.isMarkedForDelete() && !columnFamily.deletionInfo().isDeleted(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
         
-    private static boolean containsMultiValueColumn(Collection<String> indexColumns) {
+    public static boolean containsMultiValueColumn(Collection<String> indexColumns) {
         for (String indexColumn : indexColumns) {
             if (isMultiValueColumn(indexColumn)) {
                 return true;
@@ -228,11 +285,11 @@ public class IndexUtil {
         return false;
     }
 
-    private static boolean isMultiValueColumn(String indexColumn) {
+    public static boolean isMultiValueColumn(String indexColumn) {
         return indexColumn.indexOf(Configuration.FIELD_DELIM) >= 0;
     }
 
-    private static String getColumnPrefix(String indexColumn) {
+    public static String getColumnPrefix(String indexColumn) {
         return indexColumn.substring(0, indexColumn.indexOf(Configuration.FIELD_DELIM));
     }
 }
@@ -0,0 +1,308 @@
+package com.hmsonline.cassandra.index.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.MappingJsonFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hmsonline.cassandra.index.Configuration;
+import com.hmsonline.cassandra.index.IndexMetrics;
+
+/**
+ * Extracts the values of all multi-value index columns sharing a column prefix
+ * (prefix:field:field...) from a json document in a single streaming pass.
+ * The requested paths are compiled into a tree of field names, fields that
+ * are not on any path are skipped without being materialized. Arrays are
+ * traversed transparently, so a path yields one value per array element.
+ *
+ * For correlated indexes the values can also be extracted as tuples, keeping
+ * the values found under the same array element together.
+ */
+public class JsonPathExtractor {
+    private static final JsonFactory factory = new MappingJsonFactory();
+    private static Logger logger = LoggerFactory.getLogger(JsonPathExtractor.class);
+
+    private final String prefix;
+    private final Node root = new Node();
+
+    public JsonPathExtractor(String prefix, Collection<String> indexColumns) {
+        this.prefix = prefix;
+        for (String indexColumn : indexColumns) {
+            String[] path = indexColumn.split(Configuration.FIELD_DELIM);
+            Node node = root;
+            for (int i = 1; i < path.length; i++) {
+                node = node.getOrAddChild(path[i]);
+            }
+            node.indexColumns.add(indexColumn);
+        }
+    }
+
+    /**
+     * Compiles one extractor per column prefix for the multi-value columns
+     * among the given index columns.
+     */
+    public static Map<String, JsonPathExtractor> compile(Collection<String> indexColumns) {
+        Map<String, List<String>> columnsByPrefix = new LinkedHashMap<String, List<String>>();
+        for (String indexColumn : indexColumns) {
+            if (IndexUtil.isMultiValueColumn(indexColumn)) {
+                String prefix = IndexUtil.getColumnPrefix(indexColumn);
+                if (!columnsByPrefix.containsKey(prefix)) {
+                    columnsByPrefix.put(prefix, new ArrayList<String>());
+                }
+                columnsByPrefix.get(prefix).add(indexColumn);
+            }
+        }
+
+        Map<String, JsonPathExtractor> result = new LinkedHashMap<String, JsonPathExtractor>();
+        for (Map.Entry<String, List<String>> entry : columnsByPrefix.entrySet()) {
+            result.put(entry.getKey(), new JsonPathExtractor(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Adds the values found in the json document to the lists of their index
+     * columns. Nothing is added if the document can't be parsed.
+     */
+    public void extract(String json, Map<String, List<String>> values) {
+        Map<String, List<String>> found = new HashMap<String, List<String>>();
+        try {
+            JsonParser parser = factory.createJsonParser(json);
+            try {
+                if (parser.nextToken() != null) {
+                    walk(parser, root, found);
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (Exception ex) {
+            IndexMetrics.jsonParseFailures.inc();
+            logger.warn("Unable to parse json string: " + json, ex);
+            return;
+        }
+
+        for (Map.Entry<String, List<String>> entry : found.entrySet()) {
+            values.get(entry.getKey()).addAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Adds the value tuples found in the json document. Each tuple has one
+     * slot per index column, in the given order, and only sets the slots of
+     * the columns of this extractor. Sibling fields of an object are combined,
+     * the elements of an array each yield their own tuples, so values under
+     * the same array element stay correlated. Nothing is added if the
+     * document can't be parsed.
+     */
+    public void extractTuples(String json, List<String> indexColumns, List<String[]> tuples) {
+        List<String[]> found;
+        try {
+            JsonParser parser = factory.createJsonParser(json);
+            try {
+                if (parser.nextToken() == null) {
+                    return;
+                }
+                found = tuples(parser.readValueAsTree(), root, indexColumns);
+            } finally {
+                parser.close();
+            }
+        } catch (Exception ex) {
+            IndexMetrics.jsonParseFailures.inc();
+            logger.warn("Unable to parse json string: " + json, ex);
+            return;
+        }
+
+        for (String[] tuple : found) {
+            for (String value : tuple) {
+                if (value != null) {
+                    tuples.add(tuple);
+                    break;
+                }
+            }
+        }
+    }
+
+    private List<String[]> tuples(JsonNode json, Node node, List<String> indexColumns) {
+        String[] tuple = new String[indexColumns.size()];
+        if (!node.indexColumns.isEmpty() && !json.isNull()) {
+            String value = json.isContainerNode() ? json.toString() : scalarValue(json);
+            for (String indexColumn : node.indexColumns) {
+                tuple[indexColumns.indexOf(indexColumn)] = value;
+            }
+        }
+        List<String[]> result = new ArrayList<String[]>();
+        result.add(tuple);
+        return node.children.isEmpty() ? result : product(result, childTuples(json, node, indexColumns));
+    }
+
+    private List<String[]> childTuples(JsonNode json, Node node, List<String> indexColumns) {
+        List<String[]> result = new ArrayList<String[]>();
+        if (json.isObject()) {
+            result.add(new String[indexColumns.size()]);
+            for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                JsonNode value = json.get(child.getKey());
+                if (value != null) {
+                    result = product(result, tuples(value, child.getValue(), indexColumns));
+                }
+            }
+        } else if (json.isArray()) {
+            Iterator<JsonNode> elements = json.getElements();
+            while (elements.hasNext()) {
+                result.addAll(childTuples(elements.next(), node, indexColumns));
+            }
+        }
+        if (result.isEmpty()) {
+            result.add(new String[indexColumns.size()]);
+        }
+        return result;
+    }
+
+    private static List<String[]> product(List<String[]> left, List<String[]> right) {
+        List<String[]> result = new ArrayList<String[]>(left.size() * right.size());
+        for (String[] l : left) {
+            for (String[] r : right) {
+                String[] tuple = l.clone();
+                for (int i = 0; i < r.length; i++) {
+                    if (r[i] != null) {
+                        tuple[i] = r[i];
+                    }
+                }
+                result.add(tuple);
+            }
+        }
+        return result;
+    }
+
+    private void walk(JsonParser parser, Node node, Map<String, List<String>> found) throws IOException {
+        if (node.indexColumns.isEmpty()) {
+            walkChildren(parser, node, found);
+            return;
+        }
+
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            // A path ends on a container, its value is the container itself
+            JsonNode tree = parser.readValueAsTree();
+            add(node, tree.toString(), found);
+            walkChildren(tree, node, found);
+        } else if (token != JsonToken.VALUE_NULL) {
+            add(node, scalarValue(parser), found);
+        }
+    }
+
+    private void walkChildren(JsonParser parser, Node node, Map<String, List<String>> found) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                Node child = node.getChild(parser.getCurrentName());
+                parser.nextToken();
+                if (child == null) {
+                    parser.skipChildren();
+                } else {
+                    walk(parser, child, found);
+                }
+            }
+        } else if (token == JsonToken.START_ARRAY) {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                walkChildren(parser, node, found);
+            }
+        } else if (token != JsonToken.VALUE_NULL) {
+            logger.warn("Invalid json format: " + parser.getText());
+        }
+    }
+
+    private void walkTree(JsonNode json, Node node, Map<String, List<String>> found) {
+        if (!node.indexColumns.isEmpty() && !json.isNull()) {
+            add(node, json.isContainerNode() ? json.toString() : scalarValue(json), found);
+        }
+        walkChildren(json, node, found);
+    }
+
+    private void walkChildren(JsonNode json, Node node, Map<String, List<String>> found) {
+        if (node.children.isEmpty()) {
+            return;
+        }
+        if (json.isObject()) {
+            for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                JsonNode value = json.get(child.getKey());
+                if (value != null) {
+                    walkTree(value, child.getValue(), found);
+                }
+            }
+        } else if (json.isArray()) {
+            Iterator<JsonNode> elements = json.getElements();
+            while (elements.hasNext()) {
+                walkChildren(elements.next(), node, found);
+            }
+        }
+    }
+
+    private void add(Node node, String value, Map<String, List<String>> found) {
+        for (String indexColumn : node.indexColumns) {
+            List<String> values = found.get(indexColumn);
+            if (values == null) {
+                values = new ArrayList<String>();
+                found.put(indexColumn, values);
+            }
+            values.add(value);
+        }
+    }
+
+    // Scalars are rendered the way the index entries have always been
+    // written: integers as longs and decimals as doubles.
+    private static String scalarValue(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+        case VALUE_NUMBER_INT:
+            return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER ? parser.getText() : String
+                    .valueOf(parser.getLongValue());
+        case VALUE_NUMBER_FLOAT:
+            return String.valueOf(parser.getDoubleValue());
+        default:
+            return parser.getText();
+        }
+    }
+
+    private static String scalarValue(JsonNode json) {
+        if (json.isIntegralNumber()) {
+            return json.isBigInteger() ? json.asText() : String.valueOf(json.getLongValue());
+        }
+        if (json.isFloatingPointNumber()) {
+            return String.valueOf(json.getDoubleValue());
+        }
+        return json.asText();
+    }
+
+    static class Node {
+        private final Map<String, Node> children = new HashMap<String, Node>();
+        private final List<String> indexColumns = new ArrayList<String>();
+
+        Node getChild(String name) {
+            return children.get(name);
+        }
+
+        Node getOrAddChild(String name) {
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node();
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+}
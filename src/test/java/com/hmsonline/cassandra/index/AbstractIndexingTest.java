@@ -136,7 +136,7 @@ public abstract class AbstractIndexingTest {
         data.put(Configuration.COLUMNS, IDX1_COL + ", " + MULTI_VALUE_COLUMN + ":" + FIELD2_NAME);
         persist(indexKeyspace, CONF_CF, MULTI_VALUE_INDEX_NAME2, data);
 
-        DaoFactory.getConfigurationDAO(cluster).getConfiguration().clear();
+        DaoFactory.getConfigurationDAO(cluster).updateConfiguration();
     }
 
     protected void persist(Keyspace keyspace, String columnFamily, String rowKey, Map<String, String> columns)
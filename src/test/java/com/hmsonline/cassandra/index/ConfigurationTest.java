@@ -0,0 +1,306 @@
+package com.hmsonline.cassandra.index;
+
+import static org.apache.cassandra.utils.ByteBufferUtil.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.util.ColumnMatcher;
+import com.hmsonline.cassandra.index.util.CompositeUtil;
+
+public class ConfigurationTest {
+
+    @Test
+    public void testPlans() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        builder.addIndex("idx1", properties("ks", "cf", "a, b"));
+        builder.addIndex("idx2", properties("ks", "cf", "b, items:sku"));
+        builder.addIndex("idx3", properties("ks", "cf2", "c"));
+        Configuration conf = builder.build();
+
+        IndexPlan plan = conf.getPlan("ks", "cf");
+        assertEquals(Arrays.asList("idx1", "idx2"), Arrays.asList(plan.getIndexes().keySet().toArray()));
+        assertEquals(Arrays.asList("a", "b", "items:sku"), Arrays.asList(plan.getIndexColumns().toArray()));
+        // A built configuration doesn't change with its builder
+        builder.addIndex("idx4", properties("ks", "cf", "d"));
+        assertEquals(2, conf.getIndexes("ks", "cf").size());
+        assertSame(plan, conf.getPlan("ks", "cf"));
+
+        assertEquals(Arrays.asList("c"), conf.getIndexColumns("ks", "cf2", "idx3"));
+        assertSame(IndexPlan.EMPTY, conf.getPlan("ks", "cf3"));
+        assertSame(IndexPlan.EMPTY, conf.getPlan("ks2", "cf"));
+        assertTrue(conf.getIndexes("ks2", "cf").isEmpty());
+    }
+
+    @Test
+    public void testOptions() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = properties("ks", "cf", "a");
+        properties.put(IndexOptions.MAX_ENTRIES, "10");
+        properties.put(IndexOptions.OVERFLOW, "reject");
+        builder.addIndex("idx1", properties);
+        builder.addIndex("idx2", properties("ks", "cf", "b"));
+        Configuration conf = builder.build();
+
+        IndexPlan plan = conf.getPlan("ks", "cf");
+        assertEquals(10, plan.getOptions("idx1").getMaxEntries());
+        assertEquals(IndexOptions.Overflow.REJECT, plan.getOptions("idx1").getOverflow());
+        // Indexes that don't set max_entries keep all their entries
+        assertEquals(Integer.MAX_VALUE, plan.getOptions("idx2").getMaxEntries());
+        assertEquals(IndexOptions.Overflow.TRUNCATE, plan.getOptions("idx2").getOverflow());
+    }
+
+    @Test
+    public void testInvalidOptions() throws Throwable {
+        // Every invalid option falls back to its own default, the valid ones
+        // after it are still applied
+        Map<String, String> properties = properties("ks", "cf", "a, b");
+        properties.put(IndexOptions.MAX_ENTRIES, "lots");
+        properties.put(IndexOptions.OVERFLOW, "reject");
+        properties.put(IndexOptions.MODE, "sideways");
+        properties.put(IndexOptions.SHARDS, "0");
+        properties.put(IndexOptions.SHARD_BY, "value");
+        properties.put(IndexOptions.CONSISTENCY_LEVEL, "most");
+        properties.put(IndexOptions.TTL, "-1");
+        properties.put(IndexOptions.WRITE_MODE, "async");
+        properties.put(IndexOptions.COUNT_DEPTH, "1.5");
+        properties.put(IndexOptions.INCLUDE, "c");
+        IndexOptions options = IndexOptions.fromProperties("idx", properties);
+        assertEquals(IndexOptions.DEFAULT.getMaxEntries(), options.getMaxEntries());
+        assertEquals(IndexOptions.Overflow.REJECT, options.getOverflow());
+        assertEquals(IndexOptions.Mode.PRODUCT, options.getMode());
+        assertEquals(1, options.getShards());
+        assertEquals(IndexOptions.ShardBy.VALUE, options.getShardBy());
+        assertNull(options.getConsistency());
+        assertEquals(0, options.getTtl());
+        assertEquals(IndexOptions.WriteMode.ASYNC, options.getWriteMode());
+        assertEquals(0, options.getCountDepth());
+        assertEquals(Arrays.asList("c"), options.getIncludeColumns());
+
+        properties = properties("ks", "cf", "a");
+        properties.put(IndexOptions.TIME_BUCKET, "fortnight");
+        properties.put(IndexOptions.TTL, "60");
+        options = IndexOptions.fromProperties("idx", properties);
+        assertNull(options.getTimeBuckets());
+        assertEquals(60, options.getTtl());
+
+        properties.put(IndexOptions.TIME_BUCKET, "day");
+        properties.put(IndexOptions.TIME_SOURCE, "clock");
+        properties.put(IndexOptions.TIME_FORMAT, "yyyy-MM-dd");
+        options = IndexOptions.fromProperties("idx", properties);
+        assertEquals(TimeBuckets.Source.VALUE, options.getTimeBuckets().getSource());
+
+        properties.put(IndexOptions.TIME_FORMAT, "yyyy-qq");
+        options = IndexOptions.fromProperties("idx", properties);
+        assertNull(options.getTimeBuckets());
+        assertEquals(60, options.getTtl());
+    }
+
+    @Test
+    public void testWritePolicy() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = properties("ks", "cf", "a");
+        properties.put(IndexOptions.CONSISTENCY_LEVEL, "one");
+        properties.put(IndexOptions.TTL, "3600");
+        properties.put(IndexOptions.WRITE_MODE, "async");
+        builder.addIndex("idx1", properties);
+        builder.addIndex("idx2", properties("ks", "cf", "b"));
+        Configuration conf = builder.build();
+
+        IndexOptions options = conf.getIndexOptions("idx1");
+        assertEquals(ConsistencyLevel.ONE, options.getConsistency());
+        assertEquals(3600, options.getTtl());
+        assertEquals(IndexOptions.WriteMode.ASYNC, options.getWriteMode());
+        options = conf.getIndexOptions("idx2");
+        assertNull(options.getConsistency());
+        assertEquals(0, options.getTtl());
+        assertEquals(IndexOptions.WriteMode.SYNC, options.getWriteMode());
+    }
+
+    @Test
+    public void testCoveringIndex() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = properties("ks", "cf", "a, b");
+        properties.put(IndexOptions.INCLUDE, "name, b, price");
+        builder.addIndex("idx", properties);
+        Configuration conf = builder.build();
+
+        IndexPlan plan = conf.getPlan("ks", "cf");
+        IndexOptions options = plan.getOptions("idx");
+        assertEquals(Arrays.asList("name", "b", "price"), options.getIncludeColumns());
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(plan.getIndexColumns().toArray()));
+        assertEquals(Arrays.asList("a", "b", "name", "price"), Arrays.asList(plan.getFetchColumns().toArray()));
+
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("a", "1");
+        row.put("b", "2");
+        row.put("name", "x\u0000y");
+        StringBuilder price = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            price.append('9');
+        }
+        row.put("price", price.toString());
+        ByteBuffer value = IndexEntries.includedValue("idx", options, row);
+        // Must pass the validation of the Indexes column family
+        UTF8Type.instance.validate(value);
+        Map<String, String> columns = IndexEntries.includedColumns(value);
+        assertEquals(Arrays.asList("name", "b", "price"), Arrays.asList(columns.keySet().toArray()));
+        assertEquals("x\u0000y", columns.get("name"));
+        assertEquals(price.toString(), columns.get("price"));
+        assertEquals("2", columns.get("b"));
+        assertFalse(IndexEntries.includedValue("idx", conf.getIndexOptions("other"), row).hasRemaining());
+        assertTrue(IndexEntries.includedColumns(bytes("")).isEmpty());
+    }
+
+    @Test
+    public void testCounts() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = properties("ks", "cf", "a, b");
+        properties.put(IndexOptions.COUNT_DEPTH, "5");
+        builder.addIndex("idx", properties);
+        properties = properties("ks", "cf", "c");
+        properties.put(IndexOptions.COUNT_DEPTH, "1");
+        properties.put(IndexOptions.TTL, "60");
+        builder.addIndex("expiring", properties);
+        properties = properties("ks", "cf", "d");
+        properties.put(IndexOptions.COUNT_DEPTH, "1");
+        properties.put(IndexOptions.TIME_BUCKET, "day");
+        properties.put(IndexOptions.TIME_SOURCE, "value");
+        builder.addIndex("bucketed", properties);
+        Configuration conf = builder.build();
+
+        IndexPlan plan = conf.getPlan("ks", "cf");
+        assertEquals(5, plan.getOptions("idx").getCountDepth());
+        assertEquals(2, IndexEntries.countDepth(plan, "idx", plan.getOptions("idx")));
+        assertEquals(0, IndexEntries.countDepth(plan, "expiring", plan.getOptions("expiring")));
+        assertEquals(0, IndexEntries.countDepth(plan, "bucketed", plan.getOptions("bucketed")));
+        assertEquals(0, conf.getIndexOptions("other").getCountDepth());
+
+        // The row moves from a=1 with b=2 and b=3 to a=1 with b=3 and b=4
+        Map<ByteBuffer, Long> deltas = IndexEntries.countDeltas(
+                Arrays.asList(name("1", "2", "key"), name("1", "3", "key")),
+                Arrays.asList(name("1", "3", "key"), name("1", "4", "key")), 2);
+        assertEquals(2, deltas.size());
+        assertEquals(Long.valueOf(-1), deltas.get(name("1", "2")));
+        assertEquals(Long.valueOf(1), deltas.get(name("1", "4")));
+        deltas = IndexEntries.countDeltas(Arrays.asList(name("1", "2", "key"), name("1", "3", "key")),
+                Arrays.<ByteBuffer> asList(), 1);
+        assertEquals(1, deltas.size());
+        assertEquals(Long.valueOf(-1), deltas.get(name("1")));
+    }
+
+    @Test
+    public void testShards() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = properties("ks", "cf", "a, b");
+        properties.put(IndexOptions.SHARDS, "4");
+        properties.put(IndexOptions.SHARD_BY, "value");
+        builder.addIndex("idx", properties);
+        Configuration conf = builder.build();
+
+        IndexOptions options = conf.getIndexOptions("idx");
+        assertEquals(Arrays.asList("idx:0", "idx:1", "idx:2", "idx:3"), options.getShardRows("idx"));
+        assertTrue(options.getShardRows("idx").contains(options.getShardRow("idx", "x")));
+        assertEquals(options.getShardRow("idx", "x"), options.getShardRow("idx", bytes("x")));
+        assertEquals(Arrays.asList("other"), conf.getIndexOptions("other").getShardRows("other"));
+        assertEquals("other", conf.getIndexOptions("other").getShardRow("other", "x"));
+    }
+
+    @Test
+    public void testTimeBuckets() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = properties("ks", "cf", "created, status");
+        properties.put(IndexOptions.TIME_BUCKET, "day");
+        properties.put(IndexOptions.TIME_FORMAT, "yyyy-MM-dd'T'HH:mm");
+        builder.addIndex("idx", properties);
+        Configuration conf = builder.build();
+
+        TimeBuckets timeBuckets = conf.getIndexOptions("idx").getTimeBuckets();
+        assertEquals(TimeBuckets.Source.VALUE, timeBuckets.getSource());
+        long time = timeBuckets.parse("2013-01-31T23:30");
+        assertNull(timeBuckets.parse("yesterday"));
+        assertEquals("20130131", timeBuckets.getBucket(time));
+        assertEquals(Arrays.asList("20130131", "20130201", "20130202"), timeBuckets.getBuckets(time,
+                timeBuckets.parse("2013-02-02T00:00")));
+        assertEquals("idx:20130131", conf.getIndexOptions("idx").getShardRows("idx", "20130131").get(0));
+
+        TimeBuckets months = new TimeBuckets(TimeBuckets.Granularity.MONTH, TimeBuckets.Source.VALUE, null);
+        assertEquals(Arrays.asList("201301", "201302"), months.getBuckets(time, timeBuckets.parse("2013-02-01T00:00")));
+        TimeBuckets hours = new TimeBuckets(TimeBuckets.Granularity.HOUR, TimeBuckets.Source.VALUE, null);
+        assertEquals(Arrays.asList("2013013123", "2013020100"), hours.getBuckets(time,
+                timeBuckets.parse("2013-02-01T00:10")));
+        try {
+            hours.getBuckets(0, time);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected, decades of hourly buckets
+        }
+
+        // Buckets are named as SimpleDateFormat names them, before the epoch,
+        // around leap days and in the Julian calendar too
+        Random random = new Random(42);
+        long[] times = new long[1000];
+        times[0] = -1;
+        times[1] = bucketFormat("yyyyMMdd").parse("20000229").getTime();
+        times[2] = bucketFormat("yyyyMMdd").parse("19000301").getTime() - 1;
+        times[3] = bucketFormat("yyyyMMdd").parse("15821015").getTime() - 1;
+        for (int i = 4; i < times.length; i++) {
+            times[i] = (long) ((random.nextDouble() - 0.5) * 2 * 200L * 365 * 24 * 3600 * 1000);
+        }
+        for (TimeBuckets.Granularity granularity : TimeBuckets.Granularity.values()) {
+            TimeBuckets buckets = new TimeBuckets(granularity, TimeBuckets.Source.VALUE, null);
+            SimpleDateFormat format = bucketFormat(granularity == TimeBuckets.Granularity.HOUR ? "yyyyMMddHH"
+                    : granularity == TimeBuckets.Granularity.DAY ? "yyyyMMdd" : "yyyyMM");
+            for (long t : times) {
+                assertEquals(format.format(t), buckets.getBucket(t));
+            }
+        }
+    }
+
+    private static SimpleDateFormat bucketFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    @Test
+    public void testColumnMatcher() throws Throwable {
+        ColumnMatcher matcher = new ColumnMatcher(Arrays.asList("a", "items:sku", "item:qty", "lines:x:y"));
+        assertTrue(matcher.matches(bytes("a")));
+        assertFalse(matcher.matches(bytes("ab")));
+        assertFalse(matcher.matches(bytes("")));
+        assertTrue(matcher.matches(bytes("items")));
+        assertTrue(matcher.matches(bytes("items[3]")));
+        assertTrue(matcher.matches(bytes("item")));
+        assertTrue(matcher.matches(bytes("lines 1")));
+        assertFalse(matcher.matches(bytes("ite")));
+        assertFalse(matcher.matches(bytes("line")));
+    }
+
+    private static ByteBuffer name(String... parts) {
+        return CompositeUtil.compose(Arrays.asList(parts), CompositeUtil.FORMAT);
+    }
+
+    private Map<String, String> properties(String keyspace, String columnFamily, String columns) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, keyspace);
+        properties.put(Configuration.COLUMN_FAMILY, columnFamily);
+        properties.put(Configuration.COLUMNS, columns);
+        return properties;
+    }
+}
@@ -0,0 +1,242 @@
+package com.hmsonline.cassandra.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.KSMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.IMutation;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.locator.SimpleStrategy;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.dao.CachingRowReader;
+import com.hmsonline.cassandra.index.dao.ConfigurationDao;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.dao.IndexDao;
+import com.hmsonline.cassandra.index.dao.RowReader;
+
+/**
+ * Runs handlers over in memory rows and records the index entries they write,
+ * without a running node.
+ */
+public class HandlerTest {
+    private static final String KEYSPACE = "handler_test";
+    private static final String COLUMN_FAMILY = "cf";
+
+    private InMemoryRowReader rowReader;
+    private RecordingIndexDao indexDao;
+    private ConfigurationDao configurationDao;
+
+    @Before
+    public void setUp() throws Exception {
+        // Mutations need their column family in the schema, once per JVM
+        if (Schema.instance.getCFMetaData(KEYSPACE, COLUMN_FAMILY) == null) {
+            CFMetaData metadata = new CFMetaData(KEYSPACE, COLUMN_FAMILY, ColumnFamilyType.Standard,
+                    UTF8Type.instance, null);
+            Schema.instance.load(KSMetaData.testMetadata(KEYSPACE, SimpleStrategy.class, KSMetaData.optsWithRF(1),
+                    metadata));
+        }
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, KEYSPACE);
+        properties.put(Configuration.COLUMN_FAMILY, COLUMN_FAMILY);
+        properties.put(Configuration.COLUMNS, "a");
+        builder.addIndex("idx", properties);
+        Configuration conf = builder.build();
+        rowReader = new InMemoryRowReader();
+        indexDao = new RecordingIndexDao();
+        configurationDao = new StaticConfigurationDao(conf);
+    }
+
+    @Test
+    public void testDelete() throws Throwable {
+        rowReader.put("key", "a", "1");
+        RowMutation mutation = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("key"));
+        mutation.delete(new QueryPath(COLUMN_FAMILY), 1000);
+        run(mutation);
+
+        assertEquals(1, indexDao.entries.size());
+        assertEntry(indexDao.entries.get(0), true, "1\u0000key");
+    }
+
+    @Test
+    public void testDeleteAndInsert() throws Throwable {
+        // The row is deleted and written again in the same batch, its old
+        // entry goes and the new one is written
+        rowReader.put("key", "a", "1");
+        rowReader.put("key", "b", "x");
+        RowMutation delete = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("key"));
+        delete.delete(new QueryPath(COLUMN_FAMILY), 1000);
+        RowMutation insert = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("key"));
+        insert.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes("a")), ByteBufferUtil.bytes("2"), 2000);
+        run(delete, insert);
+
+        assertEquals(2, indexDao.entries.size());
+        assertEntry(indexDao.entries.get(0), true, "1\u0000key");
+        assertEntry(indexDao.entries.get(1), false, "2\u0000key");
+
+        // Written again with the same value, the entry stays
+        indexDao.entries.clear();
+        insert = new RowMutation(KEYSPACE, ByteBufferUtil.bytes("key"));
+        insert.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes("a")), ByteBufferUtil.bytes("1"), 2000);
+        run(delete, insert);
+        assertEquals(0, indexDao.entries.size());
+    }
+
+    @Test
+    public void testUpdate() throws Throwable {
+        // Neither an update of another column nor one writing the same
+        // value again writes any entry
+        rowReader.put("key", "a", "1");
+        rowReader.put("key", "b", "x");
+        run(insert("key", "b", "y"));
+        run(insert("key", "a", "1"));
+        assertEquals(0, indexDao.entries.size());
+
+        // A changed value deletes its old entry and inserts the new one
+        run(insert("key", "a", "2"));
+        assertEquals(2, indexDao.entries.size());
+        assertEntry(indexDao.entries.get(0), true, "1\u0000key");
+        assertEntry(indexDao.entries.get(1), false, "2\u0000key");
+    }
+
+    @Test
+    public void testUpdateMultiValue() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, KEYSPACE);
+        properties.put(Configuration.COLUMN_FAMILY, COLUMN_FAMILY);
+        properties.put(Configuration.COLUMNS, "m:f");
+        builder.addIndex("idx", properties);
+        Configuration conf = builder.build();
+        configurationDao = new StaticConfigurationDao(conf);
+
+        // Only the entry of the changed element is rewritten, the entries
+        // of the other elements are left alone
+        rowReader.put("key", "m[1]", "{\"f\":\"v1\"}");
+        rowReader.put("key", "m[2]", "{\"f\":\"v2\"}");
+        run(insert("key", "m[2]", "{\"f\":\"v3\"}"));
+        assertEquals(2, indexDao.entries.size());
+        assertEntry(indexDao.entries.get(0), true, "v2\u0000key");
+        assertEntry(indexDao.entries.get(1), false, "v3\u0000key");
+    }
+
+    @Test
+    public void testRowCache() throws Throwable {
+        CachingRowReader rowCache = new CachingRowReader(rowReader, 10, 10000, 60000);
+        rowReader.put("key", "a", "1");
+        run(rowCache, insert("key", "a", "2"));
+        assertEquals("2", rowCache.fetchRows(KEYSPACE, COLUMN_FAMILY, Collections.singleton("key"),
+                Collections.singleton("a")).get("key").get("a"));
+
+        // A rejected write leaves the cached row as it was
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, KEYSPACE);
+        properties.put(Configuration.COLUMN_FAMILY, COLUMN_FAMILY);
+        properties.put(Configuration.COLUMNS, "a");
+        properties.put(IndexOptions.MAX_ENTRIES, "0");
+        properties.put(IndexOptions.OVERFLOW, "reject");
+        builder.addIndex("idx", properties);
+        Configuration conf = builder.build();
+        configurationDao = new StaticConfigurationDao(conf);
+        try {
+            run(rowCache, insert("key", "a", "3"));
+            fail();
+        } catch (IndexLimitExceededException ex) {
+            // Expected
+        }
+        assertEquals("2", rowCache.fetchRows(KEYSPACE, COLUMN_FAMILY, Collections.singleton("key"),
+                Collections.singleton("a")).get("key").get("a"));
+    }
+
+    private RowMutation insert(String key, String column, String value) {
+        RowMutation mutation = new RowMutation(KEYSPACE, ByteBufferUtil.bytes(key));
+        mutation.add(new QueryPath(COLUMN_FAMILY, null, ByteBufferUtil.bytes(column)), ByteBufferUtil.bytes(value),
+                2000);
+        return mutation;
+    }
+
+    private void run(IMutation... mutations) {
+        run(null, mutations);
+    }
+
+    private void run(CachingRowReader rowCache, IMutation... mutations) {
+        List<IMutation> list = new ArrayList<IMutation>();
+        for (IMutation mutation : mutations) {
+            list.add(mutation);
+        }
+        new CassandraIndexAspect.Handler(rowCache == null ? rowReader : rowCache, rowCache, indexDao, indexDao,
+                configurationDao, list, null).run();
+    }
+
+    private void assertEntry(IndexBatch.Entry entry, boolean deletion, String name) throws Exception {
+        assertEquals(deletion, entry.isDeletion());
+        assertEquals("idx", entry.getIndexName());
+        assertEquals(name, ByteBufferUtil.string(entry.getName()));
+    }
+
+    static class InMemoryRowReader implements RowReader {
+        private final Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
+
+        void put(String key, String column, String value) {
+            Map<String, String> row = rows.get(key);
+            if (row == null) {
+                row = new HashMap<String, String>();
+                rows.put(key, row);
+            }
+            row.put(column, value);
+        }
+
+        public Map<String, Map<String, String>> fetchRows(String keyspace, String columnFamily,
+                Collection<String> keys, Collection<String> indexColumns) {
+            Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+            for (String key : keys) {
+                Map<String, String> row = rows.get(key);
+                result.put(key, row == null ? new HashMap<String, String>() : new HashMap<String, String>(row));
+            }
+            return result;
+        }
+    }
+
+    static class RecordingIndexDao extends IndexDao {
+        private final List<IndexBatch.Entry> entries = new ArrayList<IndexBatch.Entry>();
+
+        RecordingIndexDao() {
+            super(null);
+        }
+
+        @Override
+        public synchronized void execute(IndexBatch batch) {
+            entries.addAll(batch.getEntries());
+        }
+    }
+
+    static class StaticConfigurationDao extends ConfigurationDao {
+        private final Configuration conf;
+
+        StaticConfigurationDao(Configuration conf) {
+            super(null);
+            this.conf = conf;
+        }
+
+        @Override
+        public Configuration getConfiguration() {
+            return conf;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.hmsonline.cassandra.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.thrift.UnavailableException;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.IndexExecutors.Backpressure;
+import com.hmsonline.cassandra.index.IndexExecutors.Isolation;
+
+public class IndexExecutorsTest {
+
+    @Test
+    public void testKeyspaceIsolation() throws Throwable {
+        IndexExecutors executors = new IndexExecutors(Isolation.KEYSPACE, 1, 1, Backpressure.REJECT, 0);
+        assertNotSame(executors.getExecutor("ks1"), executors.getExecutor("ks2"));
+        assertSame(executors.getExecutor("ks1"), executors.getExecutor("ks1"));
+
+        // A keyspace whose pool is full doesn't hold up the others
+        CountDownLatch release = new CountDownLatch(1);
+        fill(executors, "ks1", release);
+        final CountDownLatch done = new CountDownLatch(1);
+        executors.submit("ks2", new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        executors = new IndexExecutors(Isolation.SHARED, 1, 1, Backpressure.REJECT, 0);
+        assertSame(executors.getExecutor("ks1"), executors.getExecutor("ks2"));
+    }
+
+    @Test
+    public void testRejection() throws Throwable {
+        for (Backpressure backpressure : new Backpressure[] { Backpressure.REJECT, Backpressure.BLOCK }) {
+            IndexExecutors executors = new IndexExecutors(Isolation.KEYSPACE, 1, 1, backpressure, 50);
+            CountDownLatch release = new CountDownLatch(1);
+            fill(executors, "ks", release);
+            try {
+                executors.submit("ks", new Latch(release));
+                fail();
+            } catch (UnavailableException ex) {
+                // Expected, the pool and its queue are full
+            }
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testAllOrNothing() throws Throwable {
+        IndexExecutors executors = new IndexExecutors(Isolation.KEYSPACE, 1, 1, Backpressure.REJECT, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        fill(executors, "ks2", release);
+
+        // The write is refused by the full bulkhead before the handler of the
+        // other keyspace is submitted
+        final AtomicBoolean ran = new AtomicBoolean();
+        Map<String, Runnable> handlers = new LinkedHashMap<String, Runnable>();
+        handlers.put("ks1", new Runnable() {
+            public void run() {
+                ran.set(true);
+            }
+        });
+        handlers.put("ks2", new Latch(release));
+        try {
+            executors.submitAll(handlers);
+            fail();
+        } catch (UnavailableException ex) {
+            // Expected
+        }
+        assertEquals(0, executors.getExecutor("ks1").getTaskCount());
+        assertFalse(ran.get());
+
+        // Room is given back as handlers finish
+        release.countDown();
+        for (int i = 0; i < 100 && executors.getExecutor("ks2").getCompletedTaskCount() < 2; i++) {
+            Thread.sleep(50);
+        }
+        List<Future<?>> futures = executors.submitAll(handlers);
+        assertEquals(2, futures.size());
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(ran.get());
+    }
+
+    @Test
+    public void testCallerRuns() throws Throwable {
+        IndexExecutors executors = new IndexExecutors(Isolation.KEYSPACE, 1, 1, Backpressure.CALLER_RUNS, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        fill(executors, "ks", release);
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        Future<?> future = executors.submit("ks", new Runnable() {
+            public void run() {
+                thread.set(Thread.currentThread());
+            }
+        });
+        assertTrue(future.isDone());
+        assertSame(Thread.currentThread(), thread.get());
+        release.countDown();
+    }
+
+    @Test
+    public void testFailure() throws Throwable {
+        IndexExecutors executors = new IndexExecutors(Isolation.SHARED, 1, 1, Backpressure.REJECT, 0);
+        Future<?> future = executors.submit("ks", new Runnable() {
+            public void run() {
+                throw new IndexLimitExceededException("too many entries");
+            }
+        });
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertEquals("too many entries", ex.getCause().getMessage());
+        }
+    }
+
+    // Occupies the only thread of the pool and its queue
+    private void fill(IndexExecutors executors, String keyspace, CountDownLatch release) throws Throwable {
+        Latch running = new Latch(release);
+        executors.submit(keyspace, running);
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+        executors.submit(keyspace, new Latch(release));
+    }
+
+    static class Latch implements Runnable {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release;
+
+        Latch(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
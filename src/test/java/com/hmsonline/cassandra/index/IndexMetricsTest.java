@@ -0,0 +1,146 @@
+package com.hmsonline.cassandra.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.KSMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.IMutation;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.locator.SimpleStrategy;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that handlers update the metrics of each stage of the pipeline. The
+ * metrics are process wide, so only their changes are asserted.
+ */
+public class IndexMetricsTest {
+    private static final String KEYSPACE = "metrics_test";
+    private static final String INDEXED = "indexed";
+    private static final String PLAIN = "plain";
+
+    private HandlerTest.InMemoryRowReader rowReader;
+    private HandlerTest.RecordingIndexDao indexDao;
+
+    @Before
+    public void setUp() throws Exception {
+        if (Schema.instance.getCFMetaData(KEYSPACE, INDEXED) == null) {
+            Schema.instance.load(KSMetaData.testMetadata(KEYSPACE, SimpleStrategy.class, KSMetaData.optsWithRF(1),
+                    new CFMetaData(KEYSPACE, INDEXED, ColumnFamilyType.Standard, UTF8Type.instance, null),
+                    new CFMetaData(KEYSPACE, PLAIN, ColumnFamilyType.Standard, UTF8Type.instance, null)));
+        }
+        rowReader = new HandlerTest.InMemoryRowReader();
+        indexDao = new HandlerTest.RecordingIndexDao();
+    }
+
+    @Test
+    public void testStages() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        builder.addIndex("metrics_idx", index(null));
+        builder.addIndex("metrics_skip", index("skip"));
+        builder.addIndex("metrics_truncate", index("truncate"));
+        Configuration conf = builder.build();
+
+        IndexMetrics.ColumnFamilyMetrics indexed = IndexMetrics.get(KEYSPACE, INDEXED);
+        IndexMetrics.ColumnFamilyMetrics plain = IndexMetrics.get(KEYSPACE, PLAIN);
+        IndexMetrics idx = IndexMetrics.get("metrics_idx");
+        IndexMetrics skip = IndexMetrics.get("metrics_skip");
+        IndexMetrics truncate = IndexMetrics.get("metrics_truncate");
+        long queueWait = IndexMetrics.queueWait.count();
+        long configurationLookup = IndexMetrics.configurationLookup.count();
+        long write = IndexMetrics.write.count();
+        long handler = IndexMetrics.handler.count();
+        long fetchRows = indexed.fetchRows.count();
+        long extraction = indexed.extraction.count();
+        long rowsIndexed = indexed.rowsIndexed.count();
+        long rowsUnchanged = indexed.rowsUnchanged.count();
+        long rowsUnindexed = plain.rowsUnindexed.count();
+        long build = idx.build.count();
+        long entriesInserted = idx.entriesInserted.count();
+        long entriesDeleted = idx.entriesDeleted.count();
+        long fanOut = idx.fanOut.count();
+        long rowsSkipped = skip.rowsSkipped.count();
+        long rowsTruncated = truncate.rowsTruncated.count();
+
+        // One row changes its indexed column, one only another column and
+        // one is in a column family without indexes
+        rowReader.put("key1", "a", "1");
+        run(conf, insert(INDEXED, "key1", "a", "2"), insert(INDEXED, "key2", "b", "x"),
+                insert(PLAIN, "key3", "a", "3"));
+
+        assertEquals(1, IndexMetrics.queueWait.count() - queueWait);
+        assertEquals(1, IndexMetrics.configurationLookup.count() - configurationLookup);
+        assertEquals(1, IndexMetrics.write.count() - write);
+        assertEquals(1, IndexMetrics.handler.count() - handler);
+        assertEquals(1, indexed.fetchRows.count() - fetchRows);
+        assertEquals(1, indexed.extraction.count() - extraction);
+        assertEquals(1, indexed.rowsIndexed.count() - rowsIndexed);
+        assertEquals(1, indexed.rowsUnchanged.count() - rowsUnchanged);
+        assertEquals(1, plain.rowsUnindexed.count() - rowsUnindexed);
+        assertEquals(1, idx.build.count() - build);
+        assertEquals(1, idx.entriesInserted.count() - entriesInserted);
+        assertEquals(1, idx.entriesDeleted.count() - entriesDeleted);
+        assertEquals(1, idx.fanOut.count() - fanOut);
+        assertEquals(1, skip.rowsSkipped.count() - rowsSkipped);
+        assertEquals(1, truncate.rowsTruncated.count() - rowsTruncated);
+    }
+
+    @Test
+    public void testRowsRejected() throws Throwable {
+        Configuration.Builder builder = new Configuration.Builder();
+        builder.addIndex("metrics_reject", index("reject"));
+        Configuration conf = builder.build();
+        IndexMetrics reject = IndexMetrics.get("metrics_reject");
+        long rowsRejected = reject.rowsRejected.count();
+        long handler = IndexMetrics.handler.count();
+
+        try {
+            run(conf, insert(INDEXED, "key", "a", "1"));
+            fail();
+        } catch (IndexLimitExceededException ex) {
+            // Expected
+        }
+        assertEquals(1, reject.rowsRejected.count() - rowsRejected);
+        // Failed handlers are timed too
+        assertEquals(1, IndexMetrics.handler.count() - handler);
+    }
+
+    private Map<String, String> index(String overflow) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, KEYSPACE);
+        properties.put(Configuration.COLUMN_FAMILY, INDEXED);
+        properties.put(Configuration.COLUMNS, "a");
+        if (overflow != null) {
+            properties.put(IndexOptions.MAX_ENTRIES, "0");
+            properties.put(IndexOptions.OVERFLOW, overflow);
+        }
+        return properties;
+    }
+
+    private RowMutation insert(String columnFamily, String key, String column, String value) {
+        RowMutation mutation = new RowMutation(KEYSPACE, ByteBufferUtil.bytes(key));
+        mutation.add(new QueryPath(columnFamily, null, ByteBufferUtil.bytes(column)), ByteBufferUtil.bytes(value),
+                1000);
+        return mutation;
+    }
+
+    private void run(Configuration conf, IMutation... mutations) {
+        List<IMutation> list = new ArrayList<IMutation>();
+        for (IMutation mutation : mutations) {
+            list.add(mutation);
+        }
+        new CassandraIndexAspect.Handler(rowReader, null, indexDao, indexDao,
+                new HandlerTest.StaticConfigurationDao(conf), list, null).run();
+    }
+}
@@ -0,0 +1,130 @@
+package com.hmsonline.cassandra.index.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.IndexMetrics;
+
+public class AsyncIndexDaoTest {
+
+    @Test
+    public void testDropsWhenFull() throws Throwable {
+        BlockingIndexDao delegate = new BlockingIndexDao();
+        AsyncIndexDao indexDao = new AsyncIndexDao(null, delegate, 1, 1);
+        long dropped = IndexMetrics.asyncEntriesDropped.count();
+        long countsDropped = IndexMetrics.countsDropped.count();
+
+        // One batch is being written and one is queued, the rest are dropped
+        // without blocking the caller
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            IndexBatch batch = new IndexBatch();
+            batch.addInsertion("idx", "value" + i, 1);
+            batch.addDeletion("idx", "old" + i, 1);
+            CountBatch counts = new CountBatch();
+            counts.add("idx", ByteBufferUtil.bytes("value"), 1, null);
+            indexDao.execute(batch, counts);
+            if (i == 0) {
+                assertTrue(delegate.started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        assertEquals(1, indexDao.getPendingBatches());
+        assertEquals(6, IndexMetrics.asyncEntriesDropped.count() - dropped);
+        assertEquals(3, IndexMetrics.countsDropped.count() - countsDropped);
+
+        delegate.release.countDown();
+        for (int i = 0; i < 100 && delegate.entries.get() < 4; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(4, delegate.entries.get());
+        indexDao.stop(5000);
+    }
+
+    @Test
+    public void testRetriesFailedBatches() throws Throwable {
+        FailingIndexDao delegate = new FailingIndexDao(2);
+        AsyncIndexDao indexDao = new AsyncIndexDao(null, delegate, 1, 10, 3);
+        IndexBatch batch = new IndexBatch();
+        batch.addDeletion("idx", "old", 1);
+        batch.addInsertion("idx", "value", 1);
+        CountBatch counts = new CountBatch();
+        counts.add("idx", ByteBufferUtil.bytes("value"), 1, null);
+        indexDao.execute(batch, counts);
+        indexDao.stop(5000);
+
+        // The whole batch is written again, its counts only once
+        assertEquals(3, delegate.attempts.get());
+        assertEquals(1, delegate.counts.get());
+
+        // Out of attempts the entries and their counts are dropped
+        long failed = IndexMetrics.asyncEntriesFailed.count();
+        long countsDropped = IndexMetrics.countsDropped.count();
+        delegate = new FailingIndexDao(3);
+        indexDao = new AsyncIndexDao(null, delegate, 1, 10, 3);
+        indexDao.execute(batch, counts);
+        indexDao.stop(5000);
+        assertEquals(2, IndexMetrics.asyncEntriesFailed.count() - failed);
+        assertEquals(1, IndexMetrics.countsDropped.count() - countsDropped);
+        assertEquals(3, delegate.attempts.get());
+        assertEquals(0, delegate.counts.get());
+    }
+
+    static class FailingIndexDao extends IndexDao {
+        private final int failures;
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final AtomicInteger counts = new AtomicInteger();
+
+        FailingIndexDao(int failures) {
+            super(null);
+            this.failures = failures;
+        }
+
+        @Override
+        public void execute(IndexBatch batch) {
+            // Insertions are written first, a failure leaves no entry missing
+            assertFalse(batch.byConsistency().get(null).get(0).isDeletion());
+            if (attempts.incrementAndGet() <= failures) {
+                throw new RuntimeException("Chunk failed");
+            }
+        }
+
+        @Override
+        public void execute(CountBatch counts) {
+            this.counts.incrementAndGet();
+        }
+    }
+
+    static class BlockingIndexDao extends IndexDao {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger entries = new AtomicInteger();
+
+        BlockingIndexDao() {
+            super(null);
+        }
+
+        @Override
+        public void execute(IndexBatch batch) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            entries.addAndGet(batch.size());
+        }
+
+        @Override
+        public void execute(CountBatch counts) {
+        }
+    }
+}
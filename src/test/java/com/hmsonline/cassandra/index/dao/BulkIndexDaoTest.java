@@ -0,0 +1,68 @@
+package com.hmsonline.cassandra.index.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.columniterator.OnDiskAtomIterator;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.dht.RandomPartitioner;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.io.sstable.SSTableScanner;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.hmsonline.cassandra.index.util.CompositeUtil;
+
+public class BulkIndexDaoTest {
+
+    @Test
+    public void testWriteSSTables() throws Throwable {
+        // Needs --add-opens java.base/java.io=ALL-UNNAMED on Java 9 and later,
+        // see the jdk9+ profile
+        assumeTrue(BulkIndexDao.canWriteSSTables());
+        File directory = new File("target/bulk_index_test");
+        if (directory.exists()) {
+            FileUtils.deleteRecursive(directory);
+        }
+        BulkIndexDao dao = new BulkIndexDao(null, directory, new RandomPartitioner(), UTF8Type.instance, 1);
+        IndexBatch batch = new IndexBatch();
+        batch.addInsertion("idx", CompositeUtil.compose(Arrays.asList("b", "key2")), 1);
+        batch.addInsertion("idx", CompositeUtil.compose(Arrays.asList("a", "key1")), 1);
+        dao.execute(batch);
+        dao.close();
+
+        File[] files = dao.getDirectory().listFiles();
+        File data = null;
+        for (File file : files) {
+            if (file.getName().endsWith("-Data.db")) {
+                data = file;
+            }
+        }
+        assertTrue(data != null);
+        CFMetaData metadata = new CFMetaData(IndexDao.KEYSPACE, IndexDao.COLUMN_FAMILY, ColumnFamilyType.Standard,
+                UTF8Type.instance, null);
+        Schema.instance.load(metadata);
+        SSTableReader reader = SSTableReader.open(Descriptor.fromFilename(data.getPath()), metadata);
+        SSTableScanner scanner = reader.getDirectScanner(RateLimiter.create(Double.MAX_VALUE));
+        OnDiskAtomIterator row = scanner.next();
+        assertEquals("idx", ByteBufferUtil.string(row.getKey().key));
+        List<String> names = new ArrayList<String>();
+        while (row.hasNext()) {
+            names.add(ByteBufferUtil.string(((IColumn) row.next()).name()));
+        }
+        assertEquals(Arrays.asList("a\u0000key1", "b\u0000key2"), names);
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmsonline.cassandra.index.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CachingRowReaderTest {
+    private static final List<String> COLUMNS = Arrays.asList("a");
+
+    @Test
+    public void testHit() throws Exception {
+        RecordingRowReader delegate = new RecordingRowReader();
+        CachingRowReader cache = new CachingRowReader(delegate, 10, 10000, 60000);
+        cache.update("ks", "cf", "key", COLUMNS, row("1"));
+
+        Map<String, Map<String, String>> rows = cache.fetchRows("ks", "cf", Arrays.asList("key", "other"), COLUMNS);
+        assertEquals("1", rows.get("key").get("a"));
+        assertTrue(rows.containsKey("other"));
+        // Only the row missing from the cache is read
+        assertEquals(Arrays.asList("other"), delegate.fetched);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // Rows cached for other index columns aren't used
+        delegate.fetched.clear();
+        cache.fetchRows("ks", "cf", Arrays.asList("key"), Arrays.asList("a", "b"));
+        assertEquals(Arrays.asList("key"), delegate.fetched);
+    }
+
+    @Test
+    public void testEvictsByCount() throws Exception {
+        RecordingRowReader delegate = new RecordingRowReader();
+        CachingRowReader cache = new CachingRowReader(delegate, 2, 10000, 60000);
+        cache.update("ks", "cf", "key1", COLUMNS, row("1"));
+        cache.update("ks", "cf", "key2", COLUMNS, row("2"));
+        // Reading key1 makes key2 the least recently used
+        cache.fetchRows("ks", "cf", Arrays.asList("key1"), COLUMNS);
+        cache.update("ks", "cf", "key3", COLUMNS, row("3"));
+
+        assertEquals(2, cache.size());
+        cache.fetchRows("ks", "cf", Arrays.asList("key1", "key2", "key3"), COLUMNS);
+        assertEquals(Arrays.asList("key2"), delegate.fetched);
+    }
+
+    @Test
+    public void testEvictsBySize() throws Exception {
+        RecordingRowReader delegate = new RecordingRowReader();
+        CachingRowReader cache = new CachingRowReader(delegate, 10, 10000, 60000);
+        cache.update("ks", "cf", "key1", COLUMNS, row("1"));
+        long weight = cache.getBytes();
+
+        // Room for two rows of the same size
+        cache = new CachingRowReader(delegate, 10, 2 * weight, 60000);
+        cache.update("ks", "cf", "key1", COLUMNS, row("1"));
+        cache.update("ks", "cf", "key2", COLUMNS, row("2"));
+        assertEquals(2, cache.size());
+        cache.update("ks", "cf", "key3", COLUMNS, row("3"));
+        assertEquals(2, cache.size());
+        assertEquals(2 * weight, cache.getBytes());
+
+        cache.fetchRows("ks", "cf", Arrays.asList("key1", "key2", "key3"), COLUMNS);
+        assertEquals(Arrays.asList("key1"), delegate.fetched);
+
+        // A row too large for the cache isn't kept at all
+        char[] large = new char[(int) weight];
+        Arrays.fill(large, 'x');
+        cache.update("ks", "cf", "key4", COLUMNS, row(new String(large)));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+        RecordingRowReader delegate = new RecordingRowReader();
+        CachingRowReader cache = new CachingRowReader(delegate, 10, 10000, 10);
+        cache.update("ks", "cf", "key", COLUMNS, row("1"));
+        Thread.sleep(50);
+
+        cache.fetchRows("ks", "cf", Arrays.asList("key"), COLUMNS);
+        assertEquals(Arrays.asList("key"), delegate.fetched);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        RecordingRowReader delegate = new RecordingRowReader();
+        CachingRowReader cache = new CachingRowReader(delegate, 10, 10000, 60000);
+        cache.update("ks", "cf", "key1", COLUMNS, row("1"));
+        cache.update("ks", "cf", "key2", COLUMNS, row("2"));
+        cache.invalidate("ks", "cf", "key1");
+        // Rows of other column families are kept apart
+        cache.invalidate("ks", "other", "key2");
+
+        assertEquals(1, cache.size());
+        cache.fetchRows("ks", "cf", Arrays.asList("key1", "key2"), COLUMNS);
+        assertEquals(Arrays.asList("key1"), delegate.fetched);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    private static Map<String, String> row(String value) {
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("a", value);
+        // Columns that aren't indexed aren't cached
+        row.put("b", "x");
+        return row;
+    }
+
+    static class RecordingRowReader implements RowReader {
+        private final List<String> fetched = new ArrayList<String>();
+
+        public Map<String, Map<String, String>> fetchRows(String keyspace, String columnFamily,
+                Collection<String> keys, Collection<String> indexColumns) {
+            Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+            for (String key : keys) {
+                fetched.add(key);
+                result.put(key, Collections.<String, String> emptyMap());
+            }
+            return result;
+        }
+    }
+}
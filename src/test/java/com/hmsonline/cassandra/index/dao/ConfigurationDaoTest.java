@@ -0,0 +1,109 @@
+package com.hmsonline.cassandra.index.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.Configuration;
+import com.hmsonline.cassandra.index.IndexMetrics;
+
+public class ConfigurationDaoTest {
+
+    @Before
+    public void setUp() {
+        ConfigurationDao.reset();
+    }
+
+    @After
+    public void tearDown() {
+        ConfigurationDao.reset();
+    }
+
+    @Test
+    public void testFailsOpen() throws Throwable {
+        TestConfigurationDao dao = new TestConfigurationDao();
+        dao.next = null;
+        long failed = IndexMetrics.configurationLoadsFailed.count();
+
+        // Writes go on without indexes while the configuration can't be loaded
+        Configuration conf = dao.getConfiguration();
+        assertTrue(conf.isEmpty());
+        assertEquals(1, IndexMetrics.configurationLoadsFailed.count() - failed);
+        assertSame(conf, dao.getConfiguration());
+
+        dao.next = configuration("idx");
+        dao.updateConfiguration();
+        assertEquals(1, dao.getConfiguration().getIndexNames("ks", "cf").size());
+    }
+
+    @Test
+    public void testDropsStaleLoads() throws Throwable {
+        final TestConfigurationDao dao = new TestConfigurationDao();
+        final Configuration stale = configuration("stale");
+        dao.next = stale;
+        dao.started = new CountDownLatch(1);
+        dao.release = new CountDownLatch(1);
+        Thread slow = new Thread() {
+            public void run() {
+                dao.updateConfiguration();
+            }
+        };
+        slow.start();
+        assertTrue(dao.started.await(5, TimeUnit.SECONDS));
+
+        // A reload started later but finished first wins
+        TestConfigurationDao fast = new TestConfigurationDao();
+        Configuration current = configuration("current");
+        fast.next = current;
+        fast.updateConfiguration();
+        dao.release.countDown();
+        slow.join(5000);
+        assertSame(current, dao.getConfiguration());
+    }
+
+    private static Configuration configuration(String indexName) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, "ks");
+        properties.put(Configuration.COLUMN_FAMILY, "cf");
+        properties.put(Configuration.COLUMNS, "a");
+        Configuration.Builder builder = new Configuration.Builder();
+        builder.addIndex(indexName, properties);
+        Configuration conf = builder.build();
+        return conf;
+    }
+
+    static class TestConfigurationDao extends ConfigurationDao {
+        private volatile Configuration next;
+        private CountDownLatch started;
+        private CountDownLatch release;
+
+        TestConfigurationDao() {
+            super(null);
+        }
+
+        @Override
+        protected Configuration loadConfiguration() {
+            if (started != null) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            if (next == null) {
+                throw new RuntimeException("Configuration column family unavailable");
+            }
+            return next;
+        }
+    }
+}
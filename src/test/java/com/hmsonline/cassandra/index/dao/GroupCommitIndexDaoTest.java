@@ -0,0 +1,81 @@
+package com.hmsonline.cassandra.index.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class GroupCommitIndexDaoTest {
+
+    @Test
+    public void testGroupCommit() throws Throwable {
+        CountingIndexDao delegate = new CountingIndexDao();
+        final GroupCommitIndexDao indexDao = new GroupCommitIndexDao(null, delegate, 20000, 1000, 1);
+        indexDao.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 200; i++) {
+            final int n = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    IndexBatch batch = new IndexBatch();
+                    batch.addInsertion("idx", "value" + n, 1);
+                    batch.addDeletion("idx", "old" + n, 1);
+                    indexDao.execute(batch);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(400, delegate.entries.get());
+        assertTrue(delegate.batches.get() < 200);
+    }
+
+    @Test
+    public void testFailure() throws Throwable {
+        CountingIndexDao delegate = new CountingIndexDao();
+        delegate.fail = true;
+        GroupCommitIndexDao indexDao = new GroupCommitIndexDao(null, delegate, 0, 1000, 1);
+        indexDao.start();
+        IndexBatch batch = new IndexBatch();
+        batch.addInsertion("idx", "value", 1);
+        try {
+            indexDao.execute(batch);
+            fail();
+        } catch (RuntimeException ex) {
+            assertEquals("unavailable", ex.getCause().getMessage());
+        }
+    }
+
+    static class CountingIndexDao extends IndexDao {
+        private final AtomicInteger batches = new AtomicInteger();
+        private final AtomicInteger entries = new AtomicInteger();
+        private volatile boolean fail;
+
+        CountingIndexDao() {
+            super(null);
+        }
+
+        @Override
+        public void execute(IndexBatch batch) {
+            if (fail) {
+                throw new RuntimeException("unavailable");
+            }
+            batches.incrementAndGet();
+            entries.addAndGet(batch.size());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmsonline.cassandra.index.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RowHydratorTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        // Later multigets finish first, rows still come in index order
+        TestRowHydrator hydrator = new TestRowHydrator(3, 4);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            hydrator.put("key" + i);
+            expected.add("key" + i);
+        }
+
+        List<String> keys = new ArrayList<String>();
+        Iterator<RowHydrator.IndexedRow> rows = hydrator.hydrate(entries(20), "cf");
+        while (rows.hasNext()) {
+            RowHydrator.IndexedRow row = rows.next();
+            assertEquals(row.getRowKey(), row.getColumns().get("a"));
+            // The 4 next multigets of 3 keys are queued while the rows of the
+            // current one are returned
+            int remaining = 7 - (keys.size() / 3 + 1);
+            assertEquals(Math.min(4, remaining), ((RowHydrator.HydratingIterator) rows).getInFlight());
+            keys.add(row.getRowKey());
+        }
+        assertEquals(expected, keys);
+        assertEquals(7, hydrator.multigets.get());
+    }
+
+    @Test
+    public void testSkipsMissingRows() throws Exception {
+        TestRowHydrator hydrator = new TestRowHydrator(2, 2);
+        hydrator.put("key1");
+        hydrator.put("key4");
+        // An existing row without columns is missing too
+        hydrator.rows.put("key2", new HashMap<String, String>());
+
+        List<String> keys = new ArrayList<String>();
+        Iterator<RowHydrator.IndexedRow> rows = hydrator.hydrate(entries(6), "cf");
+        while (rows.hasNext()) {
+            keys.add(rows.next().getRowKey());
+        }
+        List<String> expected = new ArrayList<String>();
+        expected.add("key1");
+        expected.add("key4");
+        assertEquals(expected, keys);
+
+        // Nothing at all to hydrate
+        assertFalse(new TestRowHydrator(2, 2).hydrate(entries(6), "cf").hasNext());
+    }
+
+    @Test
+    public void testBoundsMultigets() throws Exception {
+        TestRowHydrator hydrator = new TestRowHydrator(2, 3);
+        for (int i = 0; i < 40; i++) {
+            hydrator.put("key" + i);
+        }
+        CountingIterator entries = new CountingIterator(entries(40));
+
+        Iterator<RowHydrator.IndexedRow> rows = hydrator.hydrate(entries, "cf");
+        assertTrue(rows.hasNext());
+        // Only the entries of the current and the queued multigets are read
+        // ahead
+        assertEquals(2 * (1 + 3), entries.read);
+        int count = 0;
+        while (rows.hasNext()) {
+            rows.next();
+            count++;
+            assertTrue(entries.read - count <= 2 * (1 + 3));
+        }
+        assertEquals(40, count);
+        assertTrue("At most 4 multigets at once, was " + hydrator.maxRunning.get(), hydrator.maxRunning.get() <= 4);
+    }
+
+    private static Iterator<IndexEntry> entries(int count) {
+        List<IndexEntry> result = new ArrayList<IndexEntry>();
+        for (int i = 0; i < count; i++) {
+            result.add(new IndexEntry(Collections.singletonList("value"), "key" + i, null));
+        }
+        return result.iterator();
+    }
+
+    class TestRowHydrator extends RowHydrator {
+        private final Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
+        private final AtomicInteger multigets = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+
+        TestRowHydrator(int batchSize, int concurrency) {
+            super(null, executor, batchSize, concurrency);
+        }
+
+        void put(String key) {
+            Map<String, String> row = new HashMap<String, String>();
+            row.put("a", key);
+            rows.put(key, row);
+        }
+
+        @Override
+        Map<String, Map<String, String>> fetchRows(String columnFamily, Set<String> keys, String[] columns)
+                throws Exception {
+            int count = multigets.incrementAndGet();
+            int now = running.incrementAndGet();
+            while (true) {
+                int max = maxRunning.get();
+                if (now <= max || maxRunning.compareAndSet(max, now)) {
+                    break;
+                }
+            }
+            try {
+                // The first multigets are the slowest
+                Thread.sleep(Math.max(1, 20 - 5 * count));
+                Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+                for (String key : keys) {
+                    if (rows.containsKey(key)) {
+                        result.put(key, rows.get(key));
+                    }
+                }
+                return result;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    static class CountingIterator implements Iterator<IndexEntry> {
+        private final Iterator<IndexEntry> delegate;
+        private volatile int read;
+
+        CountingIterator(Iterator<IndexEntry> delegate) {
+            this.delegate = delegate;
+        }
+
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        public IndexEntry next() {
+            read++;
+            return delegate.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
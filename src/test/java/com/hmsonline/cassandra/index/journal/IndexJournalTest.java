@@ -0,0 +1,253 @@
+package com.hmsonline.cassandra.index.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.IndexMetrics;
+import com.hmsonline.cassandra.index.dao.CountBatch;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.dao.IndexDao;
+
+public class IndexJournalTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File("target/index_journal_test");
+        if (directory.isDirectory()) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testReplay() throws Throwable {
+        // Journal without workers, nothing gets applied
+        IndexJournal journal = new IndexJournal(directory, new RecordingIndexDao(), 0, 1024, 10, true);
+        journal.start();
+        for (int i = 0; i < 3; i++) {
+            IndexBatch batch = new IndexBatch();
+            batch.addDeletion("idx", "old" + i, 1);
+            batch.addInsertion("idx", "new\u0000" + i, 2);
+            batch.addInsertion("idx", ByteBufferUtil.bytes("ttl" + i), ByteBufferUtil.bytes("value" + i), 3, 60,
+                    ConsistencyLevel.ONE);
+            CountBatch counts = new CountBatch();
+            counts.add("idx", ByteBufferUtil.bytes("new"), 1, null);
+            journal.append(batch, counts);
+        }
+        assertEquals("Pending batches", 3, journal.getPendingBatches());
+        journal.stop();
+
+        // Restart replays and applies everything left in the journal
+        RecordingIndexDao indexDao = new RecordingIndexDao();
+        journal = new IndexJournal(directory, indexDao, 1, 1024, 10, true);
+        journal.start();
+        for (int i = 0; i < 100 && indexDao.batches.size() < 3; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("Replayed batches", 3, indexDao.batches.size());
+        IndexBatch.Entry entry = indexDao.batches.get(2).getEntries().get(1);
+        assertFalse(entry.isDeletion());
+        assertEquals("new\u00002", ByteBufferUtil.string(entry.getName()));
+        assertEquals(2, entry.getTimestamp());
+        assertTrue(indexDao.batches.get(0).getEntries().get(0).isDeletion());
+        assertEquals(0, entry.getTtl());
+        assertNull(entry.getConsistency());
+        assertFalse(entry.getValue().hasRemaining());
+        entry = indexDao.batches.get(2).getEntries().get(2);
+        assertEquals("value2", ByteBufferUtil.string(entry.getValue()));
+        assertEquals(60, entry.getTtl());
+        assertEquals(ConsistencyLevel.ONE, entry.getConsistency());
+        // Counts aren't journaled, replaying them could count rows twice
+        assertTrue(indexDao.counts.isEmpty());
+        journal.stop();
+    }
+
+    @Test
+    public void testWritesCountsOnceAfterBatch() throws Throwable {
+        // The first attempt fails and the batch is retried
+        RecordingIndexDao indexDao = new RecordingIndexDao();
+        indexDao.failures = 1;
+        IndexJournal journal = new IndexJournal(directory, indexDao, 1, 1024, 10, false);
+        journal.start();
+        IndexBatch batch = new IndexBatch();
+        batch.addInsertion("idx", "new\u0000key", 2);
+        CountBatch counts = new CountBatch();
+        counts.add("idx", ByteBufferUtil.bytes("new"), 1, null);
+        journal.append(batch, counts);
+        for (int i = 0; i < 100 && indexDao.counts.isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(100);
+        assertEquals("Applied batches", 1, indexDao.batches.size());
+        assertEquals("Written counts", 1, indexDao.counts.size());
+        assertEquals(1, indexDao.counts.get(0).getDeltas().get(0).getDelta());
+        journal.stop();
+    }
+
+    @Test
+    public void testRefusesOtherFormats() throws Throwable {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(2);
+        out.writeInt(0);
+        try {
+            IndexBatch.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSerializesEntryKinds() throws Throwable {
+        IndexBatch batch = new IndexBatch();
+        batch.addInsertion("idx", "new", 2);
+        batch.addDeletion("idx", "old", 1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        batch.serialize(new DataOutputStream(bytes));
+
+        batch = IndexBatch.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(2, batch.size());
+        assertEquals(IndexBatch.Kind.INSERTION, batch.getEntries().get(0).getKind());
+        assertEquals(IndexBatch.Kind.DELETION, batch.getEntries().get(1).getKind());
+        assertNull(batch.getEntries().get(1).getConsistency());
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws Throwable {
+        IndexJournal journal = new IndexJournal(directory, new RecordingIndexDao(), 0, 1024, 10, false, 2, 50, 10, 1000);
+        journal.start();
+        journal.append(batch(0));
+        journal.append(batch(1));
+        try {
+            journal.append(batch(2));
+            fail();
+        } catch (RejectedExecutionException ex) {
+            // Expected, nothing applies the pending batches
+        }
+        assertEquals("Pending batches", 2, journal.getPendingBatches());
+        journal.stop();
+
+        // Replay pages the batches in under the same limit
+        RecordingIndexDao indexDao = new RecordingIndexDao();
+        journal = new IndexJournal(directory, indexDao, 1, 1024, 10, false, 1, 50, 10, 1000);
+        journal.start();
+        for (int i = 0; i < 100 && indexDao.batches.size() < 2; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("Replayed batches", 2, indexDao.batches.size());
+        journal.append(batch(3));
+        journal.stop();
+    }
+
+    @Test
+    public void testStop() throws Throwable {
+        // Batches that can't be applied are still pending when stopped
+        RecordingIndexDao indexDao = new RecordingIndexDao();
+        indexDao.failures = Integer.MAX_VALUE;
+        IndexJournal journal = new IndexJournal(directory, indexDao, 2, 1024, 10, false);
+        journal.start();
+        journal.append(batch(0));
+        journal.stop();
+        assertEquals("Pending batches", 0, journal.getPendingBatches());
+        try {
+            journal.append(batch(1));
+            fail();
+        } catch (IllegalStateException ex) {
+            // Expected, the journal is stopped
+        }
+
+        // They are replayed when it starts again
+        indexDao.failures = 0;
+        journal.start();
+        for (int i = 0; i < 100 && indexDao.batches.isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("Replayed batches", 1, indexDao.batches.size());
+        journal.stop();
+    }
+
+    @Test
+    public void testSetsAsideFailingBatches() throws Throwable {
+        // Batches that never apply don't hold on to the pending limit
+        RecordingIndexDao indexDao = new RecordingIndexDao();
+        indexDao.failures = Integer.MAX_VALUE;
+        long failed = IndexMetrics.journalBatchesFailed.count();
+        IndexJournal journal = new IndexJournal(directory, indexDao, 1, 1024, 10, false, 2, 5000, 3, 10);
+        journal.start();
+        for (int i = 0; i < 3; i++) {
+            CountBatch counts = new CountBatch();
+            counts.add("idx", ByteBufferUtil.bytes("value"), 1, null);
+            journal.append(batch(i), counts);
+        }
+        for (int i = 0; i < 100 && IndexMetrics.journalBatchesFailed.count() - failed < 3; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("Failed batches", 3, IndexMetrics.journalBatchesFailed.count() - failed);
+        assertEquals("Pending batches", 0, journal.getPendingBatches());
+        assertTrue(indexDao.counts.isEmpty());
+        journal.stop();
+
+        // Renamed to a segment, the failed file is replayed
+        File failedFile = new File(directory, "IndexJournalFailed.log");
+        assertTrue(failedFile.renameTo(new File(directory, "IndexJournal-1.log")));
+        indexDao.failures = 0;
+        journal.start();
+        for (int i = 0; i < 100 && indexDao.batches.size() < 3; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("Replayed batches", 3, indexDao.batches.size());
+        assertEquals("value0", ByteBufferUtil.string(indexDao.batches.get(0).getEntries().get(0).getName()));
+        journal.stop();
+    }
+
+    private IndexBatch batch(int n) {
+        IndexBatch batch = new IndexBatch();
+        batch.addInsertion("idx", "value" + n, 1);
+        return batch;
+    }
+
+    static class RecordingIndexDao extends IndexDao {
+        final List<IndexBatch> batches = new ArrayList<IndexBatch>();
+        final List<CountBatch> counts = new ArrayList<CountBatch>();
+        volatile int failures;
+
+        RecordingIndexDao() {
+            super(null);
+        }
+
+        @Override
+        public synchronized void execute(IndexBatch batch) {
+            if (failures > 0) {
+                failures--;
+                throw new RuntimeException("Failed to write index batch");
+            }
+            batches.add(batch);
+        }
+
+        @Override
+        public synchronized void execute(CountBatch batch) {
+            counts.add(batch);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.hmsonline.cassandra.index.rebuild;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.KSMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.DeletedColumn;
+import org.apache.cassandra.db.DeletionInfo;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.dht.RandomPartitioner;
+import org.apache.cassandra.io.sstable.SSTableSimpleUnsortedWriter;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.locator.SimpleStrategy;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.Configuration;
+import com.hmsonline.cassandra.index.dao.BulkIndexDao;
+import com.hmsonline.cassandra.index.dao.IndexBatch;
+import com.hmsonline.cassandra.index.dao.IndexDao;
+
+public class OfflineIndexBuilderTest {
+    private static final String KEYSPACE = "offline_test";
+    private static final String COLUMN_FAMILY = "cf";
+
+    @Test
+    public void testBuild() throws Throwable {
+        // Needs --add-opens java.base/java.io=ALL-UNNAMED on Java 9 and later,
+        // see the jdk9+ profile
+        assumeTrue(BulkIndexDao.canWriteSSTables());
+        File directory = new File("target/offline_index_test");
+        if (directory.exists()) {
+            FileUtils.deleteRecursive(directory);
+        }
+        directory.mkdirs();
+        CFMetaData metadata = Schema.instance.getCFMetaData(KEYSPACE, COLUMN_FAMILY);
+        if (metadata == null) {
+            metadata = new CFMetaData(KEYSPACE, COLUMN_FAMILY, ColumnFamilyType.Standard, UTF8Type.instance, null);
+            Schema.instance.load(KSMetaData.testMetadata(KEYSPACE, SimpleStrategy.class, KSMetaData.optsWithRF(1),
+                    metadata));
+        }
+
+        // The older SSTable
+        TestWriter writer = new TestWriter(directory, metadata);
+        writer.row("key1").column("a", "1", 1);
+        writer.row("key2").column("a", "2", 1);
+        writer.row("key3").column("a", "3", 1);
+        writer.close();
+
+        // The newer one updates key1, deletes key2 and the indexed column of
+        // key3, and writes key4 after an older row deletion
+        writer = new TestWriter(directory, metadata);
+        writer.row("key1").column("a", "10", 2);
+        writer.row("key2").deleteRow(2);
+        writer.row("key3").deleteColumn("a", 2).column("b", "x", 2);
+        writer.row("key4").deleteRow(1).column("a", "4", 2);
+        writer.close();
+
+        Configuration.Builder builder = new Configuration.Builder();
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Configuration.KEYSPACE, KEYSPACE);
+        properties.put(Configuration.COLUMN_FAMILY, COLUMN_FAMILY);
+        properties.put(Configuration.COLUMNS, "a");
+        builder.addIndex("idx", properties);
+        Configuration conf = builder.build();
+        RecordingIndexDao indexDao = new RecordingIndexDao();
+        new OfflineIndexBuilder(metadata, conf.getPlan(KEYSPACE, COLUMN_FAMILY), indexDao, directory, 2, 1, 0)
+                .build();
+
+        List<String> entries = new ArrayList<String>();
+        for (IndexBatch.Entry entry : indexDao.entries) {
+            assertFalse(entry.isDeletion());
+            assertEquals("idx", entry.getIndexName());
+            // Written with the time of the last write to the row
+            assertEquals(2, entry.getTimestamp());
+            entries.add(ByteBufferUtil.string(entry.getName()));
+        }
+        Collections.sort(entries);
+        List<String> expected = new ArrayList<String>();
+        expected.add("10\u0000key1");
+        expected.add("4\u0000key4");
+        assertEquals(expected, entries);
+    }
+
+    // Adds the tombstones the simple writers have no methods for
+    static class TestWriter extends SSTableSimpleUnsortedWriter {
+        private final int now = (int) (System.currentTimeMillis() / 1000);
+
+        TestWriter(File directory, CFMetaData metadata) {
+            super(directory, new RandomPartitioner(), metadata.ksName, metadata.cfName, metadata.comparator, null, 1);
+        }
+
+        TestWriter row(String key) throws Exception {
+            newRow(ByteBufferUtil.bytes(key));
+            return this;
+        }
+
+        TestWriter column(String name, String value, long timestamp) {
+            addColumn(ByteBufferUtil.bytes(name), ByteBufferUtil.bytes(value), timestamp);
+            return this;
+        }
+
+        TestWriter deleteColumn(String name, long timestamp) {
+            columnFamily.addColumn(new DeletedColumn(ByteBufferUtil.bytes(name), now, timestamp));
+            return this;
+        }
+
+        TestWriter deleteRow(long timestamp) {
+            columnFamily.delete(new DeletionInfo(timestamp, now));
+            return this;
+        }
+    }
+
+    static class RecordingIndexDao extends IndexDao {
+        private final List<IndexBatch.Entry> entries = new ArrayList<IndexBatch.Entry>();
+
+        RecordingIndexDao() {
+            super(null);
+        }
+
+        @Override
+        public synchronized void execute(IndexBatch batch) {
+            entries.addAll(batch.getEntries());
+        }
+    }
+}
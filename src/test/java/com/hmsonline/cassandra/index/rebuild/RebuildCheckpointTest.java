@@ -0,0 +1,77 @@
+package com.hmsonline.cassandra.index.rebuild;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.prettyprint.hector.api.beans.Row;
+
+import org.apache.cassandra.io.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RebuildCheckpointTest {
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File("target/rebuild_checkpoint_test");
+        if (directory.exists()) {
+            FileUtils.deleteRecursive(directory);
+        }
+        directory.mkdirs();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = new File(directory, "ks.cf.properties");
+        RebuildCheckpoint checkpoint = new RebuildCheckpoint(file);
+        assertNull(checkpoint.get("0,100"));
+        checkpoint.put("0,100", "50");
+        checkpoint.put("100,200", RebuildCheckpoint.DONE);
+        checkpoint.put("0,100", "75");
+
+        checkpoint = new RebuildCheckpoint(file);
+        assertEquals("75", checkpoint.get("0,100"));
+        assertFalse(checkpoint.isDone("0,100"));
+        assertTrue(checkpoint.isDone("100,200"));
+        assertFalse(new File(directory, "ks.cf.properties.tmp").exists());
+
+        checkpoint.delete();
+        assertFalse(file.exists());
+        assertNull(new RebuildCheckpoint(file).get("0,100"));
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        RebuildCheckpoint checkpoint = new RebuildCheckpoint(new File(directory, "ks.cf.properties"));
+        checkpoint.put("0,100", RebuildCheckpoint.DONE);
+        checkpoint.put("100,200", "150");
+        IndexRebuilder rebuilder = new IndexRebuilder(null, null, null, directory, 1, 1000, 10, 100, 0, 0);
+        IndexRebuilder.Rebuild rebuild = new IndexRebuilder.Rebuild("ks", "cf");
+        final List<String> pages = new ArrayList<String>();
+
+        // The split marked done isn't scanned at all
+        for (String[] split : new String[][] { { "0", "100" }, { "100", "200" } }) {
+            rebuilder.new SplitScanner(rebuild, null, null, split[0], split[1], checkpoint, null, null) {
+                @Override
+                List<Row<String, String, String>> fetchPage(String startToken, String endToken) {
+                    pages.add(startToken + "," + endToken);
+                    return new ArrayList<Row<String, String, String>>();
+                }
+            }.run();
+        }
+
+        // The other one resumes from its checkpointed token
+        List<String> expected = new ArrayList<String>();
+        expected.add("150,200");
+        assertEquals(expected, pages);
+        assertEquals(2, rebuild.getSplitsDone());
+        assertTrue(checkpoint.isDone("100,200"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmsonline.cassandra.index.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+import com.hmsonline.cassandra.index.util.CompositeUtil.Format;
+
+public class CompositeUtilTest {
+
+    @Test
+    public void testDelimited() throws Throwable {
+        List<String> parts = Arrays.asList("", "a", "\u00e9t\u00e9", "key");
+        ByteBuffer name = CompositeUtil.compose(parts, Format.DELIMITED);
+        assertEquals(CompositeUtil.compose(parts), ByteBufferUtil.string(name));
+        assertEquals(parts, CompositeUtil.decompose(name));
+        assertEquals(Arrays.asList("a", "b"), CompositeUtil.decompose(ByteBufferUtil.bytes("a\u0000b\u0000\u0000")));
+    }
+
+    @Test
+    public void testComposite() throws Throwable {
+        List<String> parts = Arrays.asList("a\u0000b", "", "key");
+        ByteBuffer name = CompositeUtil.compose(parts, Format.COMPOSITE);
+        assertEquals(parts, CompositeUtil.decompose(name, Format.COMPOSITE));
+
+        List<AbstractType<?>> types = new ArrayList<AbstractType<?>>();
+        for (int i = 0; i < parts.size(); i++) {
+            types.add(UTF8Type.instance);
+        }
+        CompositeType type = CompositeType.getInstance(types);
+        assertEquals(type.build(ByteBufferUtil.bytes("a\u0000b"), ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                ByteBufferUtil.bytes("key")), name);
+        type.validate(name);
+    }
+
+    @Test
+    public void testSliceBounds() throws Throwable {
+        List<AbstractType<?>> types = new ArrayList<AbstractType<?>>();
+        for (int i = 0; i < 3; i++) {
+            types.add(UTF8Type.instance);
+        }
+        assertSlice(UTF8Type.instance, Format.DELIMITED);
+        assertSlice(CompositeType.getInstance(types), Format.COMPOSITE);
+    }
+
+    @Test
+    public void testPrefix() throws Throwable {
+        for (Format format : Format.values()) {
+            ByteBuffer name = CompositeUtil.compose(Arrays.asList("a", "", "\u00e9t\u00e9", "key"), format);
+            assertEquals(CompositeUtil.compose(Arrays.asList("a"), format), CompositeUtil.prefix(name, 1, format));
+            assertEquals(CompositeUtil.compose(Arrays.asList("a", ""), format), CompositeUtil.prefix(name, 2, format));
+            assertEquals(CompositeUtil.compose(Arrays.asList("a", "", "\u00e9t\u00e9"), format),
+                    CompositeUtil.prefix(name, 3, format));
+            assertEquals(name, CompositeUtil.prefix(name, 5, format));
+        }
+    }
+
+    private void assertSlice(AbstractType<?> comparator, Format format) {
+        ByteBuffer start = CompositeUtil.sliceStart(Arrays.asList("a", "m"), format);
+        ByteBuffer end = CompositeUtil.sliceEnd(Arrays.asList("a", "p"), format);
+        comparator.validate(start);
+        comparator.validate(end);
+        String[][] inside = { { "a", "m", "key" }, { "a", "n", "" }, { "a", "p", "zzz" } };
+        String[][] outside = { { "a", "l", "zzz" }, { "a", "pa", "key" }, { "b", "m", "key" }, { "", "m", "key" } };
+        for (String[] parts : inside) {
+            ByteBuffer name = CompositeUtil.compose(Arrays.asList(parts), format);
+            assertTrue(comparator.compare(start, name) < 0 && comparator.compare(name, end) < 0);
+        }
+        for (String[] parts : outside) {
+            ByteBuffer name = CompositeUtil.compose(Arrays.asList(parts), format);
+            assertTrue(comparator.compare(start, name) > 0 || comparator.compare(name, end) > 0);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmsonline.cassandra.index.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class IndexUtilTest {
+
+    @Test
+    public void testJsonValues() throws Throwable {
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("plain", "value");
+        row.put("doc[1]", "{\"a\":\"x\",\"n\":{\"b\":1,\"c\":[2.50,true]},\"skip\":{\"deep\":[1,2,3]},\"l\":[{\"b\":\"y\"},{\"b\":\"z\"}]}");
+        row.put("doc[2]", "[{\"a\":\"w\"},null,{\"a\":null}]");
+        row.put("doc[3]", "not json");
+
+        List<String> columns = Arrays.asList("plain", "doc:a", "doc:n:b", "doc:n:c", "doc:l:b", "doc:n", "doc:missing");
+        Map<String, List<String>> values = IndexUtil.getIndexValues(row, columns);
+
+        assertEquals(Arrays.asList("value"), values.get("plain"));
+        assertEquals(Arrays.asList("w", "x"), sorted(values.get("doc:a")));
+        assertEquals(Arrays.asList("1"), values.get("doc:n:b"));
+        assertEquals(Arrays.asList("[2.5,true]"), values.get("doc:n:c"));
+        assertEquals(Arrays.asList("y", "z"), sorted(values.get("doc:l:b")));
+        assertEquals(Arrays.asList("{\"b\":1,\"c\":[2.5,true]}"), values.get("doc:n"));
+        assertTrue(values.get("doc:missing").isEmpty());
+    }
+
+    @Test
+    public void testBuildIndexes() throws Throwable {
+        Map<String, List<String>> values = new HashMap<String, List<String>>();
+        values.put("a", Arrays.asList("1", "2"));
+        values.put("b", new ArrayList<String>());
+        values.put("c", Arrays.asList("x", "y"));
+
+        List<String> columns = Arrays.asList("a", "b", "c");
+        assertEquals(4, IndexUtil.countIndexes(columns, values));
+        assertEquals(Arrays.asList("1\u0000\u0000x\u0000key", "1\u0000\u0000y\u0000key", "2\u0000\u0000x\u0000key",
+                "2\u0000\u0000y\u0000key"), IndexUtil.buildIndexes(columns, "key", values));
+        assertTrue(IndexUtil.buildIndexes(Arrays.asList("b"), "key", values).isEmpty());
+    }
+
+    @Test
+    public void testCorrelatedParts() throws Throwable {
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("status", "open");
+        row.put("order", "{\"lines\":[{\"sku\":\"a\",\"qty\":1},{\"sku\":\"b\",\"qty\":2},{\"sku\":\"c\"},{}]}");
+
+        List<String> columns = Arrays.asList("status", "order:lines:sku", "order:lines:qty");
+        IndexPartsIterator parts = IndexUtil.getCorrelatedParts(row, "key", columns, JsonPathExtractor
+                .compile(columns));
+        assertEquals(3, parts.count());
+        List<String> entries = new ArrayList<String>();
+        while (parts.hasNext()) {
+            entries.add(Arrays.asList(parts.next()).toString());
+        }
+        assertEquals(Arrays.asList("[open, a, 1, key]", "[open, b, 2, key]", "[open, c, null, key]"), entries);
+    }
+
+    private List<String> sorted(List<String> values) {
+        List<String> result = new ArrayList<String>(values);
+        Collections.sort(result);
+        return result;
+    }
+}